@@ -0,0 +1,328 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * A base for {@link RedBlackHashTreeEngine}s other than the red-black
+ * tree.  A subclass stores the buckets and navigates among them; this
+ * class derives key lookups, polling and the range iterators from that,
+ * with the semantics of {@link RedBlackHashTreeMap}.
+ * <p>
+ * Keys are RedBlackHashTreeComparable unless an extractor is given.
+ * Engines do not fire events.
+ */
+public abstract class AbstractRedBlackHashTreeEngine<K, V> implements RedBlackHashTreeEngine<K, V> {
+
+    /**
+     * Maps a key to its compare object, or null when keys are
+     * RedBlackHashTreeComparable
+     */
+    protected final Function<? super K, ? extends Comparable> extractor;
+
+    protected AbstractRedBlackHashTreeEngine(Function<? super K, ? extends Comparable> extractor)
+    {
+        this.extractor = extractor;
+    }
+
+    /**
+     * @return the compare object key belongs under
+     */
+    protected Comparable compareObjOf(K key)
+    {
+        return extractor == null ? RedBlackHashTree.compareObjOf(key) : extractor.apply(key);
+    }
+
+    /**
+     * @return a map with the same extractor, for buckets an engine keeps
+     *         in a red-black tree
+     */
+    protected RedBlackHashTreeMap<K, V> newTreeMap()
+    {
+        return extractor == null ? new RedBlackHashTreeMap<K, V>() : RedBlackHashTreeMap.<K, V>withExtractor(extractor);
+    }
+
+    /**
+     * @return the previous value of key, or null
+     */
+    public abstract V put(K key, V value);
+
+    /**
+     * @return the removed value of key, or null
+     */
+    public abstract V remove(K key);
+
+    /**
+     * @return the bucket of compareObj, or null
+     */
+    public abstract RedBlackHashTreeBucket<K, V> getBucket(Comparable compareObj);
+
+    /**
+     * Removes the whole bucket of compareObj.
+     *
+     * @return the removed bucket, or null if there was none
+     */
+    public abstract Map<K, V> removeMap(Comparable compareObj);
+
+    /**
+     * @return the number of entries
+     */
+    public abstract int size();
+
+    public abstract void clear();
+
+    public abstract RedBlackHashTreeBucket<K, V> firstNode();
+
+    public abstract RedBlackHashTreeBucket<K, V> lastNode();
+
+    public abstract RedBlackHashTreeBucket<K, V> ceilingNode(Comparable compareObj);
+
+    public abstract RedBlackHashTreeBucket<K, V> higherNode(Comparable compareObj);
+
+    public abstract RedBlackHashTreeBucket<K, V> floorNode(Comparable compareObj);
+
+    public abstract RedBlackHashTreeBucket<K, V> lowerNode(Comparable compareObj);
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    public V get(K key)
+    {
+        RedBlackHashTreeBucket<K, V> bucket = getBucket(compareObjOf(key));
+        return bucket == null ? null : bucket.value().get(key);
+    }
+
+    /**
+     * @return whether the bucket of key exists, as
+     *         {@link RedBlackHashTreeMap#contains} does
+     */
+    public boolean contains(K key)
+    {
+        return getBucket(compareObjOf(key)) != null;
+    }
+
+    public Map<K, V> getMap(Comparable compareObj)
+    {
+        RedBlackHashTreeBucket<K, V> bucket = getBucket(compareObj);
+        return bucket == null ? null : bucket.value();
+    }
+
+    public RedBlackHashTreeBucket<K, V> ceilingNode(K key)
+    {
+        return ceilingNode(compareObjOf(key));
+    }
+
+    public V ceilingValue(K key)
+    {
+        return valueOf(ceilingNode(compareObjOf(key)), key);
+    }
+
+    public RedBlackHashTreeBucket<K, V> higherNode(K key)
+    {
+        return higherNode(compareObjOf(key));
+    }
+
+    public V higherValue(K key)
+    {
+        return valueOf(higherNode(compareObjOf(key)), key);
+    }
+
+    public RedBlackHashTreeBucket<K, V> floorNode(K key)
+    {
+        return floorNode(compareObjOf(key));
+    }
+
+    public V floorValue(K key)
+    {
+        return valueOf(floorNode(compareObjOf(key)), key);
+    }
+
+    public RedBlackHashTreeBucket<K, V> lowerNode(K key)
+    {
+        return lowerNode(compareObjOf(key));
+    }
+
+    public V lowerValue(K key)
+    {
+        return valueOf(lowerNode(compareObjOf(key)), key);
+    }
+
+    private V valueOf(RedBlackHashTreeBucket<K, V> bucket, K key)
+    {
+        return bucket == null ? null : bucket.value().get(key);
+    }
+
+    /**
+     * Removes the least bucket.
+     *
+     * @return the removed bucket, or null if the engine is empty
+     */
+    public RedBlackHashTreeBucket<K, V> pollFirstNode()
+    {
+        return poll(firstNode());
+    }
+
+    /**
+     * Removes the greatest bucket.
+     *
+     * @return the removed bucket, or null if the engine is empty
+     */
+    public RedBlackHashTreeBucket<K, V> pollLastNode()
+    {
+        return poll(lastNode());
+    }
+
+    private RedBlackHashTreeBucket<K, V> poll(RedBlackHashTreeBucket<K, V> bucket)
+    {
+        if (bucket == null) {
+            return null;
+        }
+        Comparable compareObj = bucket.getCompareObj();
+        return new Bucket<K, V>(compareObj, (HashMap<K, V>) removeMap(compareObj));
+    }
+
+    /**
+     * @return the bucket after bucket, for iteration; engines with
+     *         cheaper stepping than a fresh descent override this
+     */
+    protected RedBlackHashTreeBucket<K, V> next(RedBlackHashTreeBucket<K, V> bucket)
+    {
+        return higherNode(bucket.getCompareObj());
+    }
+
+    /**
+     * @return the bucket before bucket, for iteration
+     */
+    protected RedBlackHashTreeBucket<K, V> previous(RedBlackHashTreeBucket<K, V> bucket)
+    {
+        return lowerNode(bucket.getCompareObj());
+    }
+
+    /**
+     * Iterates the buckets from fromCompareObj to toCompareObj, in
+     * descending order if from is the greater.
+     */
+    public Iterator<RedBlackHashTreeBucket<K, V>> subIterator(Comparable fromCompareObj, boolean fromInclusive,
+            Comparable toCompareObj, boolean toInclusive)
+    {
+        return new SubIterator(fromCompareObj, fromInclusive, toCompareObj, toInclusive);
+    }
+
+    public Iterator<RedBlackHashTreeBucket<K, V>> subIterator(Comparable fromCompareObj, Comparable toCompareObj)
+    {
+        return subIterator(fromCompareObj, true, toCompareObj, false);
+    }
+
+    public Iterator<RedBlackHashTreeBucket<K, V>> headIterator(Comparable toCompareObj, boolean inclusive)
+    {
+        if (isEmpty()) {
+            return Collections.<RedBlackHashTreeBucket<K, V>>emptyIterator();
+        }
+        return subIterator(firstNode().getCompareObj(), true, toCompareObj, inclusive);
+    }
+
+    public Iterator<RedBlackHashTreeBucket<K, V>> headIterator(Comparable toCompareObj)
+    {
+        return headIterator(toCompareObj, false);
+    }
+
+    public Iterator<RedBlackHashTreeBucket<K, V>> tailIterator(Comparable fromCompareObj, boolean inclusive)
+    {
+        if (isEmpty()) {
+            return Collections.<RedBlackHashTreeBucket<K, V>>emptyIterator();
+        }
+        return subIterator(fromCompareObj, inclusive, lastNode().getCompareObj(), true);
+    }
+
+    public Iterator<RedBlackHashTreeBucket<K, V>> tailIterator(Comparable fromCompareObj)
+    {
+        return tailIterator(fromCompareObj, false);
+    }
+
+    private class SubIterator implements Iterator<RedBlackHashTreeBucket<K, V>> {
+
+        private final Comparable end;
+
+        private final boolean includeEnd;
+
+        private final boolean isReverse;
+
+        private RedBlackHashTreeBucket<K, V> next;
+
+        SubIterator(Comparable start, boolean includeStart, Comparable end, boolean includeEnd)
+        {
+            this.end = end;
+            this.includeEnd = includeEnd;
+            isReverse = start.compareTo(end) > 0;
+            if (isReverse) {
+                next = bounded(includeStart ? floorNode(start) : lowerNode(start));
+            } else {
+                next = bounded(includeStart ? ceilingNode(start) : higherNode(start));
+            }
+        }
+
+        private RedBlackHashTreeBucket<K, V> bounded(RedBlackHashTreeBucket<K, V> bucket)
+        {
+            if (bucket == null) {
+                return null;
+            }
+            int comp = bucket.getCompareObj().compareTo(end);
+            if (isReverse) {
+                comp = -comp;
+            }
+            return comp < 0 || (comp == 0 && includeEnd) ? bucket : null;
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public RedBlackHashTreeBucket<K, V> next()
+        {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            RedBlackHashTreeBucket<K, V> current = next;
+            next = bounded(isReverse ? previous(current) : AbstractRedBlackHashTreeEngine.this.next(current));
+            return current;
+        }
+    }
+
+    /**
+     * A bucket kept outside a tree node
+     */
+    protected static class Bucket<K, V> implements RedBlackHashTreeBucket<K, V> {
+
+        protected final Comparable compareObj;
+
+        protected final HashMap<K, V> valueMap;
+
+        protected Bucket(Comparable compareObj, HashMap<K, V> valueMap)
+        {
+            this.compareObj = compareObj;
+            this.valueMap = valueMap;
+        }
+
+        public Comparable getCompareObj()
+        {
+            return compareObj;
+        }
+
+        public HashMap<K, V> value()
+        {
+            return valueMap;
+        }
+
+        public String toString()
+        {
+            return compareObj + "=" + valueMap;
+        }
+    }
+}
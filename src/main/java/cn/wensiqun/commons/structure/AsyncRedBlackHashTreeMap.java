@@ -0,0 +1,335 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A thread-safe facade over a {@link RedBlackHashTreeMap} with a single
+ * writer.
+ * <p>
+ * Mutations are queued and return a {@link CompletableFuture}.  One writer
+ * thread drains the queue in batches, sorts each batch by compare object
+ * (keeping the submission order of operations on the same bucket) and
+ * applies it under a single acquisition of the write lock, so contended
+ * per-operation locking becomes sequential batched writes.  Reads see the
+ * map as of the last applied batch.  They share a read lock and run
+ * concurrently with each other, unless get() records accesses under an
+ * LRU policy: then gets and {@link #read(Function)} take the write lock
+ * one at a time.
+ * <p>
+ * The writer thread comes from a {@link ThreadFactory}, so callers on a
+ * virtual-thread runtime can pass a virtual thread factory.  The writer
+ * also holds the monitor of the map while applying a batch, which keeps
+ * {@link RedBlackHashTreePublisher} scans over the same map consistent.
+ */
+public class AsyncRedBlackHashTreeMap<K, V>
+{
+
+    private static final int PUT = 0;
+
+    private static final int PUT_IF_ABSENT = 1;
+
+    private static final int REMOVE = 2;
+
+    private static final int COMPUTE = 3;
+
+    private static final int MERGE = 4;
+
+    /**
+     * Default upper bound of operations applied under one lock acquisition
+     */
+    public static final int DEFAULT_MAX_BATCH = 1024;
+
+    private final RedBlackHashTreeMap<K, V> map;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final BlockingQueue<Operation<K, V>> queue = new LinkedBlockingQueue<Operation<K, V>>();
+
+    private final int maxBatch;
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * Guards closed together with queueing, so that nothing is queued
+     * behind the sentinel of close
+     */
+    private final Object submitLock = new Object();
+
+    /**
+     * Constructs a facade over an empty map with a daemon writer thread
+     */
+    public AsyncRedBlackHashTreeMap()
+    {
+        this(new RedBlackHashTreeMap<K, V>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RedBlackHashTreeMap-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Constructs a facade over map.  The map must not be mutated except
+     * through this facade from now on.
+     *
+     * @param map the map to serve
+     * @param threadFactory creates the single writer thread
+     * @param maxBatch the most operations applied under one lock acquisition
+     */
+    public AsyncRedBlackHashTreeMap(RedBlackHashTreeMap<K, V> map, ThreadFactory threadFactory, int maxBatch)
+    {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        }
+        this.map = map;
+        this.maxBatch = maxBatch;
+        this.writer = threadFactory.newThread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+        this.writer.start();
+    }
+
+    /**
+     * @see RedBlackHashTreeMap#put(Object, Object)
+     */
+    public CompletableFuture<V> put(K key, V value) {
+        return submit(new Operation<K, V>(PUT, key, value, null));
+    }
+
+    /**
+     * @see RedBlackHashTreeMap#putIfAbsent(Object, Object)
+     */
+    public CompletableFuture<V> putIfAbsent(K key, V value) {
+        return submit(new Operation<K, V>(PUT_IF_ABSENT, key, value, null));
+    }
+
+    /**
+     * @see RedBlackHashTreeMap#remove(Object)
+     */
+    public CompletableFuture<V> remove(K key) {
+        return submit(new Operation<K, V>(REMOVE, key, null, null));
+    }
+
+    /**
+     * The function runs on the writer thread.
+     *
+     * @see RedBlackHashTreeMap#compute(Object, BiFunction)
+     */
+    public CompletableFuture<V> compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return submit(new Operation<K, V>(COMPUTE, key, null, remappingFunction));
+    }
+
+    /**
+     * The function runs on the writer thread.
+     *
+     * @see RedBlackHashTreeMap#merge(Object, Object, BiFunction)
+     */
+    public CompletableFuture<V> merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        return submit(new Operation<K, V>(MERGE, key, value, remappingFunction));
+    }
+
+    public V get(K key) {
+        Lock readLock = getLock();
+        readLock.lock();
+        try {
+            return map.get(key);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return the lock for gets: the read lock, or the write lock if a get
+     *         reorders the map
+     */
+    private Lock getLock() {
+        return map.readsReorder() ? lock.writeLock() : lock.readLock();
+    }
+
+    public boolean contains(K key) {
+        lock.readLock().lock();
+        try {
+            return map.contains(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the bucket of compareObj, or null
+     */
+    public Map<K, V> getMap(Comparable compareObj) {
+        lock.readLock().lock();
+        try {
+            Map<K, V> bucket = map.getMap(compareObj);
+            return bucket == null ? null : new HashMap<K, V>(bucket);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return map.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs an arbitrary read against the map under the read lock, or
+     * under the write lock if a get reorders the map.  The reader must not
+     * mutate the map, nor let buckets or nodes escape.
+     */
+    public <R> R read(Function<? super RedBlackHashTreeMap<K, V>, R> reader) {
+        Lock readLock = getLock();
+        readLock.lock();
+        try {
+            return reader.apply(map);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting operations, lets the writer apply those already
+     * queued and waits for it to finish.
+     */
+    public void close() throws InterruptedException {
+        synchronized (submitLock) {
+            if (!closed) {
+                closed = true;
+                queue.offer(new Operation<K, V>(-1, null, null, null));
+            }
+        }
+        writer.join();
+    }
+
+    private CompletableFuture<V> submit(Operation<K, V> op) {
+        synchronized (submitLock) {
+            if (!closed) {
+                queue.offer(op);
+                return op.future;
+            }
+        }
+        op.future.completeExceptionally(new IllegalStateException("map is closed"));
+        return op.future;
+    }
+
+    private void drain() {
+        List<Operation<K, V>> batch = new ArrayList<Operation<K, V>>(maxBatch);
+        Comparator<Operation<K, V>> byCompareObj = new Comparator<Operation<K, V>>() {
+            public int compare(Operation<K, V> o1, Operation<K, V> o2) {
+                return map.compareObjOf(o1.key).compareTo(map.compareObjOf(o2.key));
+            }
+        };
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                synchronized (submitLock) {
+                    closed = true;
+                }
+                stop = true;
+            }
+            queue.drainTo(batch, maxBatch - batch.size());
+
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                if (batch.get(i).kind < 0) {
+                    batch.remove(i);
+                    stop = true;
+                }
+            }
+            // a stable sort keeps per-bucket submission order
+            Collections.sort(batch, byCompareObj);
+
+            lock.writeLock().lock();
+            try {
+                synchronized (map) {
+                    for (Operation<K, V> op : batch) {
+                        try {
+                            op.result = op.apply(map);
+                        } catch (Throwable t) {
+                            op.failure = t;
+                        }
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Operation<K, V> op : batch) {
+                if (op.failure != null)
+                    op.future.completeExceptionally(op.failure);
+                else
+                    op.future.complete(op.result);
+            }
+            batch.clear();
+        }
+        // fail what was queued before an interrupt closed the map
+        Operation<K, V> op;
+        while ((op = queue.poll()) != null) {
+            op.future.completeExceptionally(new IllegalStateException("map is closed"));
+        }
+    }
+
+    private static class Operation<K, V> {
+
+        private final int kind;
+
+        private final K key;
+
+        private final V value;
+
+        private final BiFunction function;
+
+        private final CompletableFuture<V> future = new CompletableFuture<V>();
+
+        private V result;
+
+        private Throwable failure;
+
+        Operation(int kind, K key, V value, BiFunction function) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+            this.function = function;
+        }
+
+        V apply(RedBlackHashTreeMap<K, V> map) {
+            switch (kind) {
+            case PUT:
+                return map.put(key, value);
+            case PUT_IF_ABSENT:
+                return map.putIfAbsent(key, value);
+            case REMOVE:
+                return map.remove(key);
+            case COMPUTE:
+                return (V) map.compute(key, function);
+            case MERGE:
+                return (V) map.merge(key, value, function);
+            default:
+                throw new IllegalStateException("unknown operation " + kind);
+            }
+        }
+    }
+}
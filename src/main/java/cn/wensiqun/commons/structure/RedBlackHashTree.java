@@ -14,7 +14,7 @@ import java.util.Map;
  * @see structure.BinaryTree
  * @see structure.BinarySearchTree
  */
-public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
+public class RedBlackHashTree<K, V> implements RedBlackHashTreeBucket<K, V>
 {
     /**
      * The left child of this node, or EMPTY
@@ -39,6 +39,12 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      */
     HashMap<K, V> valueMap;
 
+    /**
+     * The number of entries in the buckets of this subtree, so that a
+     * split knows the size of its halves
+     */
+    int weight;
+
     /**
      * The color of this node - red or black (not red)
      */
@@ -72,14 +78,28 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      * @post constructs a single node red-black tree
      */
     public RedBlackHashTree(K key, V v)
+    {
+        this(compareObjOf(key), key, v, new HashMap<K, V>());
+    }
+
+    /**
+     * Constructs a single node red-black tree of compareObj whose bucket
+     * is valueMap, which receives key/v
+     *
+     * @param valueMap an empty map, such as a LinkedHashMap to keep order
+     */
+    RedBlackHashTree(Comparable compareObj, K key, V v, HashMap<K, V> valueMap)
     {
         //Assert.pre(v != null, "Red-black tree values must be non-null.");
-        valueMap = new HashMap<K, V>();
+        this.valueMap = valueMap;
         valueMap.put(key, v);
-        compareObj = key.getComparableObject();
+        this.weight = 1;
+        this.compareObj = compareObj;
         parent = null;
         left = right = new RedBlackHashTree<K, V>();
         isRed = false;  // roots of tree should be colored black
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.nodesCreated.increment();
     }
 
     /**
@@ -320,6 +340,8 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      */
     private void rotateRight()
     {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.rotateRight.increment();
         // all of this information must be grabbed before
         // any of the references are set.  Draw a diagram for help
         RedBlackHashTree<K, V> parent = parent();
@@ -340,6 +362,10 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
             else              parent.setRight(newRoot);
         } 
         //else Assert.post(newRoot.isRoot(),"Rotate at root preserves root.");
+
+        // the subtree keeps its entries; only this node lost a side
+        newRoot.weight = weight;
+        updateWeight();
     }
 
     /**
@@ -352,6 +378,8 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      */
     private void rotateLeft()
     {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.rotateLeft.increment();
         // all of this information must be grabbed before
         // any of the references are set.  Draw a diagram for help
         RedBlackHashTree<K, V> parent = parent();  // could be null
@@ -371,6 +399,10 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
             else               parent.setLeft(newRoot);
         } 
         //else Assert.post(newRoot.isRoot(),"Left rotate at root preserves root.");
+
+        // the subtree keeps its entries; only this node lost a side
+        newRoot.weight = weight;
+        updateWeight();
     }
 
     /**
@@ -407,13 +439,14 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
         	return new OperatorResult<K, V>(new RedBlackHashTree<K, V>(key, val), 1);
 
         // decide to insert value to left or right of root:
-        int compareRes = ((Comparable)key.getComparableObject()).compareTo(compareObj);
+        int compareRes = compareObjOf(key).compareTo(compareObj);
         if (compareRes < 0) {
 
             // if to left and no left child, we insert value as leaf 
             if (left().isEmpty()) {
                 RedBlackHashTree<K, V> result = new RedBlackHashTree<K, V>(key, val);
                 setLeft(result);
+                addWeight(1);
                 return new OperatorResult<K, V>(result, 1);
             } else {
                 // recursively insert to left
@@ -425,6 +458,7 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
             if (right().isEmpty()) {
                 RedBlackHashTree<K, V> result = new RedBlackHashTree<K, V>(key, val);
                 setRight(result);
+                addWeight(1);
                 return new OperatorResult<K, V>(result, 1);
             } else {
                 // recursively insert to right
@@ -433,6 +467,7 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
         } else {
         	int oldSize= value().size();
         	value().put(key, val);
+        	addWeight(value().size() - oldSize);
         	return new OperatorResult<K, V>(this, value().size() - oldSize);
         }
     }
@@ -446,6 +481,8 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      */
     void redFixup()
     {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.redFixup.increment();
         if (isRoot() || !parent().isRed()) {
             // ensure that root is black (might have been insertion pt)
             root().setBlack();
@@ -525,16 +562,27 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      * @post the value is removed; resulting tree is returned
      */
     public OperatorResult<K, V> remove(K key)
+    {
+        return remove(compareObjOf(key), key);
+    }
+
+    /**
+     * Removes key from the bucket of compareObj, which is the compare
+     * object of key
+     *
+     */
+    OperatorResult<K, V> remove(Comparable compareObj, K key)
     {
         // find the target node - the node whose value is removed
-        RedBlackHashTree<K, V> target = locate(key);
+        RedBlackHashTree<K, V> target = locate(compareObj);
         
-        if (target == null || target.isEmpty()) 
+        if (target == null || target.isEmpty() || !target.value().containsKey(key)) 
         	return new OperatorResult<K, V>(root(), null);
 
         V value;
         if(target.value().size() > 1) {
         	value = target.value().remove(key);
+        	target.addWeight(-1);
         	return new OperatorResult<K, V>(root(), value);
         } else {
         	value = target.value().get(key);
@@ -559,6 +607,7 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
             // freeNode is predecessor
         }
 
+        unweigh(target, freeNode);
         target.valueMap = freeNode.valueMap; // move value reference
         target.compareObj = freeNode.compareObj;//move compareObj reference
 
@@ -590,6 +639,8 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
         if (freeNode.isBlack()) 
         	child.blackFixup();
         
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.nodesFreed.increment();
         return new OperatorResult<K, V>(result.root(), value);
     }
 
@@ -607,6 +658,8 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
     */
     void blackFixup()
     {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.blackFixup.increment();
         // if root - we're actually balanced; if red, set to black
         if (isRoot() || isRed())
         {
@@ -732,7 +785,7 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
     {
         if (isEmpty()) 
         	return null;
-        int relation = key.getComparableObject().compareTo(compareObj);
+        int relation = compareObjOf(key).compareTo(compareObj);
         if (relation == 0) 
         	return this;
         if (relation < 0) 
@@ -790,7 +843,7 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      */
     public boolean consistency()
     {
-        return/* wellConnected(null) &&*/ redConsistency() && blackConsistency();
+        return/* wellConnected(null) &&*/ redConsistency() && blackConsistency() && weightConsistency();
     }
 
     /**
@@ -799,13 +852,68 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
      * @pre tree is black-height balanced
      * @post returns the black height of this subtree
      */
-    private int blackHeight()
+    int blackHeight()
     {
         if (isEmpty()) return 0;
         if (isBlack()) return 1 + left().blackHeight();
         else return  left().blackHeight();
     }
 
+    /**
+     * Recomputes the weight of this node from its bucket and children.
+     *
+     * @pre the weights of the children are right
+     */
+    void updateWeight()
+    {
+        weight = valueMap == null ? 0 : valueMap.size() + left.weight + right.weight;
+    }
+
+    /**
+     * Adds delta to the weight of this node and of its ancestors, after
+     * delta entries were put into (or, if negative, taken from) its bucket
+     * or subtree.
+     */
+    void addWeight(int delta)
+    {
+        for (RedBlackHashTree<K, V> p = this; p != null; p = p.parent) {
+            p.weight += delta;
+        }
+    }
+
+    /**
+     * Takes the entries of target off the weights of its ancestors before
+     * target is deleted; if freeNode, which is to be unlinked in its place,
+     * is another node, its bucket moves up into target, so the nodes in
+     * between lose that bucket instead.
+     *
+     * @pre target is not EMPTY; freeNode is target or its predecessor
+     */
+    static <K, V> void unweigh(RedBlackHashTree<K, V> target, RedBlackHashTree<K, V> freeNode)
+    {
+        if (freeNode == target) {
+            if (target.parent != null)
+                target.parent.addWeight(-target.valueMap.size());
+            return;
+        }
+        int moved = freeNode.valueMap.size();
+        for (RedBlackHashTree<K, V> p = freeNode.parent; p != target; p = p.parent) {
+            p.weight -= moved;
+        }
+        target.addWeight(-target.valueMap.size());
+    }
+
+    /**
+     * Returns true if the weight of every node of this subtree is the
+     * number of entries below it.
+     */
+    boolean weightConsistency()
+    {
+        if (valueMap == null) return weight == 0;
+        return left.weightConsistency() && right.weightConsistency()
+            && weight == valueMap.size() + left.weight + right.weight;
+    }
+
     /**
      * Returns true if no red node in subtree has red children
      * 
@@ -948,6 +1056,260 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
 		return compareObj;
 	}
 
+    /**
+     * The key-level methods of a tree order keys by their own compare
+     * object; a map with an extractor finds the compare object itself.
+     *
+     * @pre key is a RedBlackHashTreeComparable
+     * @return the compare object of key
+     */
+    static Comparable compareObjOf(Object key)
+    {
+        return ((RedBlackHashTreeComparable) key).getComparableObject();
+    }
+
+    /**
+     * Detaches a subtree so it can be used as a tree of its own: the root
+     * loses its parent and is colored black.
+     *
+     * @return the subtree, or null if it is empty
+     */
+    private static <K, V> RedBlackHashTree<K, V> detach(RedBlackHashTree<K, V> t)
+    {
+        if (t == null || t.isEmpty())
+            return null;
+        t.parent = null;
+        t.isRed = false;
+        return t;
+    }
+
+    /**
+     * Relinks node over the given children, whatever its bucket holds;
+     * used to assemble a tree bottom-up.
+     *
+     * @pre left and right are already assembled, or null for EMPTY
+     * @post node is a root of the given color over left and right
+     */
+    static <K, V> void relink(RedBlackHashTree<K, V> node,
+            RedBlackHashTree<K, V> left, RedBlackHashTree<K, V> right, boolean isRed)
+    {
+        RedBlackHashTree<K, V> empty = new RedBlackHashTree<K, V>();
+        node.parent = null;
+        node.left = left == null ? empty : left;
+        node.right = right == null ? empty : right;
+        node.left.parent = node;
+        node.right.parent = node;
+        node.isRed = isRed;
+        node.updateWeight();
+    }
+
+    /**
+     * Joins two trees through a middle node, in time proportional to the
+     * difference of their black heights, which are measured first.
+     *
+     * @pre every compare object of left is less than that of middle,
+     *      which is less than every compare object of right; left and
+     *      right are roots, EMPTY or null; middle is not part of them
+     * @post returns the root of a red-black tree of all three
+     * @see #join(RedBlackHashTree, int, RedBlackHashTree, RedBlackHashTree, int)
+     */
+    static <K, V> RedBlackHashTree<K, V> join(RedBlackHashTree<K, V> left,
+            RedBlackHashTree<K, V> middle, RedBlackHashTree<K, V> right)
+    {
+        left = detach(left);
+        right = detach(right);
+        join(left, left == null ? 0 : left.blackHeight(), middle, right, right == null ? 0 : right.blackHeight());
+        return middle.root();
+    }
+
+    /**
+     * Joins two detached trees of known black height through a middle
+     * node, in time proportional to the difference of the heights.  The
+     * middle node is walked down the spine of the higher tree to the first
+     * black node of the black height of the lower tree, which it replaces
+     * as a red node holding it and the lower tree as children; a red-red
+     * conflict is then repaired as after an insertion.  The spine above
+     * middle gains the entries of middle and of the lower tree.
+     *
+     * @pre as for {@link #join(RedBlackHashTree, RedBlackHashTree, RedBlackHashTree)},
+     *      and left and right are detached, of black height leftHeight and
+     *      rightHeight
+     * @post middle is part of a red-black tree of all three, whose root
+     *       is middle.root(); returns its black height
+     */
+    private static <K, V> int join(RedBlackHashTree<K, V> left, int leftHeight,
+            RedBlackHashTree<K, V> middle, RedBlackHashTree<K, V> right, int rightHeight)
+    {
+        middle.parent = null;
+        middle.left = new RedBlackHashTree<K, V>();
+        middle.right = new RedBlackHashTree<K, V>();
+        middle.left.parent = middle;
+        middle.right.parent = middle;
+        if (leftHeight == rightHeight) {
+            if (left != null) middle.setLeft(left);
+            if (right != null) middle.setRight(right);
+            middle.setBlack();
+            middle.updateWeight();
+            return leftHeight + 1;
+        }
+
+        boolean descendRight = leftHeight > rightHeight;
+        RedBlackHashTree<K, V> taller = descendRight ? left : right;
+        int target = descendRight ? rightHeight : leftHeight;
+        RedBlackHashTree<K, V> lower = descendRight ? right : left;
+        // c walks down the inner spine of the taller tree; height is the
+        // black height of c
+        RedBlackHashTree<K, V> parent = null;
+        RedBlackHashTree<K, V> c = taller;
+        int height = descendRight ? leftHeight : rightHeight;
+        while (!(c.isEmpty() || (c.isBlack() && height == target))) {
+            if (c.isBlack())
+                height--;
+            parent = c;
+            c = descendRight ? c.right() : c.left();
+        }
+        if (descendRight) {
+            if (!c.isEmpty()) middle.setLeft(c);
+            if (lower != null) middle.setRight(lower);
+            parent.setRight(middle);
+        } else {
+            if (lower != null) middle.setLeft(lower);
+            if (!c.isEmpty()) middle.setRight(c);
+            parent.setLeft(middle);
+        }
+        middle.updateWeight();
+        parent.addWeight(middle.weight - (c.isEmpty() ? 0 : c.weight));
+        // the lower tree, or the EMPTY in its place, keeps its black height
+        // and color through the repair, so the height of the whole tree
+        // follows from the black nodes above it
+        RedBlackHashTree<K, V> anchor = descendRight ? middle.right : middle.left;
+        middle.setRed();
+        middle.redFixup();
+        int joined = target;
+        for (RedBlackHashTree<K, V> p = anchor; p.parent != null; p = p.parent) {
+            if (p.parent.isBlack())
+                joined++;
+        }
+        return joined;
+    }
+
+    /**
+     * Joins two trees, in logarithmic time, by splitting the least node
+     * off right and joining through it.
+     *
+     * @pre every compare object of left is less than every one of right
+     * @post returns the root of a red-black tree of both, or null if
+     *       both are empty
+     */
+    static <K, V> RedBlackHashTree<K, V> join(RedBlackHashTree<K, V> left,
+            RedBlackHashTree<K, V> right)
+    {
+        if (right == null || right.isEmpty())
+            return detach(left);
+        RedBlackHashTree<K, V> least = right;
+        while (!least.left().isEmpty())
+            least = least.left();
+        Split<K, V> split = split(right, least.compareObj);
+        left = detach(left);
+        join(left, left == null ? 0 : left.blackHeight(), split.middle, split.right, split.rightHeight);
+        return split.middle.root();
+    }
+
+    /**
+     * Splits a tree at compareObj into the trees of the lesser and the
+     * greater compare objects and the node of compareObj itself, in
+     * logarithmic time: each node on the search path is joined, together
+     * with its subtree on the far side, onto the matching half.  The black
+     * heights of the subtrees follow from that of the root on the way
+     * down, and each join returns that of its result, so the joins cost
+     * the differences of the heights, which add up to the height of t.
+     * The nodes are reused, so the tree is consumed.
+     *
+     * @pre t is a root, EMPTY or null
+     * @post returns the two halves (roots or null) with their black
+     *       heights and the node of compareObj, detached, or null if there
+     *       was none
+     */
+    static <K, V> Split<K, V> split(RedBlackHashTree<K, V> t, Comparable compareObj)
+    {
+        t = detach(t);
+        return split(t, t == null ? 0 : t.blackHeight(), compareObj);
+    }
+
+    /**
+     * @pre t is detached and of black height height, or null
+     */
+    private static <K, V> Split<K, V> split(RedBlackHashTree<K, V> t, int height, Comparable compareObj)
+    {
+        if (t == null)
+            return new Split<K, V>(null, 0, null, null, 0);
+        RedBlackHashTree<K, V> left = t.left().isEmpty() ? null : t.left();
+        RedBlackHashTree<K, V> right = t.right().isEmpty() ? null : t.right();
+        // t is black, and a red child gains a black level when detached
+        int leftHeight = left == null ? 0 : left.isRed() ? height : height - 1;
+        int rightHeight = right == null ? 0 : right.isRed() ? height : height - 1;
+        int relation = compareObj.compareTo(t.compareObj);
+        if (relation == 0) {
+            t.parent = null;
+            t.left = t.right = new RedBlackHashTree<K, V>();
+            t.isRed = false;
+            t.updateWeight();
+            return new Split<K, V>(detach(left), leftHeight, t, detach(right), rightHeight);
+        }
+        Split<K, V> split;
+        if (relation < 0) {
+            split = split(detach(left), leftHeight, compareObj);
+            right = detach(right);
+            split.rightHeight = join(split.right, split.rightHeight, t, right, rightHeight);
+            split.right = t.root();
+        } else {
+            split = split(detach(right), rightHeight, compareObj);
+            left = detach(left);
+            split.leftHeight = join(left, leftHeight, t, split.left, split.leftHeight);
+            split.left = t.root();
+        }
+        return split;
+    }
+
+    /**
+     * The outcome of {@link RedBlackHashTree#split}
+     */
+    static class Split<K, V> {
+
+        RedBlackHashTree<K, V> left;
+
+        int leftHeight;
+
+        RedBlackHashTree<K, V> middle;
+
+        RedBlackHashTree<K, V> right;
+
+        int rightHeight;
+
+        Split(RedBlackHashTree<K, V> left, int leftHeight, RedBlackHashTree<K, V> middle,
+                RedBlackHashTree<K, V> right, int rightHeight) {
+            this.left = left;
+            this.leftHeight = leftHeight;
+            this.middle = middle;
+            this.right = right;
+            this.rightHeight = rightHeight;
+        }
+
+        /**
+         * @return the number of entries of the half before the split point
+         */
+        int leftWeight() {
+            return left == null ? 0 : left.weight;
+        }
+
+        /**
+         * @return the number of entries of the half after the split point
+         */
+        int rightWeight() {
+            return right == null ? 0 : right.weight;
+        }
+    }
+
 	/**
      * Returns string representation of red-black tree.
      *
@@ -960,7 +1322,7 @@ public class RedBlackHashTree<K extends RedBlackHashTreeComparable, V>
         else         return "[" + left() + value() + right() +"]";
     }
     
-    public static class OperatorResult<K extends RedBlackHashTreeComparable, V> {
+    public static class OperatorResult<K, V> {
     	
     	private RedBlackHashTree<K, V> tree;
     	
@@ -0,0 +1,577 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * An engine that keeps buckets in a B+tree of wide nodes.  Every node
+ * holds up to {@link #ORDER} compare objects in one array, so a lookup
+ * binary searches a contiguous block per level and touches about
+ * log<sub>32</sub> n nodes rather than the log<sub>2</sub> n of the
+ * red-black tree.  Buckets live only in the leaves, which are chained to
+ * their neighbours: iteration and the step past the end of a leaf in
+ * ceiling and floor follow the chain instead of climbing the tree.
+ * <p>
+ * Nodes other than the root are kept at least half full; a removal that
+ * leaves one short borrows from or merges with a sibling.
+ */
+public class RedBlackHashTreeBPlusTreeEngine<K, V> extends AbstractRedBlackHashTreeEngine<K, V> {
+
+    /**
+     * The maximum number of compare objects in a node
+     */
+    public static final int ORDER = 64;
+
+    private static final int MIN = ORDER / 2;
+
+    private Node root;
+
+    private Leaf<K, V> head;
+
+    private Leaf<K, V> tail;
+
+    /**
+     * The number of inner levels above the leaves
+     */
+    private int height;
+
+    private int count;
+
+    public RedBlackHashTreeBPlusTreeEngine()
+    {
+        this(null);
+    }
+
+    public RedBlackHashTreeBPlusTreeEngine(Function<? super K, ? extends Comparable> extractor)
+    {
+        super(extractor);
+        clear();
+    }
+
+    /**
+     * @return the number of inner levels above the leaves
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    private static class Node {
+
+        /**
+         * One spare slot holds the overflow until the node splits
+         */
+        final Comparable[] keys = new Comparable[ORDER + 1];
+
+        int size;
+    }
+
+    /**
+     * Child i holds the compare objects from keys[i - 1] up to, but not
+     * including, keys[i].
+     */
+    private static final class Inner extends Node {
+
+        final Node[] children = new Node[ORDER + 2];
+    }
+
+    private static final class Leaf<K, V> extends Node {
+
+        final Bucket<K, V>[] buckets = new Bucket[ORDER + 1];
+
+        Leaf<K, V> prev;
+
+        Leaf<K, V> next;
+    }
+
+    /**
+     * @return the first index whose compare object is not less than c
+     */
+    private static int lowerBound(Node node, Comparable c)
+    {
+        int lo = 0;
+        int hi = node.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (node.keys[mid].compareTo(c) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the first index whose compare object is greater than c
+     */
+    private static int upperBound(Node node, Comparable c)
+    {
+        int lo = 0;
+        int hi = node.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (node.keys[mid].compareTo(c) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static void insertAt(Object[] array, int size, int i, Object value)
+    {
+        System.arraycopy(array, i, array, i + 1, size - i);
+        array[i] = value;
+    }
+
+    private static void removeAt(Object[] array, int size, int i)
+    {
+        System.arraycopy(array, i + 1, array, i, size - i - 1);
+        array[size - 1] = null;
+    }
+
+    /**
+     * @return the leaf c belongs in; path and index, when given, receive
+     *         the inner nodes passed and the child taken at each
+     */
+    private Leaf<K, V> descend(Comparable c, Inner[] path, int[] index)
+    {
+        Node node = root;
+        for (int level = 0; level < height; level++) {
+            Inner inner = (Inner) node;
+            int i = upperBound(inner, c);
+            if (path != null) {
+                path[level] = inner;
+                index[level] = i;
+            }
+            node = inner.children[i];
+        }
+        return (Leaf<K, V>) node;
+    }
+
+    private static boolean matches(Node node, int i, Comparable c)
+    {
+        return i < node.size && node.keys[i].compareTo(c) == 0;
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        Comparable compareObj = compareObjOf(key);
+        Inner[] path = new Inner[height];
+        int[] index = new int[height];
+        Leaf<K, V> leaf = descend(compareObj, path, index);
+        int i = lowerBound(leaf, compareObj);
+        if (matches(leaf, i, compareObj)) {
+            HashMap<K, V> bucket = leaf.buckets[i].valueMap;
+            int before = bucket.size();
+            V old = bucket.put(key, value);
+            count += bucket.size() - before;
+            return old;
+        }
+        Bucket<K, V> bucket = new Bucket<K, V>(compareObj, new HashMap<K, V>());
+        bucket.valueMap.put(key, value);
+        count++;
+        insertAt(leaf.keys, leaf.size, i, compareObj);
+        insertAt(leaf.buckets, leaf.size, i, bucket);
+        leaf.size++;
+        if (leaf.size > ORDER) {
+            split(leaf, path, index);
+        }
+        return null;
+    }
+
+    /**
+     * Splits an overflowing leaf, and the ancestors the new separators
+     * overflow in turn.
+     */
+    private void split(Leaf<K, V> leaf, Inner[] path, int[] index)
+    {
+        Leaf<K, V> right = new Leaf<K, V>();
+        int half = leaf.size / 2;
+        right.size = leaf.size - half;
+        System.arraycopy(leaf.keys, half, right.keys, 0, right.size);
+        System.arraycopy(leaf.buckets, half, right.buckets, 0, right.size);
+        for (int i = half; i < leaf.size; i++) {
+            leaf.keys[i] = null;
+            leaf.buckets[i] = null;
+        }
+        leaf.size = half;
+        right.next = leaf.next;
+        if (right.next != null) {
+            right.next.prev = right;
+        } else {
+            tail = right;
+        }
+        right.prev = leaf;
+        leaf.next = right;
+
+        Comparable separator = right.keys[0];
+        Node child = right;
+        for (int level = height - 1; level >= 0; level--) {
+            Inner parent = path[level];
+            insertAt(parent.keys, parent.size, index[level], separator);
+            insertAt(parent.children, parent.size + 1, index[level] + 1, child);
+            parent.size++;
+            if (parent.size <= ORDER) {
+                return;
+            }
+            Inner sibling = new Inner();
+            int mid = parent.size / 2;
+            separator = parent.keys[mid];
+            sibling.size = parent.size - mid - 1;
+            System.arraycopy(parent.keys, mid + 1, sibling.keys, 0, sibling.size);
+            System.arraycopy(parent.children, mid + 1, sibling.children, 0, sibling.size + 1);
+            for (int i = mid; i < parent.size; i++) {
+                parent.keys[i] = null;
+                parent.children[i + 1] = null;
+            }
+            parent.size = mid;
+            child = sibling;
+        }
+        Inner newRoot = new Inner();
+        newRoot.keys[0] = separator;
+        newRoot.children[0] = root;
+        newRoot.children[1] = child;
+        newRoot.size = 1;
+        root = newRoot;
+        height++;
+    }
+
+    @Override
+    public V remove(K key)
+    {
+        Comparable compareObj = compareObjOf(key);
+        Inner[] path = new Inner[height];
+        int[] index = new int[height];
+        Leaf<K, V> leaf = descend(compareObj, path, index);
+        int i = lowerBound(leaf, compareObj);
+        if (!matches(leaf, i, compareObj) || !leaf.buckets[i].valueMap.containsKey(key)) {
+            return null;
+        }
+        HashMap<K, V> bucket = leaf.buckets[i].valueMap;
+        V old = bucket.remove(key);
+        count--;
+        if (bucket.isEmpty()) {
+            delete(leaf, i, path, index);
+        }
+        return old;
+    }
+
+    @Override
+    public Map<K, V> removeMap(Comparable compareObj)
+    {
+        Inner[] path = new Inner[height];
+        int[] index = new int[height];
+        Leaf<K, V> leaf = descend(compareObj, path, index);
+        int i = lowerBound(leaf, compareObj);
+        if (!matches(leaf, i, compareObj)) {
+            return null;
+        }
+        HashMap<K, V> bucket = leaf.buckets[i].valueMap;
+        count -= bucket.size();
+        delete(leaf, i, path, index);
+        return bucket;
+    }
+
+    /**
+     * Removes bucket i of leaf, then refills the nodes left less than half
+     * full from the leaf upwards.
+     */
+    private void delete(Leaf<K, V> leaf, int i, Inner[] path, int[] index)
+    {
+        removeAt(leaf.keys, leaf.size, i);
+        removeAt(leaf.buckets, leaf.size, i);
+        leaf.size--;
+        Node node = leaf;
+        for (int level = height - 1; level >= 0; level--) {
+            if (node.size >= MIN) {
+                return;
+            }
+            Inner parent = path[level];
+            if (!refill(parent, index[level])) {
+                return;
+            }
+            node = parent;
+        }
+        if (height > 0 && root.size == 0) {
+            root = ((Inner) root).children[0];
+            height--;
+        }
+    }
+
+    /**
+     * Refills child at of parent from a sibling, or merges it with one.
+     *
+     * @return whether parent lost a compare object to a merge
+     */
+    private boolean refill(Inner parent, int at)
+    {
+        if (at > 0 && parent.children[at - 1].size > MIN) {
+            borrowFromLeft(parent, at);
+            return false;
+        }
+        if (at < parent.size && parent.children[at + 1].size > MIN) {
+            borrowFromRight(parent, at);
+            return false;
+        }
+        merge(parent, at > 0 ? at - 1 : at);
+        return true;
+    }
+
+    private void borrowFromLeft(Inner parent, int at)
+    {
+        Node node = parent.children[at];
+        Node left = parent.children[at - 1];
+        int last = left.size - 1;
+        if (node instanceof Leaf) {
+            Leaf<K, V> leaf = (Leaf<K, V>) node;
+            Leaf<K, V> leftLeaf = (Leaf<K, V>) left;
+            insertAt(leaf.keys, leaf.size, 0, leftLeaf.keys[last]);
+            insertAt(leaf.buckets, leaf.size, 0, leftLeaf.buckets[last]);
+            leftLeaf.buckets[last] = null;
+            parent.keys[at - 1] = leaf.keys[0];
+        } else {
+            Inner inner = (Inner) node;
+            Inner leftInner = (Inner) left;
+            insertAt(inner.keys, inner.size, 0, parent.keys[at - 1]);
+            insertAt(inner.children, inner.size + 1, 0, leftInner.children[last + 1]);
+            leftInner.children[last + 1] = null;
+            parent.keys[at - 1] = left.keys[last];
+        }
+        left.keys[last] = null;
+        left.size--;
+        node.size++;
+    }
+
+    private void borrowFromRight(Inner parent, int at)
+    {
+        Node node = parent.children[at];
+        Node right = parent.children[at + 1];
+        if (node instanceof Leaf) {
+            Leaf<K, V> leaf = (Leaf<K, V>) node;
+            Leaf<K, V> rightLeaf = (Leaf<K, V>) right;
+            leaf.keys[leaf.size] = rightLeaf.keys[0];
+            leaf.buckets[leaf.size] = rightLeaf.buckets[0];
+            removeAt(rightLeaf.buckets, right.size, 0);
+            removeAt(right.keys, right.size, 0);
+            parent.keys[at] = right.keys[0];
+        } else {
+            Inner inner = (Inner) node;
+            Inner rightInner = (Inner) right;
+            inner.keys[inner.size] = parent.keys[at];
+            inner.children[inner.size + 1] = rightInner.children[0];
+            parent.keys[at] = right.keys[0];
+            removeAt(rightInner.children, right.size + 1, 0);
+            removeAt(right.keys, right.size, 0);
+        }
+        right.size--;
+        node.size++;
+    }
+
+    /**
+     * Merges child i + 1 of parent into child i.
+     */
+    private void merge(Inner parent, int i)
+    {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+        if (left instanceof Leaf) {
+            Leaf<K, V> leftLeaf = (Leaf<K, V>) left;
+            Leaf<K, V> rightLeaf = (Leaf<K, V>) right;
+            System.arraycopy(right.keys, 0, left.keys, left.size, right.size);
+            System.arraycopy(rightLeaf.buckets, 0, leftLeaf.buckets, left.size, right.size);
+            left.size += right.size;
+            leftLeaf.next = rightLeaf.next;
+            if (leftLeaf.next != null) {
+                leftLeaf.next.prev = leftLeaf;
+            } else {
+                tail = leftLeaf;
+            }
+        } else {
+            Inner leftInner = (Inner) left;
+            left.keys[left.size] = parent.keys[i];
+            System.arraycopy(right.keys, 0, left.keys, left.size + 1, right.size);
+            System.arraycopy(((Inner) right).children, 0, leftInner.children, left.size + 1, right.size + 1);
+            left.size += right.size + 1;
+        }
+        removeAt(parent.keys, parent.size, i);
+        removeAt(parent.children, parent.size + 1, i + 1);
+        parent.size--;
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> getBucket(Comparable compareObj)
+    {
+        Leaf<K, V> leaf = descend(compareObj, null, null);
+        int i = lowerBound(leaf, compareObj);
+        return matches(leaf, i, compareObj) ? leaf.buckets[i] : null;
+    }
+
+    @Override
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public void clear()
+    {
+        head = tail = new Leaf<K, V>();
+        root = head;
+        height = 0;
+        count = 0;
+    }
+
+    /**
+     * @return bucket i of leaf, or the first of the next leaf if i is past
+     *         the end
+     */
+    private static <K, V> Bucket<K, V> atOrAfter(Leaf<K, V> leaf, int i)
+    {
+        if (i < leaf.size) {
+            return leaf.buckets[i];
+        }
+        return leaf.next == null ? null : leaf.next.buckets[0];
+    }
+
+    /**
+     * @return bucket i of leaf, or the last of the previous leaf if i is
+     *         before the start
+     */
+    private static <K, V> Bucket<K, V> atOrBefore(Leaf<K, V> leaf, int i)
+    {
+        if (i >= 0) {
+            return leaf.buckets[i];
+        }
+        return leaf.prev == null ? null : leaf.prev.buckets[leaf.prev.size - 1];
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> firstNode()
+    {
+        return head.size == 0 ? null : head.buckets[0];
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> lastNode()
+    {
+        return tail.size == 0 ? null : tail.buckets[tail.size - 1];
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> ceilingNode(Comparable compareObj)
+    {
+        Leaf<K, V> leaf = descend(compareObj, null, null);
+        return atOrAfter(leaf, lowerBound(leaf, compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> higherNode(Comparable compareObj)
+    {
+        Leaf<K, V> leaf = descend(compareObj, null, null);
+        return atOrAfter(leaf, upperBound(leaf, compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> floorNode(Comparable compareObj)
+    {
+        Leaf<K, V> leaf = descend(compareObj, null, null);
+        return atOrBefore(leaf, upperBound(leaf, compareObj) - 1);
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> lowerNode(Comparable compareObj)
+    {
+        Leaf<K, V> leaf = descend(compareObj, null, null);
+        return atOrBefore(leaf, lowerBound(leaf, compareObj) - 1);
+    }
+
+    /**
+     * Walks the leaf chain from one descent rather than stepping bucket by
+     * bucket through {@link #next}.
+     */
+    @Override
+    public Iterator<RedBlackHashTreeBucket<K, V>> subIterator(Comparable fromCompareObj, boolean fromInclusive,
+            Comparable toCompareObj, boolean toInclusive)
+    {
+        return new LeafIterator(fromCompareObj, fromInclusive, toCompareObj, toInclusive);
+    }
+
+    private class LeafIterator implements Iterator<RedBlackHashTreeBucket<K, V>> {
+
+        private final Comparable end;
+
+        private final boolean includeEnd;
+
+        private final boolean isReverse;
+
+        private Leaf<K, V> leaf;
+
+        private int index;
+
+        LeafIterator(Comparable start, boolean includeStart, Comparable end, boolean includeEnd)
+        {
+            this.end = end;
+            this.includeEnd = includeEnd;
+            isReverse = start.compareTo(end) > 0;
+            leaf = descend(start, null, null);
+            if (isReverse) {
+                index = (includeStart ? upperBound(leaf, start) : lowerBound(leaf, start)) - 1;
+                if (index < 0) {
+                    leaf = leaf.prev;
+                    index = leaf == null ? 0 : leaf.size - 1;
+                }
+            } else {
+                index = includeStart ? lowerBound(leaf, start) : upperBound(leaf, start);
+                if (index == leaf.size) {
+                    leaf = leaf.next;
+                    index = 0;
+                }
+            }
+            if (leaf != null && !inRange(leaf.keys[index])) {
+                leaf = null;
+            }
+        }
+
+        private boolean inRange(Comparable compareObj)
+        {
+            int comp = compareObj.compareTo(end);
+            if (isReverse) {
+                comp = -comp;
+            }
+            return comp < 0 || (comp == 0 && includeEnd);
+        }
+
+        public boolean hasNext()
+        {
+            return leaf != null;
+        }
+
+        public RedBlackHashTreeBucket<K, V> next()
+        {
+            if (leaf == null) {
+                throw new NoSuchElementException();
+            }
+            Bucket<K, V> current = leaf.buckets[index];
+            if (isReverse) {
+                if (--index < 0) {
+                    leaf = leaf.prev;
+                    index = leaf == null ? 0 : leaf.size - 1;
+                }
+            } else if (++index == leaf.size) {
+                leaf = leaf.next;
+                index = 0;
+            }
+            if (leaf != null && !inRange(leaf.keys[index])) {
+                leaf = null;
+            }
+            return current;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.HashMap;
+
+/**
+ * The bucket of one compare object: the entries whose keys share it.
+ * Tree nodes are buckets, and so are the slots of the other engines.
+ */
+public interface RedBlackHashTreeBucket<K, V> {
+
+	public Comparable getCompareObj();
+
+	/**
+	 * @return the entries of the bucket, keyed by key
+	 */
+	public HashMap<K, V> value();
+
+}
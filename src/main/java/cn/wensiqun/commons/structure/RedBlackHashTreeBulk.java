@@ -0,0 +1,441 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+
+/**
+ * Fork/join bulk operations over the nodes of a {@link RedBlackHashTree}.
+ * <p>
+ * A task visits a subtree: near the root the left and right subtrees are
+ * handed to the pool and the bucket of the node is handled in between,
+ * deeper down the walk carries on sequentially.  Buckets are disjoint, so
+ * tasks never touch the same HashMap.  The tree shape is only read here;
+ * removals that empty buckets are settled afterwards by
+ * {@link #rebuild(RedBlackHashTree)}.
+ */
+final class RedBlackHashTreeBulk {
+
+    /**
+     * Recursion depth below which subtrees are handed to the pool
+     */
+    static final int FORK_DEPTH = 32 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism()) + 3;
+
+    private RedBlackHashTreeBulk() {
+    }
+
+    /**
+     * @return whether t is a sentinel; emptied buckets are not sentinels
+     *         while a removeIf is under way
+     */
+    private static boolean isSentinel(RedBlackHashTree<?, ?> t) {
+        return t == null || t.valueMap == null;
+    }
+
+    /**
+     * Visits the entries of a subtree in ascending order, combining the
+     * result of each bucket with those of the subtrees on either side.
+     * Walks are never serialized.
+     */
+    @SuppressWarnings("serial")
+    abstract static class Walk<K, V, R> extends RecursiveTask<R> {
+
+        private final RedBlackHashTree<K, V> node;
+
+        private final int depth;
+
+        Walk(RedBlackHashTree<K, V> node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+
+        abstract Walk<K, V, R> child(RedBlackHashTree<K, V> node, int depth);
+
+        /**
+         * Handles one bucket
+         */
+        abstract R visit(RedBlackHashTree<K, V> node);
+
+        /**
+         * Combines the results of adjacent parts, either of which may be null
+         */
+        abstract R combine(R left, R right);
+
+        /**
+         * Handles the result of the whole subtree of node, once its buckets
+         * are visited
+         */
+        R finish(RedBlackHashTree<K, V> node, R result) {
+            return result;
+        }
+
+        /**
+         * Handles the result of parts whose walk is abandoned because
+         * another part threw
+         */
+        void abandon(R result) {
+        }
+
+        @Override
+        protected R compute() {
+            if (isSentinel(node)) {
+                return null;
+            }
+            if (depth >= FORK_DEPTH) {
+                return walk(node);
+            }
+            Walk<K, V, R> left = child(node.left(), depth + 1);
+            Walk<K, V, R> right = child(node.right(), depth + 1);
+            right.fork();
+            R result = null;
+            try {
+                result = left.compute();
+                result = combine(result, visit(node));
+            } catch (Throwable e) {
+                // the forked half is settled before the failure leaves
+                abandon(result);
+                try {
+                    abandon(right.join());
+                } catch (Throwable suppressed) {
+                    if (suppressed != e)
+                        e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            R rightResult;
+            try {
+                rightResult = right.join();
+            } catch (Throwable e) {
+                abandon(result);
+                throw e;
+            }
+            return finish(node, combine(result, rightResult));
+        }
+
+        private R walk(RedBlackHashTree<K, V> t) {
+            if (isSentinel(t)) {
+                return null;
+            }
+            R result = null;
+            try {
+                result = walk(t.left());
+                result = combine(result, visit(t));
+                R rightResult = walk(t.right());
+                return finish(t, combine(result, rightResult));
+            } catch (Throwable e) {
+                abandon(result);
+                throw e;
+            }
+        }
+    }
+
+    static <K, V> void forEach(RedBlackHashTree<K, V> root,
+            final BiConsumer<? super K, ? super V> action) {
+        ForkJoinPool.commonPool().invoke(new ForEach<K, V>(root, 0, action));
+    }
+
+    @SuppressWarnings("serial")
+    private static class ForEach<K, V> extends Walk<K, V, Void> {
+
+        private final BiConsumer<? super K, ? super V> action;
+
+        ForEach(RedBlackHashTree<K, V> node, int depth, BiConsumer<? super K, ? super V> action) {
+            super(node, depth);
+            this.action = action;
+        }
+
+        Walk<K, V, Void> child(RedBlackHashTree<K, V> node, int depth) {
+            return new ForEach<K, V>(node, depth, action);
+        }
+
+        Void visit(RedBlackHashTree<K, V> node) {
+            for (Map.Entry<K, V> entry : node.value().entrySet()) {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+            return null;
+        }
+
+        Void combine(Void left, Void right) {
+            return null;
+        }
+    }
+
+    static <K, V, R> R reduce(RedBlackHashTree<K, V> root,
+            BiFunction<? super K, ? super V, ? extends R> transformer, BinaryOperator<R> reducer) {
+        return ForkJoinPool.commonPool().invoke(new Reduce<K, V, R>(root, 0, transformer, reducer));
+    }
+
+    @SuppressWarnings("serial")
+    private static class Reduce<K, V, R> extends Walk<K, V, R> {
+
+        private final BiFunction<? super K, ? super V, ? extends R> transformer;
+
+        private final BinaryOperator<R> reducer;
+
+        Reduce(RedBlackHashTree<K, V> node, int depth, BiFunction<? super K, ? super V, ? extends R> transformer,
+                BinaryOperator<R> reducer) {
+            super(node, depth);
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+
+        Walk<K, V, R> child(RedBlackHashTree<K, V> node, int depth) {
+            return new Reduce<K, V, R>(node, depth, transformer, reducer);
+        }
+
+        R visit(RedBlackHashTree<K, V> node) {
+            R result = null;
+            for (Map.Entry<K, V> entry : node.value().entrySet()) {
+                result = combine(result, transformer.apply(entry.getKey(), entry.getValue()));
+            }
+            return result;
+        }
+
+        R combine(R left, R right) {
+            if (left == null)
+                return right;
+            if (right == null)
+                return left;
+            return reducer.apply(left, right);
+        }
+    }
+
+    static <K, V> void replaceAll(RedBlackHashTree<K, V> root,
+            BiFunction<? super K, ? super V, ? extends V> function) {
+        ForkJoinPool.commonPool().invoke(new ReplaceAll<K, V>(root, 0, function));
+    }
+
+    @SuppressWarnings("serial")
+    private static class ReplaceAll<K, V> extends Walk<K, V, Void> {
+
+        private final BiFunction<? super K, ? super V, ? extends V> function;
+
+        ReplaceAll(RedBlackHashTree<K, V> node, int depth, BiFunction<? super K, ? super V, ? extends V> function) {
+            super(node, depth);
+            this.function = function;
+        }
+
+        Walk<K, V, Void> child(RedBlackHashTree<K, V> node, int depth) {
+            return new ReplaceAll<K, V>(node, depth, function);
+        }
+
+        Void visit(RedBlackHashTree<K, V> node) {
+            for (Map.Entry<K, V> entry : node.value().entrySet()) {
+                entry.setValue(function.apply(entry.getKey(), entry.getValue()));
+            }
+            return null;
+        }
+
+        Void combine(Void left, Void right) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the matching entries from every bucket, leaving emptied
+     * buckets in the tree; the weights of the nodes are kept right.  If
+     * filter throws, every part is settled before the exception is
+     * rethrown: removed still lists what was taken out, out of order,
+     * and the weights must be restored by {@link #rebuild(RedBlackHashTree)}.
+     *
+     * @param removed collects what is removed; entries are listed if it
+     *        was created to record them
+     */
+    static <K, V> void removeIf(RedBlackHashTree<K, V> root,
+            BiPredicate<? super K, ? super V> filter, Removed removed) {
+        removed.add(ForkJoinPool.commonPool().invoke(new Removal<K, V>(root, 0, filter, removed)));
+    }
+
+    /**
+     * What a removal took out
+     */
+    static class Removed {
+
+        Removed() {
+        }
+
+        Removed(boolean record) {
+            if (record)
+                entries = new ArrayList<Object[]>();
+        }
+
+        /**
+         * The number of entries removed
+         */
+        int count;
+
+        /**
+         * The number of buckets emptied
+         */
+        int buckets;
+
+        /**
+         * The compare object, key and value of each removed entry in
+         * ascending order, if recorded
+         */
+        List<Object[]> entries;
+
+        synchronized void add(Removed other) {
+            if (other == null)
+                return;
+            count += other.count;
+            buckets += other.buckets;
+            if (entries != null)
+                entries.addAll(other.entries);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class Removal<K, V> extends Walk<K, V, Removed> {
+
+        private final BiPredicate<? super K, ? super V> filter;
+
+        private final boolean record;
+
+        /**
+         * Collects the results of abandoned parts
+         */
+        private final Removed abandoned;
+
+        Removal(RedBlackHashTree<K, V> node, int depth, BiPredicate<? super K, ? super V> filter, Removed abandoned) {
+            super(node, depth);
+            this.filter = filter;
+            this.record = abandoned.entries != null;
+            this.abandoned = abandoned;
+        }
+
+        Walk<K, V, Removed> child(RedBlackHashTree<K, V> node, int depth) {
+            return new Removal<K, V>(node, depth, filter, abandoned);
+        }
+
+        Removed visit(RedBlackHashTree<K, V> node) {
+            Removed result = null;
+            try {
+                for (Iterator<Map.Entry<K, V>> it = node.value().entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<K, V> entry = it.next();
+                    if (filter.test(entry.getKey(), entry.getValue())) {
+                        if (result == null) {
+                            result = new Removed(record);
+                        }
+                        result.count++;
+                        if (record)
+                            result.entries.add(new Object[] { node.getCompareObj(), entry.getKey(), entry.getValue() });
+                        it.remove();
+                    }
+                }
+            } catch (Throwable e) {
+                abandon(result);
+                throw e;
+            }
+            if (result != null && node.value().isEmpty()) {
+                result.buckets = 1;
+            }
+            return result;
+        }
+
+        @Override
+        void abandon(Removed result) {
+            abandoned.add(result);
+        }
+
+        @Override
+        Removed finish(RedBlackHashTree<K, V> node, Removed result) {
+            if (result != null)
+                node.weight -= result.count;
+            return result;
+        }
+
+        Removed combine(Removed left, Removed right) {
+            if (left == null)
+                return right;
+            if (right == null)
+                return left;
+            left.count += right.count;
+            left.buckets += right.buckets;
+            if (left.entries != null)
+                left.entries.addAll(right.entries);
+            return left;
+        }
+    }
+
+    /**
+     * Rebuilds a tree without its emptied buckets, balanced from the
+     * surviving nodes in ascending order in linear time: the nodes are
+     * relinked as a complete binary tree whose incomplete lowest level,
+     * if any, is red.
+     *
+     * @return the new root, or null if no bucket survives
+     */
+    static <K, V> RedBlackHashTree<K, V> rebuild(RedBlackHashTree<K, V> root) {
+        List<RedBlackHashTree<K, V>> nodes = new ArrayList<RedBlackHashTree<K, V>>();
+        collect(root, nodes);
+        return balance(nodes);
+    }
+
+    /**
+     * Rebuilds one tree of the surviving nodes of several trees whose
+     * compare objects are disjoint, such as the pieces left of trees whose
+     * split and join was cut short.
+     *
+     * @return the new root, or null if no bucket survives
+     */
+    static <K, V> RedBlackHashTree<K, V> rebuild(List<RedBlackHashTree<K, V>> roots) {
+        List<RedBlackHashTree<K, V>> nodes = new ArrayList<RedBlackHashTree<K, V>>();
+        for (RedBlackHashTree<K, V> root : roots) {
+            collect(root, nodes);
+        }
+        Collections.sort(nodes, new Comparator<RedBlackHashTree<K, V>>() {
+            public int compare(RedBlackHashTree<K, V> a, RedBlackHashTree<K, V> b) {
+                return a.getCompareObj().compareTo(b.getCompareObj());
+            }
+        });
+        return balance(nodes);
+    }
+
+    private static <K, V> RedBlackHashTree<K, V> balance(List<RedBlackHashTree<K, V>> nodes) {
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        int redLevel = 0;
+        for (int m = nodes.size() - 1; m >= 0; m = m / 2 - 1) {
+            redLevel++;
+        }
+        return build(nodes, 0, nodes.size() - 1, 0, redLevel);
+    }
+
+    private static <K, V> void collect(RedBlackHashTree<K, V> t, List<RedBlackHashTree<K, V>> nodes) {
+        // iterative in-order walk: the tree may be deep on one side
+        List<RedBlackHashTree<K, V>> stack = new ArrayList<RedBlackHashTree<K, V>>();
+        while (!isSentinel(t) || !stack.isEmpty()) {
+            while (!isSentinel(t)) {
+                stack.add(t);
+                t = t.left();
+            }
+            t = stack.remove(stack.size() - 1);
+            RedBlackHashTree<K, V> right = t.right();
+            if (!t.value().isEmpty()) {
+                nodes.add(t);
+            }
+            t = right;
+        }
+    }
+
+    private static <K, V> RedBlackHashTree<K, V> build(List<RedBlackHashTree<K, V>> nodes,
+            int lo, int hi, int level, int redLevel) {
+        int mid = (lo + hi) >>> 1;
+        RedBlackHashTree<K, V> node = nodes.get(mid);
+        RedBlackHashTree<K, V> left = lo < mid ? build(nodes, lo, mid - 1, level + 1, redLevel) : null;
+        RedBlackHashTree<K, V> right = mid < hi ? build(nodes, mid + 1, hi, level + 1, redLevel) : null;
+        RedBlackHashTree.relink(node, left, right, level == redLevel);
+        return node;
+    }
+}
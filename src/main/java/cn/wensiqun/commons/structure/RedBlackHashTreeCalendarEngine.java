@@ -0,0 +1,416 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An engine for compare objects that come in fixed steps, such as
+ * timestamps taken every few milliseconds.  Within a live window of
+ * slots compare objects base, base + step, ... form a dense sequence, so
+ * their buckets are kept in a circular array indexed by
+ * (compareObj - base) / step: get, put and remove are O(1), and ceiling
+ * and floor scan an occupancy bitmap a word at a time.
+ * <p>
+ * A put on the step past the window slides it forward far enough to
+ * cover the put, however large the gap; the buckets the window leaves
+ * behind, and compare objects that are below it or off the step, spill
+ * into a regular {@link RedBlackHashTreeMap}.  Spilled buckets move back
+ * into the array when the window slides over them.  Compare objects must
+ * be integral Numbers, of any one type.
+ */
+public class RedBlackHashTreeCalendarEngine<K, V> extends AbstractRedBlackHashTreeEngine<K, V> {
+
+    private final long step;
+
+    private final Bucket<K, V>[] slots;
+
+    /**
+     * Which physical slots hold a bucket
+     */
+    private final BitSet occupied;
+
+    /**
+     * Whether base is known; without a configured base the window starts
+     * at the first compare object put
+     */
+    private boolean anchored;
+
+    /**
+     * The compare object of logical slot 0
+     */
+    private long low;
+
+    /**
+     * The physical index of logical slot 0
+     */
+    private int start;
+
+    /**
+     * The number of entries in the slots
+     */
+    private int slotCount;
+
+    private final RedBlackHashTreeMap<K, V> spill;
+
+    /**
+     * Constructs an engine whose window starts at the first compare
+     * object put.
+     *
+     * @param step the distance between consecutive compare objects
+     * @param slots the length of the window in steps
+     */
+    public RedBlackHashTreeCalendarEngine(long step, int slots)
+    {
+        this(step, slots, null);
+    }
+
+    public RedBlackHashTreeCalendarEngine(long step, int slots, Function<? super K, ? extends Comparable> extractor)
+    {
+        super(extractor);
+        if (step <= 0 || slots <= 0) {
+            throw new IllegalArgumentException("step and slots must be positive");
+        }
+        this.step = step;
+        this.slots = new Bucket[slots];
+        this.occupied = new BitSet(slots);
+        this.spill = newTreeMap();
+    }
+
+    /**
+     * Constructs an engine whose window starts at base.
+     */
+    public RedBlackHashTreeCalendarEngine(long base, long step, int slots)
+    {
+        this(base, step, slots, null);
+    }
+
+    public RedBlackHashTreeCalendarEngine(long base, long step, int slots, Function<? super K, ? extends Comparable> extractor)
+    {
+        this(step, slots, extractor);
+        this.low = base;
+        this.anchored = true;
+    }
+
+    public long getStep()
+    {
+        return step;
+    }
+
+    /**
+     * @return the compare object of the first slot of the window
+     */
+    public long getWindowStart()
+    {
+        return low;
+    }
+
+    /**
+     * @return the number of entries spilled out of the window
+     */
+    public int getSpilled()
+    {
+        return spill.size();
+    }
+
+    private static long longOf(Comparable compareObj)
+    {
+        return ((Number) compareObj).longValue();
+    }
+
+    /**
+     * @return the logical slot of v, or -1 if v is outside the window or
+     *         off the step
+     */
+    private int slotOf(long v)
+    {
+        if (!anchored || v < low) {
+            return -1;
+        }
+        long distance = v - low;
+        if (distance % step != 0 || distance / step >= slots.length) {
+            return -1;
+        }
+        return (int) (distance / step);
+    }
+
+    private int physical(int logical)
+    {
+        int p = start + logical;
+        return p >= slots.length ? p - slots.length : p;
+    }
+
+    private int logical(int physical)
+    {
+        return physical >= start ? physical - start : physical + slots.length - start;
+    }
+
+    /**
+     * @return the first occupied logical slot at or after l, or -1
+     */
+    private int nextOccupied(int l)
+    {
+        if (l < 0) {
+            l = 0;
+        }
+        if (l >= slots.length) {
+            return -1;
+        }
+        int p = physical(l);
+        int q = occupied.nextSetBit(p);
+        if (p >= start) {
+            if (q >= 0) {
+                return logical(q);
+            }
+            q = occupied.nextSetBit(0);
+        }
+        return q >= 0 && q < start ? logical(q) : -1;
+    }
+
+    /**
+     * @return the last occupied logical slot at or before l, or -1
+     */
+    private int previousOccupied(int l)
+    {
+        if (l >= slots.length) {
+            l = slots.length - 1;
+        }
+        if (l < 0) {
+            return -1;
+        }
+        int p = physical(l);
+        int q = occupied.previousSetBit(p);
+        if (p < start) {
+            if (q >= 0) {
+                return logical(q);
+            }
+            q = occupied.previousSetBit(slots.length - 1);
+        }
+        return q >= start ? logical(q) : -1;
+    }
+
+    private Bucket<K, V> slot(int logical)
+    {
+        return logical < 0 ? null : slots[physical(logical)];
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        Comparable compareObj = compareObjOf(key);
+        long v = longOf(compareObj);
+        if (!anchored) {
+            low = v;
+            anchored = true;
+        }
+        int l = slotOf(v);
+        if (l < 0 && v >= low && (v - low) % step == 0) {
+            slide((v - low) / step - slots.length + 1);
+            l = slotOf(v);
+        }
+        if (l < 0) {
+            return spill.put(key, value);
+        }
+        int p = physical(l);
+        Bucket<K, V> bucket = slots[p];
+        if (bucket == null) {
+            bucket = slots[p] = new Bucket<K, V>(compareObj, new HashMap<K, V>());
+            occupied.set(p);
+        }
+        int before = bucket.valueMap.size();
+        V old = bucket.valueMap.put(key, value);
+        slotCount += bucket.valueMap.size() - before;
+        return old;
+    }
+
+    /**
+     * Moves the window shift steps forward: the buckets of the slots it
+     * leaves spill, and spilled buckets it now covers come back.
+     */
+    private void slide(long shift)
+    {
+        long oldEnd = low + step * slots.length;
+        for (int l = 0; l < Math.min(shift, slots.length); l++) {
+            int p = physical(l);
+            Bucket<K, V> bucket = slots[p];
+            if (bucket != null) {
+                for (Map.Entry<K, V> entry : bucket.valueMap.entrySet()) {
+                    spill.put(entry.getKey(), entry.getValue());
+                }
+                slotCount -= bucket.valueMap.size();
+                slots[p] = null;
+                occupied.clear(p);
+            }
+        }
+        start = (int) ((start + shift % slots.length) % slots.length);
+        low += step * shift;
+        long newEnd = low + step * slots.length;
+        // searched by value, as the compare objects need not be Longs
+        RedBlackHashTree<K, V> node = spill.isEmpty() ? null : spill.nearest(Math.max(oldEnd, low), true);
+        while (node != null && longOf(node.getCompareObj()) < newEnd) {
+            Comparable compareObj = node.getCompareObj();
+            node = spill.higherNode(compareObj);
+            int l = slotOf(longOf(compareObj));
+            if (l >= 0) {
+                HashMap<K, V> bucket = (HashMap<K, V>) spill.removeMap(compareObj);
+                int p = physical(l);
+                slots[p] = new Bucket<K, V>(compareObj, bucket);
+                occupied.set(p);
+                slotCount += bucket.size();
+            }
+        }
+    }
+
+    @Override
+    public V remove(K key)
+    {
+        Comparable compareObj = compareObjOf(key);
+        int l = slotOf(longOf(compareObj));
+        if (l < 0) {
+            return spill.remove(key);
+        }
+        int p = physical(l);
+        Bucket<K, V> bucket = slots[p];
+        if (bucket == null || !bucket.valueMap.containsKey(key)) {
+            return null;
+        }
+        V old = bucket.valueMap.remove(key);
+        slotCount--;
+        if (bucket.valueMap.isEmpty()) {
+            slots[p] = null;
+            occupied.clear(p);
+        }
+        return old;
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> getBucket(Comparable compareObj)
+    {
+        int l = slotOf(longOf(compareObj));
+        if (l >= 0) {
+            return slot(l);
+        }
+        return spill.root.locate(compareObj);
+    }
+
+    @Override
+    public Map<K, V> removeMap(Comparable compareObj)
+    {
+        int l = slotOf(longOf(compareObj));
+        if (l < 0) {
+            return spill.removeMap(compareObj);
+        }
+        int p = physical(l);
+        Bucket<K, V> bucket = slots[p];
+        if (bucket == null) {
+            return null;
+        }
+        slots[p] = null;
+        occupied.clear(p);
+        slotCount -= bucket.valueMap.size();
+        return bucket.valueMap;
+    }
+
+    @Override
+    public int size()
+    {
+        return slotCount + spill.size();
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int p = occupied.nextSetBit(0); p >= 0; p = occupied.nextSetBit(p + 1)) {
+            slots[p] = null;
+        }
+        occupied.clear();
+        slotCount = 0;
+        spill.clear();
+    }
+
+    /**
+     * @return the lesser of a slot bucket and a spilled one, either of
+     *         which may be null
+     */
+    private RedBlackHashTreeBucket<K, V> least(RedBlackHashTreeBucket<K, V> slotted, RedBlackHashTree<K, V> spilled)
+    {
+        if (spilled == null || !spill.nodeIsValid(spilled))
+            return slotted;
+        if (slotted == null)
+            return spilled;
+        return longOf(slotted.getCompareObj()) < longOf(spilled.getCompareObj()) ? slotted : spilled;
+    }
+
+    private RedBlackHashTreeBucket<K, V> greatest(RedBlackHashTreeBucket<K, V> slotted, RedBlackHashTree<K, V> spilled)
+    {
+        if (spilled == null || !spill.nodeIsValid(spilled))
+            return slotted;
+        if (slotted == null)
+            return spilled;
+        return longOf(slotted.getCompareObj()) > longOf(spilled.getCompareObj()) ? slotted : spilled;
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> firstNode()
+    {
+        return least(slot(nextOccupied(0)), spill.firstNode());
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> lastNode()
+    {
+        return greatest(slot(previousOccupied(slots.length - 1)), spill.lastNode());
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> ceilingNode(Comparable compareObj)
+    {
+        return least(slot(nextOccupied(ceilingSlot(longOf(compareObj)))), spill.ceilingNode(compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> higherNode(Comparable compareObj)
+    {
+        long v = longOf(compareObj);
+        return least(slot(nextOccupied(v == Long.MAX_VALUE ? slots.length : ceilingSlot(v + 1))), spill.higherNode(compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> floorNode(Comparable compareObj)
+    {
+        return greatest(slot(previousOccupied(floorSlot(longOf(compareObj)))), spill.floorNode(compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> lowerNode(Comparable compareObj)
+    {
+        long v = longOf(compareObj);
+        return greatest(slot(previousOccupied(v == Long.MIN_VALUE ? -1 : floorSlot(v - 1))), spill.lowerNode(compareObj));
+    }
+
+    /**
+     * @return the first logical slot whose compare object is at least v,
+     *         possibly past the window
+     */
+    private int ceilingSlot(long v)
+    {
+        if (!anchored || v <= low) {
+            return 0;
+        }
+        long steps = (v - low + step - 1) / step;
+        return (int) Math.min(steps, slots.length);
+    }
+
+    /**
+     * @return the last logical slot whose compare object is at most v,
+     *         -1 if there is none
+     */
+    private int floorSlot(long v)
+    {
+        if (!anchored || v < low) {
+            return -1;
+        }
+        return (int) Math.min((v - low) / step, slots.length - 1);
+    }
+}
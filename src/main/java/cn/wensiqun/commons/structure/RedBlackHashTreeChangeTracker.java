@@ -0,0 +1,203 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the changes made to a {@link RedBlackHashTreeMap} so that the
+ * difference between any recorded version and the current map can be
+ * produced in time proportional to the number of changes since, for
+ * incremental checkpoints and replication.
+ * <p>
+ * The tracker subscribes to every compare object of the map, so it sees
+ * puts, removals, evictions and bucket removals however they are made.
+ * Each change advances the version by one.  Operations that hand nodes
+ * between maps without events (split, join and the set operations) are
+ * not seen.  The log grows with every change until
+ * {@link #discardBefore(long)} drops what no replica needs any more.
+ * <p>
+ * Like the map itself, a tracker is not thread-safe; it must be used by
+ * the threads that mutate the map, under the same lock.
+ */
+public class RedBlackHashTreeChangeTracker<K, V> implements RedBlackHashTreeListener<K, V> {
+
+    /**
+     * What happened to an entry between two versions
+     */
+    public static enum ChangeType {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final RedBlackHashTreeMap<K, V> map;
+
+    private final RedBlackHashTreeMap.Subscription<K, V> subscription;
+
+    /**
+     * Changes in version order; the change at index i has version
+     * horizon + i + 1
+     */
+    private final List<Record> log = new ArrayList<Record>();
+
+    /**
+     * The oldest version a diff can still start from
+     */
+    private long horizon;
+
+    /**
+     * Starts tracking map at version 0.
+     */
+    public RedBlackHashTreeChangeTracker(RedBlackHashTreeMap<K, V> map) {
+        this.map = map;
+        this.subscription = map.subscribe(RedBlackHashTreeRange.all(), this);
+    }
+
+    public void onEvent(RedBlackHashTreeEvent<K, V> event) {
+        log.add(new Record(event.getCompareObj(), event.getKey(), event.existed()));
+    }
+
+    /**
+     * @return the current version, to be passed to {@link #diff(long)}
+     *         later on
+     */
+    public long getVersion() {
+        return horizon + log.size();
+    }
+
+    /**
+     * Lists the net change of every entry changed after version: entries
+     * that did not exist then and do now are INSERTs, entries that existed
+     * then and do now are UPDATEs, and entries that existed then and no
+     * longer do are DELETEs.  Changes come in the order their entries were
+     * first changed.
+     *
+     * @throws IllegalArgumentException if version was discarded or is in
+     *         the future
+     */
+    public List<Change<K, V>> diff(long version) {
+        if (version < horizon || version > getVersion()) {
+            throw new IllegalArgumentException("version " + version + " is outside [" + horizon + ", " + getVersion() + "]");
+        }
+        // the first record of an entry after version tells its old state
+        Map<Record, Record> first = new LinkedHashMap<Record, Record>();
+        for (int i = (int) (version - horizon); i < log.size(); i++) {
+            Record record = log.get(i);
+            if (!first.containsKey(record)) {
+                first.put(record, record);
+            }
+        }
+        List<Change<K, V>> changes = new ArrayList<Change<K, V>>(first.size());
+        for (Record record : first.keySet()) {
+            Map<K, V> bucket = map.getMap(record.compareObj);
+            boolean exists = bucket != null && bucket.containsKey(record.key);
+            if (exists) {
+                ChangeType type = record.existed ? ChangeType.UPDATE : ChangeType.INSERT;
+                changes.add(new Change<K, V>(type, record.compareObj, record.key, bucket.get(record.key)));
+            } else if (record.existed) {
+                changes.add(new Change<K, V>(ChangeType.DELETE, record.compareObj, record.key, null));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Forgets the changes up to version; diffs can no longer start before
+     * it.
+     */
+    public void discardBefore(long version) {
+        if (version <= horizon) {
+            return;
+        }
+        int drop = (int) Math.min(version - horizon, log.size());
+        log.subList(0, drop).clear();
+        horizon += drop;
+    }
+
+    /**
+     * Stops tracking the map.
+     */
+    public void close() {
+        subscription.cancel();
+    }
+
+    /**
+     * A logged change.  Its identity is the entry it changed: keys are
+     * only unique within their bucket.
+     */
+    private final class Record {
+
+        private final Comparable compareObj;
+
+        private final K key;
+
+        /**
+         * Whether the entry existed before this change
+         */
+        private final boolean existed;
+
+        Record(Comparable compareObj, K key, boolean existed) {
+            this.compareObj = compareObj;
+            this.key = key;
+            this.existed = existed;
+        }
+
+        @Override
+        public int hashCode() {
+            return compareObj.hashCode() * 31 + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RedBlackHashTreeChangeTracker.Record)) {
+                return false;
+            }
+            Record other = (Record) obj;
+            return compareObj.equals(other.compareObj) && key.equals(other.key);
+        }
+    }
+
+    /**
+     * The net change of one entry
+     */
+    public static class Change<K, V> {
+
+        private final ChangeType type;
+
+        private final Comparable compareObj;
+
+        private final K key;
+
+        private final V value;
+
+        Change(ChangeType type, Comparable compareObj, K key, V value) {
+            this.type = type;
+            this.compareObj = compareObj;
+            this.key = key;
+            this.value = value;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public Comparable getCompareObj() {
+            return compareObj;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return the current value, or null for a DELETE
+         */
+        public V getValue() {
+            return value;
+        }
+
+        public String toString() {
+            return type + " " + key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Rolls the buckets of a {@link RedBlackHashTreeMap} range up into coarser
+ * buckets, for instance per-second buckets of old data into per-hour ones.
+ * <p>
+ * The entries of each bucket of the range are merged into the bucket of
+ * the coarsened compare object, re-keyed for it, and removed once merged;
+ * values that meet under the same key are combined with the merge
+ * function.  If a merge throws, for instance because the coarse bucket is
+ * full and rejects, the entries not yet merged stay where they were and
+ * the next slice starts again at their bucket.  Buckets
+ * whose compare object is already coarse are left alone, so the coarsen
+ * function must be idempotent, and a coarse compare object is expected to
+ * stay in the range or fall before the bucket it came from.
+ * <p>
+ * Work is done in slices of a bounded number of buckets.  Between slices
+ * the compaction holds no node, only the last compare object it visited,
+ * so writers can run in between: call {@link #runSlice(int)} while holding
+ * whatever lock guards the map and release it after each slice.
+ */
+public class RedBlackHashTreeCompaction<K, V> {
+
+    private final RedBlackHashTreeMap<K, V> map;
+
+    private final RedBlackHashTreeRange range;
+
+    private final Function<Comparable, Comparable> coarsen;
+
+    private final BiFunction<? super K, Comparable, ? extends K> rekey;
+
+    private final BiFunction<? super V, ? super V, ? extends V> merge;
+
+    /**
+     * The last compare object visited, or null before the first slice
+     */
+    private Comparable last;
+
+    private boolean done;
+
+    private long bucketsCompacted;
+
+    private long entriesMoved;
+
+    RedBlackHashTreeCompaction(RedBlackHashTreeMap<K, V> map, RedBlackHashTreeRange range,
+            Function<Comparable, Comparable> coarsen, BiFunction<? super K, Comparable, ? extends K> rekey,
+            BiFunction<? super V, ? super V, ? extends V> merge) {
+        this.map = map;
+        this.range = range;
+        this.coarsen = coarsen;
+        this.rekey = rekey;
+        this.merge = merge;
+    }
+
+    /**
+     * Visits up to maxBuckets further buckets of the range.
+     *
+     * @return the number of buckets visited; 0 once the range is exhausted
+     */
+    public int runSlice(int maxBuckets) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("maxBuckets must be positive: " + maxBuckets);
+        }
+        int visited = 0;
+        while (!done && visited < maxBuckets) {
+            RedBlackHashTree<K, V> node = next();
+            if (node == null || node.isEmpty() || !range.belowTo(node.getCompareObj())) {
+                done = true;
+                break;
+            }
+            Comparable compareObj = node.getCompareObj();
+            Comparable coarse = coarsen.apply(compareObj);
+            if (coarse.compareTo(compareObj) != 0) {
+                // the node may be unlinked as the bucket empties
+                List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(node.value().entrySet());
+                for (Map.Entry<K, V> entry : entries) {
+                    map.merge(rekey.apply(entry.getKey(), coarse), entry.getValue(), merge);
+                    map.remove(entry.getKey());
+                    entriesMoved++;
+                }
+                bucketsCompacted++;
+            }
+            last = compareObj;
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Runs slices until the range is exhausted.
+     */
+    public void runAll() {
+        while (runSlice(Integer.MAX_VALUE) > 0)
+            ;
+    }
+
+    private RedBlackHashTree<K, V> next() {
+        if (last != null) {
+            return map.higherNode(last);
+        }
+        Comparable from = range.getFrom();
+        if (from == null) {
+            return map.firstNode();
+        }
+        return range.isFromInclusive() ? map.ceilingNode(from) : map.higherNode(from);
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the number of buckets rolled up into coarser ones so far
+     */
+    public long getBucketsCompacted() {
+        return bucketsCompacted;
+    }
+
+    /**
+     * @return the number of entries moved into coarser buckets so far
+     */
+    public long getEntriesMoved() {
+        return entriesMoved;
+    }
+}
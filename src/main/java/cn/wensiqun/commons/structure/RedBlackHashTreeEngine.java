@@ -0,0 +1,116 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An ordered structure of buckets: entries grouped by the compare object
+ * of their keys, the buckets in compare object order.
+ * {@link RedBlackHashTreeMap} is the red-black tree engine; the others
+ * extend {@link AbstractRedBlackHashTreeEngine}, and
+ * {@link RedBlackHashTreeEngines} makes any of them.  Callers written
+ * against this interface can swap engines without other changes.
+ * <p>
+ * Navigation returns null where there is no such bucket, and polling an
+ * empty engine returns null.  Iterators run from the first compare object
+ * given to the second, in descending order if the first is the greater.
+ */
+public interface RedBlackHashTreeEngine<K, V> {
+
+	/**
+	 * @return the previous value of key, or null
+	 */
+	public V put(K key, V value);
+
+	public V get(K key);
+
+	/**
+	 * @return the removed value of key, or null
+	 */
+	public V remove(K key);
+
+	/**
+	 * @return whether the bucket of key exists
+	 */
+	public boolean contains(K key);
+
+	/**
+	 * @return the bucket of compareObj, or null
+	 */
+	public Map<K, V> getMap(Comparable compareObj);
+
+	/**
+	 * Removes the whole bucket of compareObj.
+	 *
+	 * @return the removed bucket, or null if there was none
+	 */
+	public Map<K, V> removeMap(Comparable compareObj);
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size();
+
+	public boolean isEmpty();
+
+	public void clear();
+
+	public RedBlackHashTreeBucket<K, V> firstNode();
+
+	public RedBlackHashTreeBucket<K, V> lastNode();
+
+	public RedBlackHashTreeBucket<K, V> ceilingNode(Comparable compareObj);
+
+	public RedBlackHashTreeBucket<K, V> ceilingNode(K key);
+
+	public V ceilingValue(K key);
+
+	public RedBlackHashTreeBucket<K, V> higherNode(Comparable compareObj);
+
+	public RedBlackHashTreeBucket<K, V> higherNode(K key);
+
+	public V higherValue(K key);
+
+	public RedBlackHashTreeBucket<K, V> floorNode(Comparable compareObj);
+
+	public RedBlackHashTreeBucket<K, V> floorNode(K key);
+
+	public V floorValue(K key);
+
+	public RedBlackHashTreeBucket<K, V> lowerNode(Comparable compareObj);
+
+	public RedBlackHashTreeBucket<K, V> lowerNode(K key);
+
+	public V lowerValue(K key);
+
+	/**
+	 * Removes the least bucket.
+	 *
+	 * @return the removed bucket, or null if the engine is empty
+	 */
+	public RedBlackHashTreeBucket<K, V> pollFirstNode();
+
+	/**
+	 * Removes the greatest bucket.
+	 *
+	 * @return the removed bucket, or null if the engine is empty
+	 */
+	public RedBlackHashTreeBucket<K, V> pollLastNode();
+
+	public Iterator<? extends RedBlackHashTreeBucket<K, V>> subIterator(Comparable fromCompareObj, boolean fromInclusive,
+			Comparable toCompareObj, boolean toInclusive);
+
+	/**
+	 * Iterates from fromCompareObj inclusive to toCompareObj exclusive.
+	 */
+	public Iterator<? extends RedBlackHashTreeBucket<K, V>> subIterator(Comparable fromCompareObj, Comparable toCompareObj);
+
+	public Iterator<? extends RedBlackHashTreeBucket<K, V>> headIterator(Comparable toCompareObj, boolean inclusive);
+
+	public Iterator<? extends RedBlackHashTreeBucket<K, V>> headIterator(Comparable toCompareObj);
+
+	public Iterator<? extends RedBlackHashTreeBucket<K, V>> tailIterator(Comparable fromCompareObj, boolean inclusive);
+
+	public Iterator<? extends RedBlackHashTreeBucket<K, V>> tailIterator(Comparable fromCompareObj);
+
+}
@@ -0,0 +1,71 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.function.Function;
+
+/**
+ * Makes {@link RedBlackHashTreeEngine}s by kind, so which engine backs a
+ * deployment can be a configuration option.
+ */
+public final class RedBlackHashTreeEngines {
+
+    private RedBlackHashTreeEngines()
+    {
+    }
+
+    public static enum Kind {
+
+        /**
+         * {@link RedBlackHashTreeMap}
+         */
+        RED_BLACK_TREE,
+
+        /**
+         * {@link RedBlackHashTreeBPlusTreeEngine}
+         */
+        B_PLUS_TREE,
+
+        /**
+         * {@link RedBlackHashTreeRadixEngine}; compare objects must be
+         * integral Numbers
+         */
+        RADIX
+    }
+
+    /**
+     * @return an empty engine of kind, whose keys must be
+     *         RedBlackHashTreeComparable
+     */
+    public static <K, V> RedBlackHashTreeEngine<K, V> newEngine(Kind kind)
+    {
+        return newEngine(kind, null);
+    }
+
+    /**
+     * @param extractor maps a key to its compare object, or null when keys
+     *        are RedBlackHashTreeComparable
+     * @return an empty engine of kind
+     */
+    public static <K, V> RedBlackHashTreeEngine<K, V> newEngine(Kind kind, Function<? super K, ? extends Comparable> extractor)
+    {
+        switch (kind) {
+        case RED_BLACK_TREE:
+            return extractor == null ? new RedBlackHashTreeMap<K, V>() : RedBlackHashTreeMap.<K, V>withExtractor(extractor);
+        case B_PLUS_TREE:
+            return new RedBlackHashTreeBPlusTreeEngine<K, V>(extractor);
+        case RADIX:
+            return new RedBlackHashTreeRadixEngine<K, V>(extractor);
+        default:
+            throw new IllegalArgumentException("unknown engine kind: " + kind);
+        }
+    }
+
+    /**
+     * @return an empty {@link RedBlackHashTreeCalendarEngine}, which needs
+     *         the step and window length of its compare objects
+     */
+    public static <K, V> RedBlackHashTreeEngine<K, V> newCalendarEngine(long step, int slots,
+            Function<? super K, ? extends Comparable> extractor)
+    {
+        return new RedBlackHashTreeCalendarEngine<K, V>(step, slots, extractor);
+    }
+}
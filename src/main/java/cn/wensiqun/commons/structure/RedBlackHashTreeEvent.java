@@ -0,0 +1,91 @@
+package cn.wensiqun.commons.structure;
+
+/**
+ * A single entry change of a {@link RedBlackHashTreeMap}, delivered to the
+ * listeners subscribed to the range holding its compare object.
+ */
+public class RedBlackHashTreeEvent<K, V> {
+
+    public static enum Type {
+        /**
+         * An entry was inserted or its value replaced
+         */
+        PUT,
+        /**
+         * An entry was removed by the caller
+         */
+        REMOVE,
+        /**
+         * An entry was dropped by the map itself, or polled with its bucket
+         */
+        EVICT
+    }
+
+    private final Type type;
+
+    private final Comparable compareObj;
+
+    private final K key;
+
+    private final V oldValue;
+
+    private final V newValue;
+
+    private final boolean existed;
+
+    /**
+     * Constructs an event whose entry existed before unless it is a PUT
+     * without an old value
+     */
+    public RedBlackHashTreeEvent(Type type, Comparable compareObj, K key, V oldValue, V newValue) {
+        this(type, compareObj, key, oldValue, newValue, type != Type.PUT || oldValue != null);
+    }
+
+    public RedBlackHashTreeEvent(Type type, Comparable compareObj, K key, V oldValue, V newValue, boolean existed) {
+        this.type = type;
+        this.compareObj = compareObj;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.existed = existed;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Comparable getCompareObj() {
+        return compareObj;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value before the change, or null for a new entry or an
+     *         entry whose value was null
+     */
+    public V getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * @return the value after the change, or null for a removal
+     */
+    public V getNewValue() {
+        return newValue;
+    }
+
+    /**
+     * @return whether the entry existed before the change; a PUT that
+     *         replaces a null value has no old value but did exist
+     */
+    public boolean existed() {
+        return existed;
+    }
+
+    public String toString() {
+        return type + " " + key + " : " + oldValue + " -> " + newValue;
+    }
+}
@@ -0,0 +1,119 @@
+package cn.wensiqun.commons.structure;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events emitted by {@link RedBlackHashTreeMap}.
+ * <p>
+ * The map checks {@link EventType#isEnabled()} before creating an event,
+ * so nothing is allocated unless a recording has the event turned on.
+ * Thresholds can be changed in the recording settings like those of the
+ * JDK's own events.
+ */
+public final class RedBlackHashTreeFlightEvents {
+
+    static final EventType OPERATION = EventType.getEventType(OperationEvent.class);
+
+    static final EventType SCAN = EventType.getEventType(ScanEvent.class);
+
+    static final EventType EVICTION = EventType.getEventType(EvictionEvent.class);
+
+    private RedBlackHashTreeFlightEvents() {
+    }
+
+    /**
+     * A put or remove slower than the threshold
+     */
+    @Name("cn.wensiqun.commons.structure.Operation")
+    @Label("RedBlackHashTreeMap Operation")
+    @Category({ "Commons Utils", "RedBlackHashTreeMap" })
+    @Threshold("1 ms")
+    public static class OperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Compare Object")
+        String compareObj;
+
+        @Label("Tree Size")
+        @Description("Entries in the map after the operation")
+        int treeSize;
+
+        @Label("Descent")
+        @Description("Buckets visited on the way down from the root")
+        int descent;
+    }
+
+    /**
+     * A completed iteration of a sub, head or tail iterator.  The event is
+     * committed when the iterator runs out; an iteration abandoned before
+     * its end is not recorded.
+     */
+    @Name("cn.wensiqun.commons.structure.Scan")
+    @Label("RedBlackHashTreeMap Scan")
+    @Category({ "Commons Utils", "RedBlackHashTreeMap" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static class ScanEvent extends Event {
+
+        @Label("From")
+        String from;
+
+        @Label("To")
+        String to;
+
+        @Label("Nodes Visited")
+        long nodes;
+
+        @Label("Entries Visited")
+        long entries;
+
+        @Label("Tree Size")
+        int treeSize;
+
+        @Label("Depth")
+        @Description("Depth of the first bucket visited, or -1 for an empty scan")
+        int depth;
+    }
+
+    /**
+     * A bucket removed by pollFirstNode or pollLastNode, or the entries
+     * one call evicted to bring the map back within its maximum size.
+     * Like the operation event it is only recorded above a threshold, so
+     * loops of polls do not flood a recording; set it to 0 ms to see
+     * every eviction.
+     */
+    @Name("cn.wensiqun.commons.structure.Eviction")
+    @Label("RedBlackHashTreeMap Eviction")
+    @Category({ "Commons Utils", "RedBlackHashTreeMap" })
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class EvictionEvent extends Event {
+
+        @Label("End")
+        @Description("first, last, or size for a size-bound trim")
+        String end;
+
+        @Label("Compare Object")
+        @Description("Compare object of the bucket removed, or of the first entry a trim evicted")
+        String compareObj;
+
+        @Label("Entries Evicted")
+        int entries;
+
+        @Label("Tree Size")
+        int treeSize;
+
+        @Label("Descent")
+        @Description("Buckets visited on the way down from the root to the one removed, or 0 for a trim")
+        int descent;
+    }
+}
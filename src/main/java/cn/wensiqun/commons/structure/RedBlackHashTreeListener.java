@@ -0,0 +1,16 @@
+package cn.wensiqun.commons.structure;
+
+/**
+ * Receives the changes made to the buckets of a {@link RedBlackHashTreeMap}
+ * within a subscribed range.
+ *
+ * @see RedBlackHashTreeMap#subscribe(RedBlackHashTreeRange, RedBlackHashTreeListener)
+ */
+public interface RedBlackHashTreeListener<K, V> {
+
+	/**
+	 * Called after the map has applied the change.
+	 */
+	public void onEvent(RedBlackHashTreeEvent<K, V> event);
+
+}
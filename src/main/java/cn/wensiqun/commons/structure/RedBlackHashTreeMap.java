@@ -1,13 +1,34 @@
 package cn.wensiqun.commons.structure;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
 
-import cn.wensiqun.commons.structure.RedBlackHashTree.OperatorResult;
+import cn.wensiqun.commons.structure.RedBlackHashTreeFlightEvents.EvictionEvent;
+import cn.wensiqun.commons.structure.RedBlackHashTreeFlightEvents.OperationEvent;
+import cn.wensiqun.commons.structure.RedBlackHashTreeFlightEvents.ScanEvent;
 
 
-public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implements Cloneable, java.io.Serializable
+public class RedBlackHashTreeMap<K, V> implements RedBlackHashTreeEngine<K, V>, Cloneable, java.io.Serializable
 {
 	
 	/**
@@ -21,13 +42,107 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     protected int count;
 
     /**
-     * Constructs a red-black search tree with no data
+     * The most entries a bucket may hold, or 0 for no bound
+     */
+    protected int bucketCapacity;
+
+    /**
+     * What happens to a put into a full bucket
+     */
+    protected BucketEvictionPolicy bucketEvictionPolicy = BucketEvictionPolicy.OLDEST;
+
+    /**
+     * The most entries the map may hold, or 0 for no bound
+     */
+    protected int maxSize;
+
+    /**
+     * Which entries go when the map grows past maxSize
+     */
+    protected SizeEvictionPolicy sizeEvictionPolicy = SizeEvictionPolicy.OLDEST_COMPARABLE;
+
+    /**
+     * Every entry in least to most recently used order, kept only for the
+     * LRU size policy
+     */
+    private AccessOrder<K, V> accessOrder;
+
+    /**
+     * Told about every entry evicted by a bucket or size bound, or null
+     */
+    private transient RedBlackHashTreeListener<K, V> evictionListener;
+
+    /**
+     * The active subscriptions, or null when nobody is listening
+     */
+    private transient volatile Subscription[] subscriptions;
+
+    /**
+     * The buckets visited by the last descent from the root, for flight
+     * events.  Concurrent readers may overwrite each other's length; it
+     * is only reported.
+     */
+    private transient int lastDescent;
+
+    /**
+     * Maps a key to its compare object, or null when keys are
+     * RedBlackHashTreeComparable
+     */
+    private final Function<? super K, ? extends Comparable> extractor;
+
+    /**
+     * Maps a key to a long compare object, or null
+     */
+    private final ToLongFunction<? super K> longExtractor;
+
+    /**
+     * Constructs a red-black search tree with no data, whose keys must be
+     * RedBlackHashTreeComparable
      * @post Constructs an empty red-black tree
      */
     public RedBlackHashTreeMap()
+    {
+        this(null, null);
+    }
+
+    private RedBlackHashTreeMap(Function<? super K, ? extends Comparable> extractor, ToLongFunction<? super K> longExtractor)
     {
         root = new RedBlackHashTree<K, V>();
         count = 0;
+        this.extractor = extractor;
+        this.longExtractor = longExtractor;
+    }
+
+    /**
+     * Constructs an empty map of plain keys, ordered by the compare
+     * objects extractor finds for them, so keys need not be wrapped.
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> withExtractor(Function<? super K, ? extends Comparable> extractor)
+    {
+        return new RedBlackHashTreeMap<K, V>(extractor, null);
+    }
+
+    /**
+     * Constructs an empty map of plain keys whose compare objects are the
+     * Longs extractor computes.  Lookups, containment tests and removals
+     * descend on the primitive value, boxing nothing; a compare object is
+     * only boxed to hang a new bucket.
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> withLongExtractor(ToLongFunction<? super K> extractor)
+    {
+        return new RedBlackHashTreeMap<K, V>(null, extractor);
+    }
+
+    /**
+     * @return the compare object key belongs under
+     */
+    Comparable compareObjOf(K key)
+    {
+        if (longExtractor != null)
+            return Long.valueOf(longExtractor.applyAsLong(key));
+        if (extractor != null)
+            return extractor.apply(key);
+        return RedBlackHashTree.compareObjOf(key);
     }
     
     /**
@@ -48,8 +163,118 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
      */
     public void clear()
     {
+        RedBlackHashTree<K, V> oldRoot = root;
         root = new RedBlackHashTree<K, V>();
         count = 0;
+        if (accessOrder != null) {
+            accessOrder.clear();
+        }
+        if (subscriptions != null && nodeIsValid(oldRoot)) {
+            for (RedBlackHashTree<K, V> p = first(oldRoot); nodeIsValid(p); p = successor(p)) {
+                fireRemoved(RedBlackHashTreeEvent.Type.REMOVE, p.getCompareObj(), p.value());
+            }
+        }
+    }
+
+    /**
+     * Bounds the number of entries per bucket.  When a new key is put into
+     * a full bucket, policy decides whether an entry of the bucket is
+     * evicted (reported to subscribers as EVICT) or the put is rejected.
+     * Buckets created from now on keep the order the policy needs, so the
+     * bound is best set while the map is empty.
+     *
+     * @param capacity the most entries per bucket, or 0 for no bound
+     * @param policy the eviction policy of full buckets
+     */
+    public void setBucketCapacity(int capacity, BucketEvictionPolicy policy)
+    {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.bucketCapacity = capacity;
+        this.bucketEvictionPolicy = policy;
+    }
+
+    /**
+     * Bounds the number of entries in the map.  Whenever an insert takes
+     * size() past maxSize, entries are evicted until it is back at maxSize:
+     * entries of the first bucket under OLDEST_COMPARABLE, or the entries
+     * least recently put or read under LRU.  Evictions are reported to
+     * subscribers as EVICT and to the eviction listener.
+     * <p>
+     * Under LRU, get() records the access and is therefore a write.
+     *
+     * @param maxSize the most entries, or 0 for no bound
+     * @param policy the entries to evict first
+     */
+    public void setMaxSize(int maxSize, SizeEvictionPolicy policy)
+    {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.maxSize = maxSize;
+        this.sizeEvictionPolicy = policy;
+        if (maxSize == 0 || policy != SizeEvictionPolicy.LRU) {
+            accessOrder = null;
+        } else if (accessOrder == null) {
+            // existing entries count as used in comparable order
+            accessOrder = new AccessOrder<K, V>();
+            if (nodeIsValid(root)) {
+                for (RedBlackHashTree<K, V> p = first(root); nodeIsValid(p); p = successor(p)) {
+                    for (K key : p.value().keySet()) {
+                        accessOrder.add(key, p);
+                    }
+                }
+            }
+        }
+        trimToMaxSize();
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public SizeEvictionPolicy getSizeEvictionPolicy()
+    {
+        return sizeEvictionPolicy;
+    }
+
+    /**
+     * Sets the listener told about each entry evicted because a bucket or
+     * the map was full.  Its events have type EVICT and the evicted value
+     * as old value.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setEvictionListener(RedBlackHashTreeListener<K, V> listener)
+    {
+        this.evictionListener = listener;
+    }
+
+    public int getBucketCapacity()
+    {
+        return bucketCapacity;
+    }
+
+    public BucketEvictionPolicy getBucketEvictionPolicy()
+    {
+        return bucketEvictionPolicy;
+    }
+
+    /**
+     * @return whether get() records the access, under the LRU size policy
+     *         or in access-ordered buckets, and is therefore a write
+     */
+    boolean readsReorder()
+    {
+        return accessOrder != null || bucketCapacity > 0 && bucketEvictionPolicy == BucketEvictionPolicy.LRU;
     }
 
     /**
@@ -70,13 +295,180 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
      * 
      * @post Adds a value to binary search tree
      * @param val A reference to non-null object
+     * @return the value previously associated with key, or null
      */
     public V put(K key, V value)
     {
-        //Assert.pre(value instanceof Comparable,"value must implement Comparable");
-    	OperatorResult<K, V> result = root.put(key, value);
-    	root = result.getTree();
-        count += (Integer)result.getValue();
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats == null && !RedBlackHashTreeFlightEvents.OPERATION.isEnabled()) {
+            return doPut(key, value);
+        }
+        long start = System.nanoTime();
+        OperationEvent event = beginOperation();
+        try {
+            return doPut(key, value);
+        } finally {
+            if (stats != null) stats.putLatency.record(System.nanoTime() - start);
+            commitOperation(event, "put", key);
+        }
+    }
+
+    private V doPut(K key, V value)
+    {
+        if (longExtractor != null) {
+            RedBlackHashTree<K, V> node = locate(longExtractor.applyAsLong(key));
+            if (node != null) {
+                return bucketPut(node, key, value);
+            }
+        }
+        Comparable compareObj = compareObjOf(key);
+        RedBlackHashTree<K, V> p = descend(compareObj);
+        int cmp = p == null ? 0 : compareObj.compareTo(p.getCompareObj());
+        if (p != null && cmp == 0) {
+            return bucketPut(p, key, value);
+        }
+        attach(p, cmp, compareObj, key, value);
+        return null;
+    }
+
+    /**
+     * Associates value with key only if key is not already mapped to a
+     * non-null value.  The bucket is located (or created) in a single
+     * descent.
+     *
+     * @return the current value of key, or null if value was stored
+     */
+    public V putIfAbsent(K key, V value)
+    {
+        Comparable compareObj = compareObjOf(key);
+        RedBlackHashTree<K, V> p = descend(compareObj);
+        int cmp = p == null ? 0 : compareObj.compareTo(p.getCompareObj());
+        if (p != null && cmp == 0) {
+            V old = p.value().get(key);
+            if (old == null) {
+                bucketPut(p, key, value);
+            }
+            return old;
+        }
+        attach(p, cmp, compareObj, key, value);
+        return null;
+    }
+
+    /**
+     * If key is not mapped to a non-null value, computes one with
+     * mappingFunction and stores it unless it is null.
+     *
+     * @return the current (existing or computed) value of key, or null
+     * @throws NullPointerException if mappingFunction is null
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+    {
+        Objects.requireNonNull(mappingFunction);
+        Comparable compareObj = compareObjOf(key);
+        RedBlackHashTree<K, V> p = descend(compareObj);
+        int cmp = p == null ? 0 : compareObj.compareTo(p.getCompareObj());
+        if (p != null && cmp == 0) {
+            V old = p.value().get(key);
+            if (old != null) {
+                return old;
+            }
+            V value = mappingFunction.apply(key);
+            if (value != null) {
+                bucketPut(p, key, value);
+            }
+            return value;
+        }
+        V value = mappingFunction.apply(key);
+        if (value != null) {
+            attach(p, cmp, compareObj, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * If key is mapped to a non-null value, computes a new mapping from
+     * the key and its current value.  A null result removes the mapping,
+     * and the bucket too once it becomes empty.
+     *
+     * @return the new value of key, or null
+     * @throws NullPointerException if remappingFunction is null
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+    {
+        Objects.requireNonNull(remappingFunction);
+        RedBlackHashTree<K, V> p = root.locate(compareObjOf(key));
+        V old = p == null ? null : p.value().get(key);
+        if (old == null) {
+            return null;
+        }
+        V value = remappingFunction.apply(key, old);
+        if (value == null) {
+            bucketRemove(p, key);
+        } else {
+            bucketPut(p, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Computes a mapping from key and its current value (or null).  A null
+     * result removes the mapping; otherwise the result is stored, creating
+     * the bucket if needed.
+     *
+     * @return the new value of key, or null
+     * @throws NullPointerException if remappingFunction is null
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+    {
+        Objects.requireNonNull(remappingFunction);
+        Comparable compareObj = compareObjOf(key);
+        RedBlackHashTree<K, V> p = descend(compareObj);
+        int cmp = p == null ? 0 : compareObj.compareTo(p.getCompareObj());
+        if (p != null && cmp == 0) {
+            V old = p.value().get(key);
+            V value = remappingFunction.apply(key, old);
+            if (value == null) {
+                if (old != null || p.value().containsKey(key)) {
+                    bucketRemove(p, key);
+                }
+            } else {
+                bucketPut(p, key, value);
+            }
+            return value;
+        }
+        V value = remappingFunction.apply(key, null);
+        if (value != null) {
+            attach(p, cmp, compareObj, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Stores value if key is not mapped to a non-null value, otherwise
+     * replaces the current value with the result of remappingFunction, or
+     * removes the mapping if that result is null.
+     *
+     * @return the new value of key, or null
+     * @throws NullPointerException if value or remappingFunction is null
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+    {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        Comparable compareObj = compareObjOf(key);
+        RedBlackHashTree<K, V> p = descend(compareObj);
+        int cmp = p == null ? 0 : compareObj.compareTo(p.getCompareObj());
+        if (p != null && cmp == 0) {
+            V old = p.value().get(key);
+            V newValue = old == null ? value : remappingFunction.apply(old, value);
+            if (newValue == null) {
+                bucketRemove(p, key);
+            } else {
+                bucketPut(p, key, newValue);
+            }
+            return newValue;
+        }
+        attach(p, cmp, compareObj, key, value);
         return value;
     }
    
@@ -92,23 +484,111 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
      * @return Value to be removed from tree or null if no value removed
      */
     public V remove(K key){
-    	OperatorResult<K, V> result = root.remove(key);
-    	if(result.getValue() != null) {
-    		this.root = result.getTree();
-    		count--;
-        	return (V)result.getValue();
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats == null && !RedBlackHashTreeFlightEvents.OPERATION.isEnabled()) {
+            return doRemove(key);
+        }
+        long start = System.nanoTime();
+        OperationEvent event = beginOperation();
+        try {
+            return doRemove(key);
+        } finally {
+            if (stats != null) stats.removeLatency.record(System.nanoTime() - start);
+            commitOperation(event, "remove", key);
+        }
+    }
+
+    private OperationEvent beginOperation() {
+        if (!RedBlackHashTreeFlightEvents.OPERATION.isEnabled()) {
+            return null;
+        }
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        return event;
+    }
+
+    private void commitOperation(OperationEvent event, String operation, K key) {
+        if (event == null) {
+            return;
+        }
+        commitOperation(event, operation, compareObjOf(key));
+    }
+
+    private void commitOperation(OperationEvent event, String operation, Comparable compareObj) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.compareObj = String.valueOf(compareObj);
+            event.treeSize = count;
+            event.descent = lastDescent;
+            event.commit();
+        }
+    }
+
+    private V doRemove(K key){
+    	if (longExtractor != null) {
+    		RedBlackHashTree<K, V> node = locate(longExtractor.applyAsLong(key));
+    		if (node == null || !node.value().containsKey(key))
+    			return null;
+    		return bucketRemove(node, key);
     	}
-    	return null;
+    	Comparable compareObj = compareObjOf(key);
+    	RedBlackHashTree<K, V> p = descend(compareObj);
+    	if (p == null || compareObj.compareTo(p.getCompareObj()) != 0)
+    		return null;
+    	return bucketRemove(p, key);
     }
     
     public V get(K key) {
-    	return root.get(key);
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats == null) {
+            return doGet(key);
+        }
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            stats.getLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private V doGet(K key) {
+        if (longExtractor != null) {
+            return probed(locate(longExtractor.applyAsLong(key)), key);
+        }
+        Comparable compareObj = compareObjOf(key);
+        RedBlackHashTree<K, V> p = descend(compareObj);
+        if (p == null || compareObj.compareTo(p.getCompareObj()) != 0) {
+            return null;
+        }
+        V value = p.value().get(key);
+        if (accessOrder != null && value != null)
+            accessOrder.touch(p.getCompareObj(), key);
+        return value;
     }
     
     public Map<K, V> getMap(Comparable compareObj) {
         return root.getMap(compareObj);	
     }
 
+    /**
+     * Removes the whole bucket of compareObj.
+     *
+     * @return the removed bucket, or null if there was none
+     */
+    public Map<K, V> removeMap(Comparable compareObj) {
+        RedBlackHashTree<K, V> node = root.locate(compareObj);
+        if (node == null) {
+            return null;
+        }
+        HashMap<K, V> bucket = node.value();
+        removeNode(node, RedBlackHashTreeEvent.Type.REMOVE);
+        return bucket;
+    }
+
     /**
      * Determines if the red-black search tree contains a value
      *
@@ -118,7 +598,198 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
      * @return True iff the tree contains a value "equals to" sought value
      */
     public boolean contains(K key){
-        return root.contains(key);
+        if (longExtractor != null) {
+            return locate(longExtractor.applyAsLong(key)) != null;
+        }
+        return root.locate(compareObjOf(key)) != null;
+    }
+
+    /*
+     * Probe lookups take the compare object and a bucket probe instead of
+     * a key, so a read need not build a key object.  The probe is handed
+     * to the HashMap of the bucket: it must have the hashCode of the key
+     * it stands for and equal it.  A caller keeping one mutable probe per
+     * thread, and using the long overloads for integral compare objects,
+     * looks up without allocating.
+     */
+
+    /**
+     * @return the value of the key probe stands for, or null
+     */
+    public V get(Comparable compareObj, Object probe) {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats == null) {
+            return probed(root.locate(compareObj), probe);
+        }
+        long start = System.nanoTime();
+        try {
+            return probed(root.locate(compareObj), probe);
+        } finally {
+            stats.getLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the value of the key probe stands for, or null
+     * @pre the compare objects are integral Numbers
+     */
+    public V get(long compareObj, Object probe) {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats == null) {
+            return probed(locate(compareObj), probe);
+        }
+        long start = System.nanoTime();
+        try {
+            return probed(locate(compareObj), probe);
+        } finally {
+            stats.getLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    public boolean containsKey(Comparable compareObj, Object probe) {
+        RedBlackHashTree<K, V> node = root.locate(compareObj);
+        return node != null && node.value().containsKey(probe);
+    }
+
+    /**
+     * @pre the compare objects are integral Numbers
+     */
+    public boolean containsKey(long compareObj, Object probe) {
+        RedBlackHashTree<K, V> node = locate(compareObj);
+        return node != null && node.value().containsKey(probe);
+    }
+
+    /**
+     * @return the value of the key probe stands for in the bucket of the
+     *         least compare object greater than or equal to compareObj
+     */
+    public V ceilingValue(Comparable compareObj, Object probe) {
+        return probed(ceilingNode(compareObj), probe);
+    }
+
+    /**
+     * @pre the compare objects are integral Numbers
+     */
+    public V ceilingValue(long compareObj, Object probe) {
+        return probed(nearest(compareObj, true), probe);
+    }
+
+    /**
+     * @return the value of the key probe stands for in the bucket of the
+     *         greatest compare object less than or equal to compareObj
+     */
+    public V floorValue(Comparable compareObj, Object probe) {
+        return probed(floorNode(compareObj), probe);
+    }
+
+    /**
+     * @pre the compare objects are integral Numbers
+     */
+    public V floorValue(long compareObj, Object probe) {
+        return probed(nearest(compareObj, false), probe);
+    }
+
+    /**
+     * Removes the key probe stands for.  The probe stands in for the key
+     * in the bucket and in the LRU order, but events carry the stored key:
+     * while anybody is subscribed, for instance a
+     * {@link RedBlackHashTreeChangeTracker}, it is found by scanning the
+     * bucket, so the removal costs O(bucket size).
+     *
+     * @return the removed value, or null
+     */
+    public V remove(Comparable compareObj, Object probe) {
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats == null && !RedBlackHashTreeFlightEvents.OPERATION.isEnabled()) {
+            return doRemove(compareObj, probe);
+        }
+        long start = System.nanoTime();
+        OperationEvent event = beginOperation();
+        try {
+            return doRemove(compareObj, probe);
+        } finally {
+            if (stats != null) stats.removeLatency.record(System.nanoTime() - start);
+            commitOperation(event, "remove", compareObj);
+        }
+    }
+
+    private V doRemove(Comparable compareObj, Object probe) {
+        RedBlackHashTree<K, V> node = descend(compareObj);
+        if (node == null || compareObj.compareTo(node.getCompareObj()) != 0) {
+            return null;
+        }
+        K key;
+        if (subscriptions != null) {
+            key = storedKey(node.value(), probe);
+            if (key == null)
+                return null;
+        } else {
+            key = (K) probe;
+        }
+        return bucketRemove(node, key);
+    }
+
+    private RedBlackHashTree<K, V> locate(long compareObj) {
+        RedBlackHashTree<K, V> p = root;
+        int length = 0;
+        while (nodeIsValid(p)) {
+            length++;
+            long other = ((Number) p.getCompareObj()).longValue();
+            if (compareObj < other)
+                p = p.left();
+            else if (compareObj > other)
+                p = p.right();
+            else
+                break;
+        }
+        lastDescent = length;
+        return nodeIsValid(p) ? p : null;
+    }
+
+    /**
+     * @return the node of the least compare object at or above compareObj
+     *         if ceiling, else of the greatest at or below it, or null
+     * @pre the compare objects are integral Numbers
+     */
+    RedBlackHashTree<K, V> nearest(long compareObj, boolean ceiling) {
+        RedBlackHashTree<K, V> p = root;
+        RedBlackHashTree<K, V> best = null;
+        while (nodeIsValid(p)) {
+            long other = ((Number) p.getCompareObj()).longValue();
+            if (compareObj == other)
+                return p;
+            if (compareObj < other) {
+                if (ceiling)
+                    best = p;
+                p = p.left();
+            } else {
+                if (!ceiling)
+                    best = p;
+                p = p.right();
+            }
+        }
+        return best;
+    }
+
+    private V probed(RedBlackHashTree<K, V> node, Object probe) {
+        if (node == null) {
+            return null;
+        }
+        V value = node.value().get(probe);
+        if (accessOrder != null && value != null)
+            accessOrder.touch(node.getCompareObj(), probe);
+        return value;
+    }
+
+    /**
+     * @return the key of bucket that probe stands for, or null
+     */
+    private K storedKey(HashMap<K, V> bucket, Object probe) {
+        for (K key : bucket.keySet()) {
+            if (probe.equals(key))
+                return key;
+        }
+        return null;
     }
 
     /**
@@ -141,24 +812,24 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     } 
 
 
-    //get first
+    //get first, or null if the map is empty
     public RedBlackHashTree<K, V> firstNode() {
         RedBlackHashTree<K, V> p = root;
-        if(nodeIsValid(p)) {
-            while(nodeIsValid(p.left()))
-                p = p.left();
-        }
+        if(!nodeIsValid(p))
+            return null;
+        while(nodeIsValid(p.left()))
+            p = p.left();
         return p;
     }
 
-    //get last
+    //get last, or null if the map is empty
     
     public RedBlackHashTree<K, V> lastNode() {
         RedBlackHashTree<K, V> p = root;
-        if(nodeIsValid(p)) {
-            while(nodeIsValid(p.right()))
-                p = p.right();
-        }
+        if(!nodeIsValid(p))
+            return null;
+        while(nodeIsValid(p.right()))
+            p = p.right();
         return p;
     }
     
@@ -192,12 +863,12 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     }
     
     public RedBlackHashTree<K, V> ceilingNode(K key) {
-        RedBlackHashTree<K, V> result = ceilingNode(key.getComparableObject());
+        RedBlackHashTree<K, V> result = ceilingNode(compareObjOf(key));
         return result == null ? null : result;
     }
     
     public V ceilingValue(K key) {
-        RedBlackHashTree<K, V> result = ceilingNode(key.getComparableObject());
+        RedBlackHashTree<K, V> result = ceilingNode(compareObjOf(key));
         return result == null ? null : result.value().get(key);
     }
     
@@ -229,12 +900,12 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     }
     
     public RedBlackHashTree<K, V> higherNode(K key) {
-        RedBlackHashTree<K, V> result = higherNode(key.getComparableObject());
+        RedBlackHashTree<K, V> result = higherNode(compareObjOf(key));
         return result == null ? null : result;
     }
     
     public V higherValue(K key) {
-        RedBlackHashTree<K, V> result = higherNode(key.getComparableObject());
+        RedBlackHashTree<K, V> result = higherNode(compareObjOf(key));
         return result == null ? null : result.value().get(key);
     }
     
@@ -269,12 +940,12 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     }
     
     public RedBlackHashTree<K, V> floorNode(K key) {
-        RedBlackHashTree<K, V> result = floorNode(key.getComparableObject());
+        RedBlackHashTree<K, V> result = floorNode(compareObjOf(key));
         return result == null ? null : result;
     }
     
     public V floorValue(K key) {
-        RedBlackHashTree<K, V> result = floorNode(key.getComparableObject());
+        RedBlackHashTree<K, V> result = floorNode(compareObjOf(key));
         return result == null ? null : result.value().get(key);
     }
     
@@ -303,58 +974,575 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
                 }
             }
         }
-        return null;
-    }
-    
-    public RedBlackHashTree<K, V> lowerNode(K key) {
-        RedBlackHashTree<K, V> result = lowerNode(key.getComparableObject());
-        return result == null ? null : result;
+        return null;
+    }
+    
+    public RedBlackHashTree<K, V> lowerNode(K key) {
+        RedBlackHashTree<K, V> result = lowerNode(compareObjOf(key));
+        return result == null ? null : result;
+    }
+    
+    public V lowerValue(K key) {
+        RedBlackHashTree<K, V> result = lowerNode(compareObjOf(key));
+        return result == null ? null : result.value().get(key);
+    }
+    
+    public RedBlackHashTree<K, V> pollFirstNode() {
+        RedBlackHashTree<K, V> rbht = firstNode();
+        if (rbht == null)
+            return null;
+        EvictionEvent event = beginEviction(rbht);
+        removeNode(rbht, RedBlackHashTreeEvent.Type.EVICT);
+        commitEviction(event, "first");
+        return rbht;
+    }
+
+    public RedBlackHashTree<K, V> pollLastNode() {
+        RedBlackHashTree<K, V> rbht = lastNode();
+        if (rbht == null)
+            return null;
+        EvictionEvent event = beginEviction(rbht);
+        removeNode(rbht, RedBlackHashTreeEvent.Type.EVICT);
+        commitEviction(event, "last");
+        return rbht;
+    }
+
+    private EvictionEvent beginEviction(RedBlackHashTree<K, V> target) {
+        if (!RedBlackHashTreeFlightEvents.EVICTION.isEnabled() || !nodeIsValid(target)) {
+            return null;
+        }
+        EvictionEvent event = new EvictionEvent();
+        event.begin();
+        event.compareObj = String.valueOf(target.getCompareObj());
+        event.entries = target.value().size();
+        // polling walks the spine down to target
+        event.descent = target.depth() + 1;
+        return event;
+    }
+
+    private void commitEviction(EvictionEvent event, String end) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.end = end;
+            event.treeSize = count;
+            event.commit();
+        }
+    }
+
+    public Iterator<RedBlackHashTree<K, V>> subIterator(Comparable fromCompareObj, boolean fromInclusive, Comparable toCompareObj,
+            boolean toInclusive) {
+        return new SubIterator(fromCompareObj, toCompareObj, fromInclusive, toInclusive);
+    }
+
+    public Iterator<RedBlackHashTree<K, V>> subIterator(Comparable fromCompareObj, Comparable toCompareObj) {
+        return subIterator(fromCompareObj, true, toCompareObj, false);
+    }
+
+    public Iterator<RedBlackHashTree<K, V>> headIterator(Comparable toCompareObj, boolean inclusive) {
+        if (isEmpty())
+            return Collections.<RedBlackHashTree<K, V>>emptyIterator();
+        return subIterator(firstNode().getCompareObj(), true, toCompareObj, inclusive);
+    }
+
+    public Iterator<RedBlackHashTree<K, V>> headIterator(Comparable toCompareObj) {
+        return headIterator(toCompareObj, false);
+    }
+
+    public Iterator<RedBlackHashTree<K, V>> tailIterator(Comparable fromCompareObj, boolean inclusive) {
+        if (isEmpty())
+            return Collections.<RedBlackHashTree<K, V>>emptyIterator();
+        return subIterator(fromCompareObj, inclusive, lastNode().getCompareObj(), true);
+    }
+
+    public Iterator<RedBlackHashTree<K, V>> tailIterator(Comparable fromCompareObj) {
+        return tailIterator(fromCompareObj, false);
+    }
+    
+    /**
+     * Looks up many keys in one ascending sweep.  Keys are sorted by
+     * compare object and each bucket is reached from the previous one, so
+     * clustered keys cost close to O(k + log n) instead of O(k log n).
+     * Under an LRU size bound each key found counts as read, as in get.
+     *
+     * @param keys the keys sought
+     * @return the value of each key, in the iteration order of keys,
+     *         or null where a key is not found
+     */
+    public List<V> getAll(Collection<K> keys) {
+        final List<K> probes = new ArrayList<K>(keys);
+        Integer[] order = new Integer[probes.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return compareObjOf(probes.get(i1)).compareTo(compareObjOf(probes.get(i2)));
+            }
+        });
+        List<V> result = new ArrayList<V>(Collections.<V>nCopies(order.length, null));
+        RedBlackHashTree<K, V> finger = null;
+        for (Integer idx : order) {
+            K key = probes.get(idx);
+            Comparable compareObj = compareObjOf(key);
+            finger = ceilingFrom(finger, compareObj, true);
+            if (finger == null) {
+                break;
+            }
+            if (compareObj.compareTo(finger.getCompareObj()) == 0) {
+                V value = finger.value().get(key);
+                if (accessOrder != null && value != null)
+                    accessOrder.touch(finger.getCompareObj(), key);
+                result.set(idx, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the buckets of many ranges in one ascending sweep.  Ranges
+     * are visited in order of their lower bound and each one is entered
+     * from where the previous one started, skipping subtrees that no range
+     * touches.  A range whose lower bound lies above its upper bound is empty.
+     * Under an LRU size bound every entry of a bucket returned counts as read.
+     *
+     * @param ranges the ranges sought
+     * @return for each range, in the order given, its buckets in ascending order
+     */
+    public List<List<RedBlackHashTree<K, V>>> queryRanges(final List<RedBlackHashTreeRange> ranges) {
+        Integer[] order = new Integer[ranges.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                RedBlackHashTreeRange r1 = ranges.get(i1);
+                RedBlackHashTreeRange r2 = ranges.get(i2);
+                Comparable from1 = r1.getFrom();
+                Comparable from2 = r2.getFrom();
+                if (from1 == null || from2 == null)
+                    return from1 == from2 ? 0 : (from1 == null ? -1 : 1);
+                int cmp = from1.compareTo(from2);
+                if (cmp != 0 || r1.isFromInclusive() == r2.isFromInclusive())
+                    return cmp;
+                // an inclusive bound starts at or before an exclusive one
+                return r1.isFromInclusive() ? -1 : 1;
+            }
+        });
+
+        List<List<RedBlackHashTree<K, V>>> result = new ArrayList<List<RedBlackHashTree<K, V>>>(order.length);
+        for (int i = 0; i < order.length; i++) {
+            result.add(null);
+        }
+        RedBlackHashTree<K, V> finger = null;
+        for (Integer idx : order) {
+            RedBlackHashTreeRange range = ranges.get(idx);
+            List<RedBlackHashTree<K, V>> buckets = new ArrayList<RedBlackHashTree<K, V>>();
+            RedBlackHashTree<K, V> start;
+            if (range.getFrom() == null) {
+                start = nodeIsValid(root) ? firstNode() : null;
+            } else {
+                start = ceilingFrom(finger, range.getFrom(), range.isFromInclusive());
+            }
+            for (RedBlackHashTree<K, V> p = start; nodeIsValid(p) && range.belowTo(p.getCompareObj()); p = successor(p)) {
+                buckets.add(p);
+                if (accessOrder != null) {
+                    for (K key : p.value().keySet()) {
+                        accessOrder.touch(p.getCompareObj(), key);
+                    }
+                }
+            }
+            if (start != null) {
+                finger = start;
+            }
+            result.set(idx, buckets);
+        }
+        return result;
+    }
+
+    /**
+     * Publishes the buckets of range in ascending order, as unmodifiable
+     * copies, emitting one bucket per unit of demand on executor.
+     *
+     * @see RedBlackHashTreePublisher
+     */
+    public Flow.Publisher<Map<K, V>> bucketPublisher(RedBlackHashTreeRange range, Executor executor) {
+        return new RedBlackHashTreePublisher<K, V, Map<K, V>>(this, range, executor, false);
+    }
+
+    /**
+     * Publishes the entries of range, bucket by bucket in ascending order,
+     * emitting one entry per unit of demand on executor.
+     *
+     * @see RedBlackHashTreePublisher
+     */
+    public Flow.Publisher<Map.Entry<K, V>> entryPublisher(RedBlackHashTreeRange range, Executor executor) {
+        return new RedBlackHashTreePublisher<K, V, Map.Entry<K, V>>(this, range, executor, true);
+    }
+
+    /**
+     * Aggregates the values of range over windows of size compare object
+     * units, starting every slide units, in one ascending pass.  The
+     * compare objects must be Numbers.
+     *
+     * @see RedBlackHashTreeWindows
+     */
+    public <A> Iterator<RedBlackHashTreeWindows.Window<A>> windows(RedBlackHashTreeRange range, long size, long slide,
+            Collector<? super V, ?, A> collector) {
+        return new RedBlackHashTreeWindows<K, V, A>(this, range, size, slide, collector);
+    }
+
+    /**
+     * Cuts this map at compareObj in logarithmic time.  The nodes move to
+     * the two new maps and this map is left empty.  The new maps keep the
+     * bounds, eviction policies and eviction listener of this one, and
+     * under LRU each keeps the access order of its entries, which takes
+     * time linear in the entries.  Subscriptions stay with this map and
+     * are not told, since no entry leaves the pair of maps.
+     *
+     * @return the buckets before compareObj and those from compareObj on
+     */
+    public SplitResult<K, V> splitAt(Comparable compareObj)
+    {
+        AccessOrder<K, V> lowerOrder = null;
+        AccessOrder<K, V> upperOrder = null;
+        if (accessOrder != null) {
+            lowerOrder = new AccessOrder<K, V>();
+            upperOrder = new AccessOrder<K, V>();
+            accessOrder.splitInto(compareObj, lowerOrder, upperOrder);
+        }
+        RedBlackHashTree.Split<K, V> split = RedBlackHashTree.split(root, compareObj);
+        RedBlackHashTree<K, V> right = split.right;
+        if (split.middle != null) {
+            right = RedBlackHashTree.join(null, split.middle, right);
+        }
+        int rightCount = right == null ? 0 : right.weight;
+        SplitResult<K, V> result = new SplitResult<K, V>(adopt(split.left, split.leftWeight(), lowerOrder),
+                adopt(right, rightCount, upperOrder));
+        forget();
+        return result;
+    }
+
+    /**
+     * Concatenates two maps in logarithmic time.  The nodes move to the
+     * new map and both maps are left empty.  The new map keeps the bounds,
+     * eviction policies and eviction listener of left, and is trimmed to
+     * its maximum size.  Under LRU, if both maps keep an access order, the
+     * entries of right count as used after those of left, which takes time
+     * linear in the entries; otherwise all count as used in comparable
+     * order.  Subscriptions stay with the old maps and are not told.
+     *
+     * @pre every compare object of left is less than every one of right
+     * @return a map of the buckets of both
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> join(RedBlackHashTreeMap<K, V> left,
+            RedBlackHashTreeMap<K, V> right)
+    {
+        if (!left.isEmpty() && !right.isEmpty()
+                && left.lastNode().getCompareObj().compareTo(right.firstNode().getCompareObj()) >= 0) {
+            throw new IllegalArgumentException("maps overlap: " + left.lastNode().getCompareObj()
+                    + " is not less than " + right.firstNode().getCompareObj());
+        }
+        int count = left.count + right.count;
+        AccessOrder<K, V> order = null;
+        if (left.accessOrder != null && right.accessOrder != null) {
+            order = new AccessOrder<K, V>();
+            order.append(left.accessOrder);
+            order.append(right.accessOrder);
+        }
+        RedBlackHashTree<K, V> root = RedBlackHashTree.join(left.root, right.root);
+        RedBlackHashTreeMap<K, V> joined = left.adopt(root, count, order);
+        left.forget();
+        right.forget();
+        return joined;
+    }
+
+    /**
+     * @return a map over root, which holds count entries, with the bounds,
+     *         eviction policies and eviction listener of this map, trimmed
+     *         to its maximum size; under LRU its entries count as used in
+     *         comparable order
+     */
+    RedBlackHashTreeMap<K, V> adopt(RedBlackHashTree<K, V> root, int count)
+    {
+        return adopt(root, count, null);
+    }
+
+    /**
+     * @param order the access order of the entries of root, or null
+     */
+    private RedBlackHashTreeMap<K, V> adopt(RedBlackHashTree<K, V> root, int count, AccessOrder<K, V> order)
+    {
+        RedBlackHashTreeMap<K, V> map = new RedBlackHashTreeMap<K, V>(extractor, longExtractor);
+        if (root != null) {
+            map.root = root;
+        }
+        map.count = count;
+        map.bucketCapacity = bucketCapacity;
+        map.bucketEvictionPolicy = bucketEvictionPolicy;
+        map.evictionListener = evictionListener;
+        map.accessOrder = order;
+        map.setMaxSize(maxSize, sizeEvictionPolicy);
+        return map;
+    }
+
+    /**
+     * Takes root, rebuilt from nodes of this map and maybe of others, as
+     * its tree; under LRU the entries count as used in comparable order,
+     * and the map is trimmed to its maximum size.
+     *
+     * @param root the new root, or null for none
+     */
+    void restore(RedBlackHashTree<K, V> root)
+    {
+        this.root = root == null ? new RedBlackHashTree<K, V>() : root;
+        count = root == null ? 0 : root.weight;
+        accessOrder = null;
+        setMaxSize(maxSize, sizeEvictionPolicy);
+    }
+
+    /**
+     * Empties this map after its nodes have been handed to another
+     */
+    void forget()
+    {
+        root = new RedBlackHashTree<K, V>();
+        count = 0;
+        if (accessOrder != null) {
+            accessOrder.clear();
+        }
+    }
+
+    /**
+     * Prepares a rollup of the buckets of range into coarser buckets, to be
+     * run in slices.
+     *
+     * @param coarsen maps a compare object to the one of its coarse bucket
+     * @param rekey maps a key and its coarse compare object to the key
+     *        stored in the coarse bucket
+     * @param merge combines values that meet under the same key
+     * @see RedBlackHashTreeCompaction
+     */
+    public RedBlackHashTreeCompaction<K, V> compaction(RedBlackHashTreeRange range, Function<Comparable, Comparable> coarsen,
+            BiFunction<? super K, Comparable, ? extends K> rekey, BiFunction<? super V, ? super V, ? extends V> merge) {
+        return new RedBlackHashTreeCompaction<K, V>(this, range, coarsen, rekey, merge);
+    }
+
+    /**
+     * Performs action on every entry, splitting the subtrees across the
+     * common ForkJoinPool; action must be safe to call from several
+     * threads at once.
+     */
+    public void parallelForEach(BiConsumer<? super K, ? super V> action) {
+        RedBlackHashTreeBulk.forEach(root, action);
+    }
+
+    /**
+     * Reduces the transformed entries in parallel.  reducer sees the
+     * results in ascending compare object order, so it need only be
+     * associative; null results are skipped.
+     *
+     * @return the reduction, or null if there was nothing to reduce
+     */
+    public <R> R parallelReduce(BiFunction<? super K, ? super V, ? extends R> transformer, BinaryOperator<R> reducer) {
+        return RedBlackHashTreeBulk.reduce(root, transformer, reducer);
+    }
+
+    /**
+     * Replaces every value with function of its entry in parallel.  When
+     * somebody is subscribed the entries are replaced in order on the
+     * calling thread instead, so listeners see the PUT events there.
+     */
+    public void parallelReplaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        if (subscriptions == null) {
+            RedBlackHashTreeBulk.replaceAll(root, function);
+            return;
+        }
+        for (RedBlackHashTree<K, V> p = firstNode(); nodeIsValid(p); p = successor(p)) {
+            for (Map.Entry<K, V> entry : p.value().entrySet()) {
+                V old = entry.getValue();
+                V value = function.apply(entry.getKey(), old);
+                entry.setValue(value);
+                fire(RedBlackHashTreeEvent.Type.PUT, p.getCompareObj(), entry.getKey(), old, value, true);
+            }
+        }
     }
-    
-    public V lowerValue(K key) {
-        RedBlackHashTree<K, V> result = lowerNode(key.getComparableObject());
-        return result == null ? null : result.value().get(key);
+
+    /**
+     * Removes every entry filter accepts.  The buckets are filtered in
+     * parallel; if any of them empties, the tree is rebuilt from the
+     * surviving nodes in one linear pass instead of deleting the emptied
+     * nodes one at a time.  Subscribers are told of the removals
+     * afterwards, in order, on the calling thread.  If filter throws, the
+     * entries removed until then stay removed and are settled the same
+     * way before the exception is rethrown.
+     *
+     * @return the number of entries removed
+     */
+    public int parallelRemoveIf(BiPredicate<? super K, ? super V> filter) {
+        boolean record = accessOrder != null || subscriptions != null;
+        RedBlackHashTreeBulk.Removed removed = new RedBlackHashTreeBulk.Removed(record);
+        try {
+            RedBlackHashTreeBulk.removeIf(root, filter, removed);
+        } catch (Throwable e) {
+            settleRemoved(removed, true);
+            throw e;
+        }
+        settleRemoved(removed, false);
+        return removed.count;
     }
-    
-    public RedBlackHashTree<K, V> pollFirstNode() {
-        RedBlackHashTree<K, V> rbht = firstNode();
-        removeNode(rbht);
-        return rbht;
+
+    /**
+     * Settles the size, the tree, the access order and the subscribers
+     * after a parallel removal
+     *
+     * @param failed whether the removal was cut short, leaving the
+     *        weights of the nodes and the order of the entries off
+     */
+    private void settleRemoved(RedBlackHashTreeBulk.Removed removed, boolean failed) {
+        if (removed.count == 0) {
+            return;
+        }
+        count -= removed.count;
+        if (removed.buckets > 0 || failed) {
+            RedBlackHashTree<K, V> rebuilt = RedBlackHashTreeBulk.rebuild(root);
+            root = rebuilt == null ? new RedBlackHashTree<K, V>() : rebuilt;
+        }
+        if (removed.entries != null) {
+            if (failed) {
+                Collections.sort(removed.entries, new Comparator<Object[]>() {
+                    public int compare(Object[] a, Object[] b) {
+                        return ((Comparable) a[0]).compareTo(b[0]);
+                    }
+                });
+            }
+            for (Object[] entry : removed.entries) {
+                Comparable compareObj = (Comparable) entry[0];
+                K key = (K) entry[1];
+                if (accessOrder != null)
+                    accessOrder.remove(compareObj, key);
+                if (subscriptions != null)
+                    fire(RedBlackHashTreeEvent.Type.REMOVE, compareObj, key, (V) entry[2], null);
+            }
+        }
     }
 
-    public RedBlackHashTree<K, V> pollLastNode() {
-        RedBlackHashTree<K, V> rbht = lastNode();
-        removeNode(rbht);
-        return rbht;
+    /**
+     * Registers listener for every change to a bucket whose compare object
+     * lies within range: puts, removals, bucket removals through
+     * iterators and evictions such as {@link #pollFirstNode()}.  Listeners
+     * are called on the mutating thread, after the change is applied.  A
+     * map without subscriptions pays nothing for this.
+     *
+     * @return the subscription, to be cancelled once no longer needed
+     */
+    public Subscription<K, V> subscribe(RedBlackHashTreeRange range, RedBlackHashTreeListener<K, V> listener) {
+        Subscription<K, V> subscription = new Subscription<K, V>(this, range, listener);
+        synchronized (this) {
+            Subscription[] old = subscriptions;
+            Subscription[] copy;
+            if (old == null) {
+                copy = new Subscription[1];
+            } else {
+                copy = Arrays.copyOf(old, old.length + 1);
+            }
+            copy[copy.length - 1] = subscription;
+            subscriptions = copy;
+        }
+        return subscription;
     }
 
-    public Iterator<RedBlackHashTree<K, V>> subIterator(Comparable fromCompareObj, boolean fromInclusive, Comparable toCompareObj,
-            boolean toInclusive) {
-        return new SubIterator(fromCompareObj, toCompareObj, fromInclusive, toInclusive);
+    /**
+     * Subscribes to range by offering every change event to queue, so a
+     * consumer on another thread can drain them incrementally.
+     *
+     * @see #subscribe(RedBlackHashTreeRange, RedBlackHashTreeListener)
+     */
+    public Subscription<K, V> subscribe(RedBlackHashTreeRange range, final Queue<? super RedBlackHashTreeEvent<K, V>> queue) {
+        return subscribe(range, new RedBlackHashTreeListener<K, V>() {
+            public void onEvent(RedBlackHashTreeEvent<K, V> event) {
+                queue.offer(event);
+            }
+        });
     }
 
-    public Iterator<RedBlackHashTree<K, V>> subIterator(Comparable fromCompareObj, Comparable toCompareObj) {
-        return subIterator(fromCompareObj, true, toCompareObj, false);
+    private synchronized void unsubscribe(Subscription<K, V> subscription) {
+        Subscription[] old = subscriptions;
+        if (old == null) {
+            return;
+        }
+        int idx = Arrays.asList(old).indexOf(subscription);
+        if (idx < 0) {
+            return;
+        }
+        if (old.length == 1) {
+            subscriptions = null;
+        } else {
+            Subscription[] copy = new Subscription[old.length - 1];
+            System.arraycopy(old, 0, copy, 0, idx);
+            System.arraycopy(old, idx + 1, copy, idx, old.length - idx - 1);
+            subscriptions = copy;
+        }
     }
 
-    public Iterator<RedBlackHashTree<K, V>> headIterator(Comparable toCompareObj, boolean inclusive) {
-        return subIterator(firstNode().getCompareObj(), true, toCompareObj, inclusive);
+    /**
+     * Fires a REMOVE or EVICT, whose entry existed
+     */
+    private void fire(RedBlackHashTreeEvent.Type type, Comparable compareObj, K key, V oldValue, V newValue) {
+        fire(type, compareObj, key, oldValue, newValue, true);
     }
 
-    public Iterator<RedBlackHashTree<K, V>> headIterator(Comparable toCompareObj) {
-        return subIterator(firstNode().getCompareObj(), true, toCompareObj, false);
+    private void fire(RedBlackHashTreeEvent.Type type, Comparable compareObj, K key, V oldValue, V newValue, boolean existed) {
+        Subscription[] subs = subscriptions;
+        if (subs == null) {
+            return;
+        }
+        RedBlackHashTreeEvent<K, V> event = null;
+        for (Subscription<K, V> sub : subs) {
+            if (sub.range.contains(compareObj)) {
+                if (event == null) {
+                    event = new RedBlackHashTreeEvent<K, V>(type, compareObj, key, oldValue, newValue, existed);
+                }
+                sub.listener.onEvent(event);
+            }
+        }
     }
 
-    public Iterator<RedBlackHashTree<K, V>> tailIterator(Comparable fromCompareObj, boolean inclusive) {
-        return subIterator(fromCompareObj, inclusive, lastNode().getCompareObj(), true);
+    private void fireRemoved(RedBlackHashTreeEvent.Type type, Comparable compareObj, Map<K, V> bucket) {
+        Subscription[] subs = subscriptions;
+        if (subs == null) {
+            return;
+        }
+        boolean watched = false;
+        for (Subscription<K, V> sub : subs) {
+            watched |= sub.range.contains(compareObj);
+        }
+        if (watched) {
+            for (Map.Entry<K, V> entry : bucket.entrySet()) {
+                fire(type, compareObj, entry.getKey(), entry.getValue(), null);
+            }
+        }
     }
 
-    public Iterator<RedBlackHashTree<K, V>> tailIterator(Comparable fromCompareObj) {
-        return subIterator(fromCompareObj, false, lastNode().getCompareObj(), true);
+    private void removeNode(RedBlackHashTree<K, V> target, RedBlackHashTreeEvent.Type type) {
+        HashMap<K, V> bucket = target.value();
+        Comparable compareObj = target.getCompareObj();
+        removeNode(target);
+        if (accessOrder != null) {
+            for (K key : bucket.keySet()) {
+                accessOrder.remove(compareObj, key);
+            }
+        }
+        if (subscriptions != null)
+            fireRemoved(type, compareObj, bucket);
     }
-    
+
     private void removeNode(RedBlackHashTree<K, V> target) {
     	this.count -= target.value().size();
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.nodesFreed.increment();
     	
     	// determine the node to be disconnected:
         // two cases: if degree < 2 we remove target node;
@@ -375,6 +1563,12 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
             // freeNode is predecessor
         }
 
+        RedBlackHashTree.unweigh(target, freeNode);
+        if (accessOrder != null && freeNode != target) {
+            for (K key : freeNode.valueMap.keySet()) {
+                accessOrder.moved(freeNode.compareObj, key, target);
+            }
+        }
         target.valueMap = freeNode.valueMap; // move value reference
         target.compareObj = freeNode.compareObj; // move value compareObj
 
@@ -409,7 +1603,265 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
         this.root = result.root();
     }
     
-    private RedBlackHashTree<K, V> successor(RedBlackHashTree<K, V> t) {
+    /**
+     * Walks from the root towards the bucket of compareObj.
+     *
+     * @return the bucket holding compareObj, otherwise the last bucket
+     *         visited (the parent a new bucket would hang from), or null
+     *         if the tree is empty
+     */
+    private RedBlackHashTree<K, V> descend(Comparable compareObj) {
+        RedBlackHashTree<K, V> p = root;
+        if (!nodeIsValid(p)) {
+            lastDescent = 0;
+            return null;
+        }
+        int length = 1;
+        while (true) {
+            int cmp = compareObj.compareTo(p.getCompareObj());
+            if (cmp < 0 && nodeIsValid(p.left())) {
+                p = p.left();
+            } else if (cmp > 0 && nodeIsValid(p.right())) {
+                p = p.right();
+            } else {
+                RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+                if (stats != null) stats.descent.record(length);
+                lastDescent = length;
+                return p;
+            }
+            length++;
+        }
+    }
+
+    /**
+     * Hangs a new bucket holding key/value below parent, on the side given
+     * by cmp, and rebalances the tree.  A null parent means the tree is empty.
+     */
+    private void attach(RedBlackHashTree<K, V> parent, int cmp, Comparable compareObj, K key, V value) {
+        RedBlackHashTree<K, V> node = new RedBlackHashTree<K, V>(compareObj, key, value, newBucket());
+        if (parent == null) {
+            root = node;
+        } else {
+            if (cmp < 0)
+                parent.setLeft(node);
+            else
+                parent.setRight(node);
+            parent.addWeight(1);
+            node.setRed();  // we insert nodes as red nodes - a first guess
+            node.redFixup();
+            root = node.root();
+        }
+        count++;
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.bucketSize.record(1);
+        if (subscriptions != null)
+            fire(RedBlackHashTreeEvent.Type.PUT, node.getCompareObj(), key, null, value, false);
+        if (maxSize > 0) {
+            if (accessOrder != null)
+                accessOrder.add(key, node);
+            trimToMaxSize();
+        }
+    }
+
+    /**
+     * A bucket for a new node, ordered for the eviction policy if bounded
+     */
+    private HashMap<K, V> newBucket() {
+        if (bucketCapacity == 0) {
+            return new HashMap<K, V>();
+        }
+        return new LinkedHashMap<K, V>(16, 0.75f, bucketEvictionPolicy == BucketEvictionPolicy.LRU);
+    }
+
+    /**
+     * Stores key/value in an existing bucket, keeping count accurate.  A
+     * new key in a full bucket evicts or is rejected as the policy says.
+     * The new key goes in first, so the bucket never empties while the
+     * eviction listener runs.
+     */
+    private V bucketPut(RedBlackHashTree<K, V> node, K key, V value) {
+        HashMap<K, V> bucket = node.value();
+        boolean full = bucketCapacity > 0 && bucket.size() >= bucketCapacity && !bucket.containsKey(key);
+        if (full && bucketEvictionPolicy == BucketEvictionPolicy.REJECT) {
+            throw new IllegalStateException("bucket " + node.getCompareObj() + " is full");
+        }
+        int oldSize = bucket.size();
+        V old = bucket.put(key, value);
+        boolean existed = bucket.size() == oldSize;
+        if (!existed) {
+            count++;
+            node.addWeight(1);
+        }
+        while (full && bucket.size() > bucketCapacity) {
+            // insertion or access order puts the eldest entry first and the
+            // new one last
+            Iterator<Map.Entry<K, V>> eldest = bucket.entrySet().iterator();
+            Map.Entry<K, V> entry = eldest.next();
+            K evictedKey = entry.getKey();
+            V evictedValue = entry.getValue();
+            eldest.remove();
+            count--;
+            node.addWeight(-1);
+            if (accessOrder != null)
+                accessOrder.remove(node.getCompareObj(), evictedKey);
+            evicted(node.getCompareObj(), evictedKey, evictedValue);
+        }
+        RedBlackHashTreeStats stats = RedBlackHashTreeStats.current;
+        if (stats != null) stats.bucketSize.record(bucket.size());
+        if (subscriptions != null)
+            fire(RedBlackHashTreeEvent.Type.PUT, node.getCompareObj(), key, old, value, existed);
+        if (maxSize > 0) {
+            if (accessOrder != null)
+                accessOrder.add(key, node);
+            trimToMaxSize();
+        }
+        return old;
+    }
+
+    /**
+     * Removes key from an existing bucket, unlinking the bucket from the
+     * tree if key was its last entry.
+     */
+    private V bucketRemove(RedBlackHashTree<K, V> node, K key) {
+        HashMap<K, V> bucket = node.value();
+        if (!bucket.containsKey(key)) {
+            return null;
+        }
+        if (bucket.size() == 1) {
+            V old = bucket.get(key);
+            removeNode(node, RedBlackHashTreeEvent.Type.REMOVE);
+            return old;
+        }
+        count--;
+        V old = bucket.remove(key);
+        node.addWeight(-1);
+        if (accessOrder != null)
+            accessOrder.remove(node.getCompareObj(), key);
+        if (subscriptions != null)
+            fire(RedBlackHashTreeEvent.Type.REMOVE, node.getCompareObj(), key, old, null);
+        return old;
+    }
+
+    /**
+     * Evicts entries until the map is back within maxSize.  The LRU order
+     * knows the node of its eldest entry, so the tree is not searched.
+     */
+    private void trimToMaxSize() {
+        if (maxSize == 0 || count <= maxSize) {
+            return;
+        }
+        // one event for the whole trim rather than one per entry
+        EvictionEvent event = null;
+        if (RedBlackHashTreeFlightEvents.EVICTION.isEnabled()) {
+            event = new EvictionEvent();
+            event.begin();
+        }
+        while (count > maxSize) {
+            RedBlackHashTree<K, V> node;
+            K key;
+            if (accessOrder != null) {
+                AccessLink<K, V> eldest = accessOrder.eldest();
+                node = eldest.node;
+                key = eldest.key;
+            } else {
+                node = firstNode();
+                key = node.value().keySet().iterator().next();
+            }
+            HashMap<K, V> bucket = node.value();
+            Comparable compareObj = node.getCompareObj();
+            V value = bucket.get(key);
+            if (bucket.size() == 1) {
+                removeNode(node);
+            } else {
+                count--;
+                bucket.remove(key);
+                node.addWeight(-1);
+            }
+            if (accessOrder != null)
+                accessOrder.remove(compareObj, key);
+            if (event != null && event.entries++ == 0)
+                event.compareObj = String.valueOf(compareObj);
+            evicted(compareObj, key, value);
+        }
+        commitEviction(event, "size");
+    }
+
+    /**
+     * Reports an entry evicted by a bucket or size bound.
+     */
+    private void evicted(Comparable compareObj, K key, V value) {
+        if (subscriptions != null)
+            fire(RedBlackHashTreeEvent.Type.EVICT, compareObj, key, value, null);
+        RedBlackHashTreeListener<K, V> listener = evictionListener;
+        if (listener != null)
+            listener.onEvent(new RedBlackHashTreeEvent<K, V>(RedBlackHashTreeEvent.Type.EVICT, compareObj, key, value, null));
+    }
+
+    /**
+     * Finds the ceiling (inclusive) or higher (exclusive) bucket of
+     * compareObj starting from finger rather than from the root.  The
+     * search climbs from finger only as far as needed, so a target in the
+     * subtree around finger skips the upper levels; the worst case is
+     * still O(log n), when the climb has to reach the root.
+     *
+     * @pre finger is null, or no bucket lies between compareObj and finger
+     */
+    private RedBlackHashTree<K, V> ceilingFrom(RedBlackHashTree<K, V> finger, Comparable compareObj, boolean inclusive) {
+        if (!nodeIsValid(finger)) {
+            return inclusive ? ceilingNode(compareObj) : higherNode(compareObj);
+        }
+        int cmp = compareObj.compareTo(finger.getCompareObj());
+        if (cmp < 0 || (cmp == 0 && inclusive)) {
+            return finger;
+        }
+        // climb while the parent still lies before the target; we stop
+        // as a left child whose parent is at or after the target, so the
+        // answer is in the subtree of x or is its parent
+        RedBlackHashTree<K, V> x = finger;
+        while (!x.isRoot()) {
+            cmp = compareObj.compareTo(x.parent().getCompareObj());
+            if (cmp < 0 || (cmp == 0 && inclusive))
+                break;
+            x = x.parent();
+        }
+        RedBlackHashTree<K, V> best = null;
+        RedBlackHashTree<K, V> p = x;
+        while (nodeIsValid(p)) {
+            cmp = compareObj.compareTo(p.getCompareObj());
+            if (cmp < 0 || (cmp == 0 && inclusive)) {
+                best = p;
+                if (cmp == 0)
+                    break;
+                p = p.left();
+            } else {
+                p = p.right();
+            }
+        }
+        return best != null ? best : x.parent();
+    }
+
+    private RedBlackHashTree<K, V> first(RedBlackHashTree<K, V> t) {
+        while (nodeIsValid(t.left())) {
+            t = t.left();
+        }
+        return t;
+    }
+
+    /**
+     * @return the first bucket of range, or null if range holds none
+     */
+    RedBlackHashTree<K, V> firstNode(RedBlackHashTreeRange range) {
+        RedBlackHashTree<K, V> p;
+        Comparable from = range.getFrom();
+        if (from == null) {
+            p = nodeIsValid(root) ? first(root) : null;
+        } else {
+            p = range.isFromInclusive() ? ceilingNode(from) : higherNode(from);
+        }
+        return nodeIsValid(p) && range.belowTo(p.getCompareObj()) ? p : null;
+    }
+
+    RedBlackHashTree<K, V> successor(RedBlackHashTree<K, V> t) {
     	
     	if(!nodeIsValid(t)) {
     	    return null;
@@ -430,7 +1882,7 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     	}
     }
     
-    private RedBlackHashTree<K, V> predecessor(RedBlackHashTree<K, V> t) {
+    RedBlackHashTree<K, V> predecessor(RedBlackHashTree<K, V> t) {
     	if(!nodeIsValid(t)) {
     	    return null;
     	} else if (nodeIsValid(t.left())) {
@@ -450,7 +1902,7 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
     	}
     }
     
-    private boolean nodeIsValid(RedBlackHashTree<K, V> t) {
+    boolean nodeIsValid(RedBlackHashTree<K, V> t) {
     	return t != null && !t.isEmpty();
     }
     
@@ -470,12 +1922,22 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
         
         private boolean includeEnd;
         
+        /**
+         * The flight recorder event of this scan, or null when not recorded
+         */
+        private ScanEvent event;
+        
         public SubIterator(Comparable start, Comparable end, boolean includeStart, boolean includeEnd) {
             this.start = start;
         	this.end = end;
             this.includeStart = includeStart;
             this.includeEnd = includeEnd;
             isReverse = ((Comparable)start).compareTo(end) > 0 ? true : false;
+            if (RedBlackHashTreeFlightEvents.SCAN.isEnabled()) {
+                event = new ScanEvent();
+                event.depth = -1;
+                event.begin();
+            }
         }
 
         public boolean hasNext() {
@@ -485,6 +1947,11 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
         public RedBlackHashTree<K, V> next() {
             if (next != null) {
         		current = next;
+        		if (event != null) {
+        		    if (event.nodes++ == 0)
+        		        event.depth = current.depth();
+        		    event.entries += current.value().size();
+        		}
         		next = traversal();
         		return current;
         	} 
@@ -534,12 +2001,330 @@ public class RedBlackHashTreeMap<K extends RedBlackHashTreeComparable, V> implem
                 		}
                 	}
                 }
+            }
+            if (event != null) {
+                commitScan();
             }
         	return null;
         }
 
+        private void commitScan() {
+            ScanEvent finished = event;
+            event = null;
+            finished.end();
+            if (finished.shouldCommit()) {
+                finished.from = String.valueOf(start);
+                finished.to = String.valueOf(end);
+                finished.treeSize = count;
+                finished.commit();
+            }
+        }
+
         public void remove() {
-            removeNode(current);
+            removeNode(current, RedBlackHashTreeEvent.Type.REMOVE);
+        }
+    }
+
+    /**
+     * What a bucket at capacity does when a new key is put into it.
+     *
+     * @see RedBlackHashTreeMap#setBucketCapacity(int, BucketEvictionPolicy)
+     */
+    public static enum BucketEvictionPolicy {
+        /**
+         * Evict the entry inserted first
+         */
+        OLDEST,
+        /**
+         * Evict the entry least recently put or read
+         */
+        LRU,
+        /**
+         * Keep the bucket as it is and fail the put with an IllegalStateException
+         */
+        REJECT
+    }
+
+    /**
+     * The two maps a map was split into
+     *
+     * @see RedBlackHashTreeMap#splitAt(Comparable)
+     */
+    public static class SplitResult<K, V> {
+
+        private final RedBlackHashTreeMap<K, V> left;
+
+        private final RedBlackHashTreeMap<K, V> right;
+
+        SplitResult(RedBlackHashTreeMap<K, V> left, RedBlackHashTreeMap<K, V> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * @return the buckets before the split point
+         */
+        public RedBlackHashTreeMap<K, V> getLeft() {
+            return left;
+        }
+
+        /**
+         * @return the buckets at and after the split point
+         */
+        public RedBlackHashTreeMap<K, V> getRight() {
+            return right;
+        }
+    }
+
+    /**
+     * Which entries a map at its maximum size evicts first.
+     *
+     * @see RedBlackHashTreeMap#setMaxSize(int, SizeEvictionPolicy)
+     */
+    public static enum SizeEvictionPolicy {
+        /**
+         * Evict from the bucket with the lowest compare object
+         */
+        OLDEST_COMPARABLE,
+        /**
+         * Evict the entry least recently put or read
+         */
+        LRU
+    }
+
+    /**
+     * The LRU order of the entries of a map: a circular list threaded
+     * through one link per entry.  A key is only unique within its bucket,
+     * so the links are found by compare object and key, in a hash table
+     * chained through the links themselves; touching an entry relinks it
+     * without allocating.
+     */
+    private static class AccessOrder<K, V> {
+
+        private AccessLink<K, V>[] table = newTable(16);
+
+        private int size;
+
+        /**
+         * Sentinel: after is the eldest link, before the youngest
+         */
+        private final AccessLink<K, V> head = new AccessLink<K, V>(null, null, null, 0);
+
+        /**
+         * Records a put of key into the bucket of node as its most recent
+         * use.
+         */
+        void add(K key, RedBlackHashTree<K, V> node) {
+            Comparable compareObj = node.getCompareObj();
+            int hash = hash(compareObj, key);
+            AccessLink<K, V> link = find(hash, compareObj, key);
+            if (link == null) {
+                link = new AccessLink<K, V>(compareObj, key, node, hash);
+                insert(link);
+            } else {
+                link.unlink();
+            }
+            link.linkBefore(head);
+        }
+
+        /**
+         * Moves the entry of key in the bucket of compareObj to the most
+         * recent end.
+         */
+        void touch(Comparable compareObj, Object key) {
+            AccessLink<K, V> link = find(hash(compareObj, key), compareObj, key);
+            if (link != null) {
+                link.unlink();
+                link.linkBefore(head);
+            }
+        }
+
+        /**
+         * Records that the bucket of compareObj, which holds key, moved to
+         * node.
+         */
+        void moved(Comparable compareObj, Object key, RedBlackHashTree<K, V> node) {
+            find(hash(compareObj, key), compareObj, key).node = node;
+        }
+
+        void remove(Comparable compareObj, Object key) {
+            int hash = hash(compareObj, key);
+            int i = hash & (table.length - 1);
+            for (AccessLink<K, V> link = table[i], prev = null; link != null; prev = link, link = link.chain) {
+                if (link.matches(hash, compareObj, key)) {
+                    if (prev == null)
+                        table[i] = link.chain;
+                    else
+                        prev.chain = link.chain;
+                    link.chain = null;
+                    link.unlink();
+                    size--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @pre the order is not empty
+         */
+        AccessLink<K, V> eldest() {
+            return head.after;
+        }
+
+        /**
+         * Moves every link, eldest first, to the end of lower if its
+         * compare object lies below compareObj and of upper otherwise.
+         */
+        void splitInto(Comparable compareObj, AccessOrder<K, V> lower, AccessOrder<K, V> upper) {
+            for (AccessLink<K, V> link = head.after, next; link != head; link = next) {
+                next = link.after;
+                (link.compareObj.compareTo(compareObj) < 0 ? lower : upper).append(link);
+            }
+            clear();
+        }
+
+        /**
+         * Moves every link of other, eldest first, to the most recent end.
+         */
+        void append(AccessOrder<K, V> other) {
+            for (AccessLink<K, V> link = other.head.after, next; link != other.head; link = next) {
+                next = link.after;
+                append(link);
+            }
+            other.clear();
+        }
+
+        private void append(AccessLink<K, V> link) {
+            insert(link);
+            link.linkBefore(head);
+        }
+
+        void clear() {
+            Arrays.fill(table, null);
+            size = 0;
+            head.before = head.after = head;
+        }
+
+        private AccessLink<K, V> find(int hash, Comparable compareObj, Object key) {
+            for (AccessLink<K, V> link = table[hash & (table.length - 1)]; link != null; link = link.chain) {
+                if (link.matches(hash, compareObj, key))
+                    return link;
+            }
+            return null;
+        }
+
+        private void insert(AccessLink<K, V> link) {
+            if (++size > table.length - (table.length >>> 2)) {
+                AccessLink<K, V>[] old = table;
+                table = newTable(old.length * 2);
+                for (AccessLink<K, V> chain : old) {
+                    while (chain != null) {
+                        AccessLink<K, V> next = chain.chain;
+                        int i = chain.hash & (table.length - 1);
+                        chain.chain = table[i];
+                        table[i] = chain;
+                        chain = next;
+                    }
+                }
+            }
+            int i = link.hash & (table.length - 1);
+            link.chain = table[i];
+            table[i] = link;
+        }
+
+        private static int hash(Comparable compareObj, Object key) {
+            int h = compareObj.hashCode() * 31 + key.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K, V> AccessLink<K, V>[] newTable(int length) {
+            return (AccessLink<K, V>[]) new AccessLink[length];
+        }
+    }
+
+    /**
+     * The link of an entry in the LRU order, which knows the node of the
+     * entry so eviction need not search the tree for it
+     */
+    private static class AccessLink<K, V> {
+
+        private final Comparable compareObj;
+
+        private final K key;
+
+        /**
+         * The node whose bucket holds the entry; a deletion that moves a
+         * bucket to another node moves its links along
+         */
+        private RedBlackHashTree<K, V> node;
+
+        private final int hash;
+
+        /**
+         * The next link of the same hash table slot
+         */
+        private AccessLink<K, V> chain;
+
+        private AccessLink<K, V> before = this;
+
+        private AccessLink<K, V> after = this;
+
+        AccessLink(Comparable compareObj, K key, RedBlackHashTree<K, V> node, int hash) {
+            this.compareObj = compareObj;
+            this.key = key;
+            this.node = node;
+            this.hash = hash;
+        }
+
+        /**
+         * @param key the key sought, or a probe standing for it
+         */
+        boolean matches(int hash, Comparable compareObj, Object key) {
+            return this.hash == hash && key.equals(this.key) && compareObj.equals(this.compareObj);
+        }
+
+        void unlink() {
+            before.after = after;
+            after.before = before;
+        }
+
+        void linkBefore(AccessLink<K, V> next) {
+            before = next.before;
+            after = next;
+            before.after = this;
+            next.before = this;
+        }
+    }
+
+    /**
+     * A listener registered for a range of compare objects.
+     *
+     * @see RedBlackHashTreeMap#subscribe(RedBlackHashTreeRange, RedBlackHashTreeListener)
+     */
+    public static class Subscription<K, V> {
+
+        private final RedBlackHashTreeMap<K, V> map;
+
+        private final RedBlackHashTreeRange range;
+
+        private final RedBlackHashTreeListener<K, V> listener;
+
+        private Subscription(RedBlackHashTreeMap<K, V> map, RedBlackHashTreeRange range, RedBlackHashTreeListener<K, V> listener) {
+            this.map = map;
+            this.range = range;
+            this.listener = listener;
+        }
+
+        public RedBlackHashTreeRange getRange() {
+            return range;
+        }
+
+        /**
+         * Stops the delivery of events to the listener.
+         */
+        public void cancel() {
+            map.unsubscribe(this);
         }
     }
     
@@ -0,0 +1,220 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Ordered walks over several {@link RedBlackHashTreeMap}s at once.
+ * <p>
+ * {@link #join} pairs up the buckets of two maps with equal compare
+ * objects, and {@link #merge} interleaves the buckets of any number of
+ * maps into one ascending stream.  Both advance along the trees with
+ * in-order successors and, on a gap, jump ahead with a ceiling search, so
+ * they cost time linear in the output plus a logarithmic seek per gap.
+ * As with the sub iterators, the maps must not be changed structurally
+ * during the walk.
+ */
+public final class RedBlackHashTreeMerge {
+
+    private RedBlackHashTreeMerge() {
+    }
+
+    /**
+     * Joins left and right on the compare object within range.
+     *
+     * @return the pairs of buckets with equal compare objects, ascending
+     */
+    public static <K1, V1, K2, V2>
+    Iterator<JoinedBuckets<K1, V1, K2, V2>> join(RedBlackHashTreeMap<K1, V1> left, RedBlackHashTreeMap<K2, V2> right,
+            RedBlackHashTreeRange range) {
+        return new JoinIterator<K1, V1, K2, V2>(left, right, range);
+    }
+
+    /**
+     * Merges the buckets of maps within range into ascending compare
+     * object order.  Buckets with equal compare objects come in the order
+     * of their maps in the list.
+     */
+    public static <K, V> Iterator<SourcedBucket<K, V>> merge(
+            List<RedBlackHashTreeMap<K, V>> maps, RedBlackHashTreeRange range) {
+        return new MergeIterator<K, V>(maps, range);
+    }
+
+    /**
+     * @return the next bucket of map within range at or after compareObj,
+     *         starting from node, which lies before compareObj
+     */
+    private static <K, V> RedBlackHashTree<K, V> seek(RedBlackHashTreeMap<K, V> map,
+            RedBlackHashTree<K, V> node, Comparable compareObj, RedBlackHashTreeRange range) {
+        // the next bucket is often the one sought; otherwise jump the gap
+        RedBlackHashTree<K, V> next = map.successor(node);
+        if (map.nodeIsValid(next) && next.getCompareObj().compareTo(compareObj) < 0) {
+            next = map.ceilingNode(compareObj);
+        }
+        return map.nodeIsValid(next) && range.belowTo(next.getCompareObj()) ? next : null;
+    }
+
+    private static <K, V> RedBlackHashTree<K, V> step(RedBlackHashTreeMap<K, V> map,
+            RedBlackHashTree<K, V> node, RedBlackHashTreeRange range) {
+        RedBlackHashTree<K, V> next = map.successor(node);
+        return map.nodeIsValid(next) && range.belowTo(next.getCompareObj()) ? next : null;
+    }
+
+    private static class JoinIterator<K1, V1, K2, V2>
+            implements Iterator<JoinedBuckets<K1, V1, K2, V2>> {
+
+        private final RedBlackHashTreeMap<K1, V1> leftMap;
+
+        private final RedBlackHashTreeMap<K2, V2> rightMap;
+
+        private final RedBlackHashTreeRange range;
+
+        private RedBlackHashTree<K1, V1> left;
+
+        private RedBlackHashTree<K2, V2> right;
+
+        private JoinedBuckets<K1, V1, K2, V2> next;
+
+        JoinIterator(RedBlackHashTreeMap<K1, V1> leftMap, RedBlackHashTreeMap<K2, V2> rightMap, RedBlackHashTreeRange range) {
+            this.leftMap = leftMap;
+            this.rightMap = rightMap;
+            this.range = range;
+            this.left = leftMap.firstNode(range);
+            this.right = rightMap.firstNode(range);
+        }
+
+        public boolean hasNext() {
+            while (next == null && left != null && right != null) {
+                int cmp = left.getCompareObj().compareTo(right.getCompareObj());
+                if (cmp < 0) {
+                    left = seek(leftMap, left, right.getCompareObj(), range);
+                } else if (cmp > 0) {
+                    right = seek(rightMap, right, left.getCompareObj(), range);
+                } else {
+                    next = new JoinedBuckets<K1, V1, K2, V2>(left, right);
+                    left = step(leftMap, left, range);
+                    right = step(rightMap, right, range);
+                }
+            }
+            return next != null;
+        }
+
+        public JoinedBuckets<K1, V1, K2, V2> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JoinedBuckets<K1, V1, K2, V2> result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class MergeIterator<K, V> implements Iterator<SourcedBucket<K, V>> {
+
+        private final List<RedBlackHashTreeMap<K, V>> maps;
+
+        private final RedBlackHashTreeRange range;
+
+        /**
+         * One cursor per map that still has buckets in range
+         */
+        private final PriorityQueue<SourcedBucket<K, V>> heap;
+
+        MergeIterator(List<RedBlackHashTreeMap<K, V>> maps, RedBlackHashTreeRange range) {
+            this.maps = maps;
+            this.range = range;
+            this.heap = new PriorityQueue<SourcedBucket<K, V>>(Math.max(1, maps.size()), new Comparator<SourcedBucket<K, V>>() {
+                public int compare(SourcedBucket<K, V> o1, SourcedBucket<K, V> o2) {
+                    int cmp = o1.node.getCompareObj().compareTo(o2.node.getCompareObj());
+                    return cmp != 0 ? cmp : o1.source - o2.source;
+                }
+            });
+            for (int i = 0; i < maps.size(); i++) {
+                RedBlackHashTree<K, V> first = maps.get(i).firstNode(range);
+                if (first != null) {
+                    heap.add(new SourcedBucket<K, V>(i, first));
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        public SourcedBucket<K, V> next() {
+            SourcedBucket<K, V> head = heap.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            RedBlackHashTree<K, V> following = step(maps.get(head.source), head.node, range);
+            if (following != null) {
+                heap.add(new SourcedBucket<K, V>(head.source, following));
+            }
+            return head;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The buckets of two maps that share a compare object
+     */
+    public static class JoinedBuckets<K1, V1, K2, V2> {
+
+        private final RedBlackHashTree<K1, V1> left;
+
+        private final RedBlackHashTree<K2, V2> right;
+
+        JoinedBuckets(RedBlackHashTree<K1, V1> left, RedBlackHashTree<K2, V2> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Comparable getCompareObj() {
+            return left.getCompareObj();
+        }
+
+        public RedBlackHashTree<K1, V1> getLeft() {
+            return left;
+        }
+
+        public RedBlackHashTree<K2, V2> getRight() {
+            return right;
+        }
+    }
+
+    /**
+     * A bucket together with the index of the map it came from
+     */
+    public static class SourcedBucket<K, V> {
+
+        private final int source;
+
+        private final RedBlackHashTree<K, V> node;
+
+        SourcedBucket(int source, RedBlackHashTree<K, V> node) {
+            this.source = source;
+            this.node = node;
+        }
+
+        /**
+         * @return the index of the map in the list given to merge
+         */
+        public int getSource() {
+            return source;
+        }
+
+        public RedBlackHashTree<K, V> getNode() {
+            return node;
+        }
+    }
+}
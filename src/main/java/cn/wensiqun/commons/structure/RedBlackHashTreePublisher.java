@@ -0,0 +1,226 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the buckets or entries of a {@link RedBlackHashTreeMap} range
+ * to {@link Flow.Subscriber}s, one item per unit of demand.
+ * <p>
+ * A scan holds no node of the tree between items: it remembers the last
+ * compare object it emitted and seeks to the next bucket with
+ * {@link RedBlackHashTreeMap#higherNode(Comparable)}, so memory stays constant
+ * however long the range is.  Each seek runs on the executor while holding
+ * the monitor of the map; writers that run concurrently with a scan must
+ * synchronize on the map as well.  Buckets are emitted as unmodifiable
+ * copies and entries as immutable pairs, so subscribers may keep them.
+ */
+public class RedBlackHashTreePublisher<K, V, T> implements Flow.Publisher<T> {
+
+    private final RedBlackHashTreeMap<K, V> map;
+
+    private final RedBlackHashTreeRange range;
+
+    private final Executor executor;
+
+    /**
+     * Whether to emit entries (Map.Entry) instead of buckets (Map)
+     */
+    private final boolean entries;
+
+    RedBlackHashTreePublisher(RedBlackHashTreeMap<K, V> map, RedBlackHashTreeRange range, Executor executor, boolean entries) {
+        this.map = map;
+        this.range = range;
+        this.executor = executor;
+        this.entries = entries;
+    }
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        subscriber.onSubscribe(new ScanSubscription(subscriber));
+    }
+
+    private class ScanSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super T> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * Work-in-progress counter; only the thread raising it from zero drains
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean done;
+
+        /**
+         * The error of an invalid request, signalled by the drain loop so
+         * that it is never signalled concurrently with onNext
+         */
+        private volatile Throwable error;
+
+        /**
+         * The compare object of the last bucket emitted, or null before the first
+         */
+        private Comparable last;
+
+        /**
+         * The entries left to emit from the current bucket, in entry mode
+         */
+        private Iterator<Map.Entry<K, V>> pending = Collections.<Map.Entry<K, V>>emptyList().iterator();
+
+        ScanSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                if (error == null)
+                    error = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                long r, u;
+                do {
+                    r = demand.get();
+                    u = r + n < 0 ? Long.MAX_VALUE : r + n;
+                } while (!demand.compareAndSet(r, u));
+            }
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        public void cancel() {
+            done = true;
+        }
+
+        public void run() {
+            int missed = 1;
+            do {
+                long r = demand.get();
+                long e = 0;
+                while (e != r) {
+                    if (terminated()) {
+                        return;
+                    }
+                    T item;
+                    try {
+                        item = nextItem();
+                    } catch (Throwable ex) {
+                        done = true;
+                        subscriber.onError(ex);
+                        return;
+                    }
+                    if (item == null) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    try {
+                        subscriber.onNext(item);
+                    } catch (Throwable ex) {
+                        // a failing subscriber is considered to have cancelled
+                        cancel();
+                        return;
+                    }
+                    e++;
+                }
+                if (terminated()) {
+                    return;
+                }
+                // an exhausted scan completes without waiting for more demand
+                if (!pending.hasNext() && peekBucket() == null) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    demand.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return whether the subscription is over, signalling the error of
+         *         an invalid request first if there is one
+         */
+        private boolean terminated() {
+            if (done) {
+                return true;
+            }
+            Throwable failure = error;
+            if (failure != null) {
+                done = true;
+                subscriber.onError(failure);
+                return true;
+            }
+            return false;
+        }
+
+        private T nextItem() {
+            if (entries) {
+                while (!pending.hasNext()) {
+                    Map<K, V> bucket = nextBucket();
+                    if (bucket == null) {
+                        return null;
+                    }
+                    List<Map.Entry<K, V>> copy = new ArrayList<Map.Entry<K, V>>(bucket.size());
+                    for (Map.Entry<K, V> entry : bucket.entrySet()) {
+                        copy.add(new AbstractMap.SimpleImmutableEntry<K, V>(entry));
+                    }
+                    pending = copy.iterator();
+                }
+                return (T) pending.next();
+            }
+            return (T) nextBucket();
+        }
+
+        /**
+         * Copies the bucket following the last one emitted and moves past it.
+         */
+        private Map<K, V> nextBucket() {
+            synchronized (map) {
+                RedBlackHashTree<K, V> node = seek();
+                if (node == null) {
+                    return null;
+                }
+                last = node.getCompareObj();
+                return Collections.unmodifiableMap(new HashMap<K, V>(node.value()));
+            }
+        }
+
+        private RedBlackHashTree<K, V> peekBucket() {
+            synchronized (map) {
+                return seek();
+            }
+        }
+
+        private RedBlackHashTree<K, V> seek() {
+            RedBlackHashTree<K, V> node;
+            if (last != null) {
+                node = map.higherNode(last);
+            } else if (range.getFrom() == null) {
+                node = map.firstNode();
+            } else if (range.isFromInclusive()) {
+                node = map.ceilingNode(range.getFrom());
+            } else {
+                node = map.higherNode(range.getFrom());
+            }
+            if (node == null || node.isEmpty() || !range.belowTo(node.getCompareObj())) {
+                return null;
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An engine for long compare objects built on a 64-way radix trie.  A
+ * compare object is cut into eleven digits of up to six bits, most
+ * significant first; every trie node keeps a 64-bit occupancy bitmap and
+ * only the children present, indexed by the bit count below their digit.
+ * Lookups and updates visit eleven nodes whatever the number of buckets,
+ * and ceiling, floor, higher and lower find the nearest present digit of
+ * a node with one masked bit scan, so navigation depth is bounded by the
+ * word size rather than by log n.
+ * <p>
+ * Compare objects must be integral Numbers; they are ordered as signed
+ * longs.
+ */
+public class RedBlackHashTreeRadixEngine<K, V> extends AbstractRedBlackHashTreeEngine<K, V> {
+
+    private static final int BITS = 6;
+
+    /**
+     * The depth of the trie; the first level takes the top four bits and
+     * each other level six
+     */
+    private static final int LEVELS = 11;
+
+    private final Node root = new Node();
+
+    private int count;
+
+    public RedBlackHashTreeRadixEngine()
+    {
+        this(null);
+    }
+
+    public RedBlackHashTreeRadixEngine(Function<? super K, ? extends Comparable> extractor)
+    {
+        super(extractor);
+    }
+
+    /**
+     * @return compareObj as an unsigned long of the same order
+     */
+    private static long unsigned(Comparable compareObj)
+    {
+        return ((Number) compareObj).longValue() ^ Long.MIN_VALUE;
+    }
+
+    private static int digit(long u, int level)
+    {
+        return (int) (u >>> (BITS * (LEVELS - 1 - level))) & 63;
+    }
+
+    /**
+     * A trie node: the children of the set bits of bitmap, in digit order.
+     * Children of the last level are buckets.
+     */
+    private static final class Node {
+
+        long bitmap;
+
+        Object[] children = new Object[0];
+
+        boolean has(int digit)
+        {
+            return (bitmap & (1L << digit)) != 0;
+        }
+
+        int index(int digit)
+        {
+            return Long.bitCount(bitmap & ((1L << digit) - 1));
+        }
+
+        Object child(int digit)
+        {
+            return children[index(digit)];
+        }
+
+        void insert(int digit, Object child)
+        {
+            int i = index(digit);
+            Object[] grown = new Object[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, i);
+            grown[i] = child;
+            System.arraycopy(children, i, grown, i + 1, children.length - i);
+            children = grown;
+            bitmap |= 1L << digit;
+        }
+
+        void delete(int digit)
+        {
+            int i = index(digit);
+            Object[] shrunk = new Object[children.length - 1];
+            System.arraycopy(children, 0, shrunk, 0, i);
+            System.arraycopy(children, i + 1, shrunk, i, shrunk.length - i);
+            children = shrunk;
+            bitmap &= ~(1L << digit);
+        }
+    }
+
+    private Bucket<K, V> find(long u)
+    {
+        Object p = root;
+        for (int level = 0; level < LEVELS; level++) {
+            Node node = (Node) p;
+            int d = digit(u, level);
+            if (!node.has(d)) {
+                return null;
+            }
+            p = node.child(d);
+        }
+        return (Bucket<K, V>) p;
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        Comparable compareObj = compareObjOf(key);
+        long u = unsigned(compareObj);
+        Node node = root;
+        for (int level = 0; level < LEVELS - 1; level++) {
+            int d = digit(u, level);
+            if (!node.has(d)) {
+                node.insert(d, new Node());
+            }
+            node = (Node) node.child(d);
+        }
+        int d = digit(u, LEVELS - 1);
+        Bucket<K, V> bucket;
+        if (node.has(d)) {
+            bucket = (Bucket<K, V>) node.child(d);
+        } else {
+            bucket = new Bucket<K, V>(compareObj, new HashMap<K, V>());
+            node.insert(d, bucket);
+        }
+        int before = bucket.valueMap.size();
+        V old = bucket.valueMap.put(key, value);
+        count += bucket.valueMap.size() - before;
+        return old;
+    }
+
+    @Override
+    public V remove(K key)
+    {
+        long u = unsigned(compareObjOf(key));
+        Bucket<K, V> bucket = find(u);
+        if (bucket == null || !bucket.valueMap.containsKey(key)) {
+            return null;
+        }
+        V old = bucket.valueMap.remove(key);
+        count--;
+        if (bucket.valueMap.isEmpty()) {
+            unlink(u);
+        }
+        return old;
+    }
+
+    /**
+     * Removes the bucket of u, and the nodes left without children
+     */
+    private void unlink(long u)
+    {
+        Node[] path = new Node[LEVELS];
+        Node node = root;
+        for (int level = 0; level < LEVELS - 1; level++) {
+            path[level] = node;
+            node = (Node) node.child(digit(u, level));
+        }
+        path[LEVELS - 1] = node;
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            path[level].delete(digit(u, level));
+            if (path[level].bitmap != 0) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> getBucket(Comparable compareObj)
+    {
+        return find(unsigned(compareObj));
+    }
+
+    @Override
+    public Map<K, V> removeMap(Comparable compareObj)
+    {
+        long u = unsigned(compareObj);
+        Bucket<K, V> bucket = find(u);
+        if (bucket == null) {
+            return null;
+        }
+        unlink(u);
+        count -= bucket.valueMap.size();
+        return bucket.valueMap;
+    }
+
+    @Override
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public void clear()
+    {
+        root.bitmap = 0;
+        root.children = new Object[0];
+        count = 0;
+    }
+
+    /**
+     * @return the least (or greatest) bucket below p, a child of level - 1
+     */
+    private Bucket<K, V> extreme(Object p, int level, boolean least)
+    {
+        for (; level < LEVELS; level++) {
+            Node node = (Node) p;
+            p = node.children[least ? 0 : node.children.length - 1];
+        }
+        return (Bucket<K, V>) p;
+    }
+
+    /**
+     * @return the bucket of the least compare object at or above u in the
+     *         subtrie of node at level, or null
+     */
+    private Bucket<K, V> ceiling(Node node, int level, long u)
+    {
+        int d = digit(u, level);
+        if (node.has(d)) {
+            Object child = node.child(d);
+            Bucket<K, V> found = level == LEVELS - 1 ? (Bucket<K, V>) child : ceiling((Node) child, level + 1, u);
+            if (found != null) {
+                return found;
+            }
+        }
+        long above = d == 63 ? 0 : node.bitmap & (-1L << (d + 1));
+        if (above == 0) {
+            return null;
+        }
+        return extreme(node.child(Long.numberOfTrailingZeros(above)), level + 1, true);
+    }
+
+    /**
+     * @return the bucket of the greatest compare object at or below u in
+     *         the subtrie of node at level, or null
+     */
+    private Bucket<K, V> floor(Node node, int level, long u)
+    {
+        int d = digit(u, level);
+        if (node.has(d)) {
+            Object child = node.child(d);
+            Bucket<K, V> found = level == LEVELS - 1 ? (Bucket<K, V>) child : floor((Node) child, level + 1, u);
+            if (found != null) {
+                return found;
+            }
+        }
+        long below = node.bitmap & ((1L << d) - 1);
+        if (below == 0) {
+            return null;
+        }
+        return extreme(node.child(63 - Long.numberOfLeadingZeros(below)), level + 1, false);
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> firstNode()
+    {
+        return count == 0 ? null : extreme(root, 0, true);
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> lastNode()
+    {
+        return count == 0 ? null : extreme(root, 0, false);
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> ceilingNode(Comparable compareObj)
+    {
+        return count == 0 ? null : ceiling(root, 0, unsigned(compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> higherNode(Comparable compareObj)
+    {
+        long u = unsigned(compareObj);
+        return count == 0 || u == -1L ? null : ceiling(root, 0, u + 1);
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> floorNode(Comparable compareObj)
+    {
+        return count == 0 ? null : floor(root, 0, unsigned(compareObj));
+    }
+
+    @Override
+    public RedBlackHashTreeBucket<K, V> lowerNode(Comparable compareObj)
+    {
+        long u = unsigned(compareObj);
+        return count == 0 || u == 0 ? null : floor(root, 0, u - 1);
+    }
+}
@@ -0,0 +1,104 @@
+package cn.wensiqun.commons.structure;
+
+/**
+ * An ascending range of compare objects, used to query or watch a slice
+ * of a {@link RedBlackHashTreeMap}.  A null bound leaves that side of the
+ * range open.
+ */
+public class RedBlackHashTreeRange implements java.io.Serializable
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final Comparable from;
+
+    private final boolean fromInclusive;
+
+    private final Comparable to;
+
+    private final boolean toInclusive;
+
+    /**
+     * Constructs the range between from and to
+     *
+     * @param from lowest compare object, or null for no lower bound
+     * @param fromInclusive whether from itself belongs to the range
+     * @param to highest compare object, or null for no upper bound
+     * @param toInclusive whether to itself belongs to the range
+     */
+    public RedBlackHashTreeRange(Comparable from, boolean fromInclusive, Comparable to, boolean toInclusive)
+    {
+        this.from = from;
+        this.fromInclusive = fromInclusive;
+        this.to = to;
+        this.toInclusive = toInclusive;
+    }
+
+    /**
+     * Constructs the half-open range [from, to), matching the default
+     * bounds of {@link RedBlackHashTreeMap#subIterator(Comparable, Comparable)}.
+     */
+    public RedBlackHashTreeRange(Comparable from, Comparable to)
+    {
+        this(from, true, to, false);
+    }
+
+    /**
+     * @return the range holding every compare object
+     */
+    public static RedBlackHashTreeRange all()
+    {
+        return new RedBlackHashTreeRange(null, true, null, true);
+    }
+
+    public Comparable getFrom() {
+        return from;
+    }
+
+    public boolean isFromInclusive() {
+        return fromInclusive;
+    }
+
+    public Comparable getTo() {
+        return to;
+    }
+
+    public boolean isToInclusive() {
+        return toInclusive;
+    }
+
+    /**
+     * @return true iff compareObj is not below the lower bound
+     */
+    public boolean aboveFrom(Comparable compareObj)
+    {
+        if (from == null)
+            return true;
+        int cmp = compareObj.compareTo(from);
+        return fromInclusive ? cmp >= 0 : cmp > 0;
+    }
+
+    /**
+     * @return true iff compareObj is not above the upper bound
+     */
+    public boolean belowTo(Comparable compareObj)
+    {
+        if (to == null)
+            return true;
+        int cmp = compareObj.compareTo(to);
+        return toInclusive ? cmp <= 0 : cmp < 0;
+    }
+
+    /**
+     * @return true iff compareObj lies within the range
+     */
+    public boolean contains(Comparable compareObj)
+    {
+        return aboveFrom(compareObj) && belowTo(compareObj);
+    }
+
+    public String toString()
+    {
+        return (fromInclusive ? "[" : "(") + from + ", " + to + (toInclusive ? "]" : ")");
+    }
+}
@@ -0,0 +1,336 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiFunction;
+
+/**
+ * Union, intersection and difference of two {@link RedBlackHashTreeMap}s.
+ * <p>
+ * The operations divide and conquer over {@link RedBlackHashTree#split}
+ * and {@link RedBlackHashTree#join}: the second tree is split at the root
+ * of the first, the two pairs of halves are combined recursively, and the
+ * results are joined back through the root.  This does
+ * O(m log(n / m + 1)) work for trees of m and n buckets, m &lt;= n.  The two
+ * recursive calls touch disjoint nodes, so the top levels of the
+ * recursion run in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * Entry-level operations combine buckets of the same compare object key
+ * by key; bucket-level ones keep or drop whole buckets of the first map
+ * by whether the second has the compare object at all.
+ * <p>
+ * The nodes of both maps are reused for the result, so both are left
+ * empty, and subscribers of either are not told.  The result keeps the
+ * bounds, eviction policies and eviction listener of the first map, and
+ * is trimmed to its maximum size; under LRU its entries count as used in
+ * comparable order.
+ * <p>
+ * If merge throws, the work done so far stays done and the exception is
+ * rethrown once both maps are rebuilt: the first map holds the buckets
+ * combined so far and those of its own not reached, the second those of
+ * its own not reached.  Entries of a union are moved one at a time, so
+ * none is lost or held twice.
+ */
+public final class RedBlackHashTreeSets {
+
+    private static final int UNION = 0;
+
+    private static final int INTERSECTION = 1;
+
+    private static final int DIFFERENCE = 2;
+
+    /**
+     * Recursion depth below which the two halves are combined in parallel
+     */
+    private static final int FORK_DEPTH = 32 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism()) + 3;
+
+    private RedBlackHashTreeSets() {
+    }
+
+    /**
+     * @param merge combines the values of a key found in both maps, first
+     *        map first; a null result drops the key
+     * @return the entries of both maps
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> union(RedBlackHashTreeMap<K, V> a,
+            RedBlackHashTreeMap<K, V> b, BiFunction<? super V, ? super V, ? extends V> merge) {
+        return run(a, b, UNION, false, merge);
+    }
+
+    /**
+     * @param merge combines the values of a key found in both maps, first
+     *        map first; a null result drops the key
+     * @return the entries whose key is in both maps
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> intersection(RedBlackHashTreeMap<K, V> a,
+            RedBlackHashTreeMap<K, V> b, BiFunction<? super V, ? super V, ? extends V> merge) {
+        return run(a, b, INTERSECTION, false, merge);
+    }
+
+    /**
+     * @return the buckets of a whose compare object b has too
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> intersectionBuckets(RedBlackHashTreeMap<K, V> a,
+            RedBlackHashTreeMap<K, V> b) {
+        return run(a, b, INTERSECTION, true, null);
+    }
+
+    /**
+     * @return the entries of a whose key is not in b
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> difference(RedBlackHashTreeMap<K, V> a,
+            RedBlackHashTreeMap<K, V> b) {
+        return run(a, b, DIFFERENCE, false, null);
+    }
+
+    /**
+     * @return the buckets of a whose compare object b does not have
+     */
+    public static <K, V> RedBlackHashTreeMap<K, V> differenceBuckets(RedBlackHashTreeMap<K, V> a,
+            RedBlackHashTreeMap<K, V> b) {
+        return run(a, b, DIFFERENCE, true, null);
+    }
+
+    private static <K, V> RedBlackHashTreeMap<K, V> run(RedBlackHashTreeMap<K, V> a,
+            RedBlackHashTreeMap<K, V> b, int op, boolean buckets, BiFunction<? super V, ? super V, ? extends V> merge) {
+        if (a == b) {
+            throw new IllegalArgumentException("a map cannot be combined with itself");
+        }
+        Salvage<K, V> salvage = new Salvage<K, V>();
+        Combine<K, V> task = new Combine<K, V>(op, buckets, merge, a.root, b.root, 0, salvage);
+        try {
+            ForkJoinPool.commonPool().invoke(task);
+        } catch (Throwable e) {
+            a.restore(RedBlackHashTreeBulk.rebuild(salvage.first));
+            b.restore(RedBlackHashTreeBulk.rebuild(salvage.second));
+            throw e;
+        }
+        long count;
+        switch (op) {
+        case UNION:
+            count = (long) a.size() + b.size() + task.delta;
+            break;
+        case INTERSECTION:
+            count = task.delta;
+            break;
+        default:
+            count = a.size() + task.delta;
+        }
+        RedBlackHashTreeMap<K, V> result = a.adopt(task.root, (int) count);
+        a.forget();
+        b.forget();
+        return result;
+    }
+
+    /**
+     * The pieces of the two trees left by tasks that failed
+     */
+    private static class Salvage<K, V> {
+
+        private final List<RedBlackHashTree<K, V>> first = new ArrayList<RedBlackHashTree<K, V>>();
+
+        private final List<RedBlackHashTree<K, V>> second = new ArrayList<RedBlackHashTree<K, V>>();
+
+        synchronized void add(List<RedBlackHashTree<K, V>> pieces, RedBlackHashTree<K, V> t) {
+            if (t != null)
+                pieces.add(t);
+        }
+    }
+
+    /**
+     * Combines two trees; delta is the change to the entry count the
+     * buckets met on both sides made, or for an intersection the number
+     * of entries kept.  Tasks are never serialized.
+     */
+    @SuppressWarnings("serial")
+    private static class Combine<K, V> extends RecursiveAction {
+
+        private final int op;
+
+        private final boolean buckets;
+
+        private final BiFunction<? super V, ? super V, ? extends V> merge;
+
+        private final RedBlackHashTree<K, V> first;
+
+        private final RedBlackHashTree<K, V> second;
+
+        private final int depth;
+
+        private final Salvage<K, V> salvage;
+
+        private RedBlackHashTree<K, V> root;
+
+        private long delta;
+
+        /**
+         * Whether the pieces of this task went to the salvage instead of
+         * into root
+         */
+        private boolean failed;
+
+        Combine(int op, boolean buckets, BiFunction<? super V, ? super V, ? extends V> merge,
+                RedBlackHashTree<K, V> first, RedBlackHashTree<K, V> second, int depth, Salvage<K, V> salvage) {
+            this.op = op;
+            this.buckets = buckets;
+            this.merge = merge;
+            this.first = valid(first);
+            this.second = valid(second);
+            this.depth = depth;
+            this.salvage = salvage;
+        }
+
+        @Override
+        protected void compute() {
+            if (first == null) {
+                root = op == UNION ? second : null;
+                return;
+            }
+            if (second == null) {
+                root = op == INTERSECTION ? null : first;
+                return;
+            }
+            RedBlackHashTree<K, V> node = first;
+            RedBlackHashTree<K, V> left = valid(node.left());
+            RedBlackHashTree<K, V> right = valid(node.right());
+            RedBlackHashTree.Split<K, V> split = RedBlackHashTree.split(second, node.compareObj);
+
+            Combine<K, V> lower = new Combine<K, V>(op, buckets, merge, left, split.left, depth + 1, salvage);
+            Combine<K, V> upper = new Combine<K, V>(op, buckets, merge, right, split.right, depth + 1, salvage);
+            Throwable failure = null;
+            if (depth < FORK_DEPTH) {
+                // the forked half is settled before a failure leaves
+                upper.fork();
+                try {
+                    lower.compute();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                try {
+                    upper.join();
+                } catch (Throwable e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            } else {
+                try {
+                    lower.compute();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                if (failure == null) {
+                    try {
+                        upper.compute();
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
+                } else {
+                    upper.abandon();
+                }
+            }
+            delta = lower.delta + upper.delta;
+            boolean keep = false;
+            if (failure == null) {
+                try {
+                    keep = combine(node, split.middle);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                salvage(lower);
+                salvage(upper);
+                RedBlackHashTree.relink(node, null, null, false);
+                salvage.add(salvage.first, node);
+                salvage.add(salvage.second, split.middle);
+                failed = true;
+                if (failure instanceof Error)
+                    throw (Error) failure;
+                throw (RuntimeException) failure;
+            }
+            root = keep ? RedBlackHashTree.join(lower.root, node, upper.root)
+                    : RedBlackHashTree.join(lower.root, upper.root);
+        }
+
+        /**
+         * Hands the result of a child that did not fail to the first tree
+         */
+        private void salvage(Combine<K, V> child) {
+            if (!child.failed)
+                salvage.add(salvage.first, child.root);
+        }
+
+        /**
+         * Hands the trees of a task that is not to run back unchanged
+         */
+        private void abandon() {
+            salvage.add(salvage.first, first);
+            salvage.add(salvage.second, second);
+            failed = true;
+        }
+
+        /**
+         * Combines the bucket of node with that of the other tree, or null.
+         *
+         * @return whether node is to stay in the result
+         */
+        private boolean combine(RedBlackHashTree<K, V> node, RedBlackHashTree<K, V> other) {
+            HashMap<K, V> bucket = node.valueMap;
+            int before = bucket.size();
+            switch (op) {
+            case UNION:
+                if (other == null)
+                    return true;
+                before += other.valueMap.size();
+                // an entry leaves other once merged, in case merge throws
+                for (Iterator<Map.Entry<K, V>> it = other.valueMap.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<K, V> entry = it.next();
+                    V mine = bucket.get(entry.getKey());
+                    V value = mine == null ? entry.getValue() : merge.apply(mine, entry.getValue());
+                    if (value == null)
+                        bucket.remove(entry.getKey());
+                    else
+                        bucket.put(entry.getKey(), value);
+                    it.remove();
+                }
+                delta += bucket.size() - before;
+                return !bucket.isEmpty();
+            case INTERSECTION:
+                if (other == null)
+                    return false;
+                if (!buckets) {
+                    for (Iterator<Map.Entry<K, V>> it = bucket.entrySet().iterator(); it.hasNext();) {
+                        Map.Entry<K, V> entry = it.next();
+                        V theirs = other.valueMap.get(entry.getKey());
+                        V value = theirs == null ? null : merge.apply(entry.getValue(), theirs);
+                        if (value == null)
+                            it.remove();
+                        else
+                            entry.setValue(value);
+                    }
+                }
+                delta += bucket.size();
+                return !bucket.isEmpty();
+            default:
+                if (other == null)
+                    return true;
+                if (buckets) {
+                    delta -= before;
+                    return false;
+                }
+                bucket.keySet().removeAll(other.valueMap.keySet());
+                delta += bucket.size() - before;
+                return !bucket.isEmpty();
+            }
+        }
+
+        private static <K, V> RedBlackHashTree<K, V> valid(RedBlackHashTree<K, V> t) {
+            return t == null || t.isEmpty() ? null : t;
+        }
+    }
+}
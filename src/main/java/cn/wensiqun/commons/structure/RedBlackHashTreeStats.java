@@ -0,0 +1,306 @@
+package cn.wensiqun.commons.structure;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Opt-in, process-wide counters for the hot paths of {@link RedBlackHashTree}
+ * and {@link RedBlackHashTreeMap}: rotations, fixup iterations, descent
+ * lengths, bucket sizes, node turnover and operation latencies.
+ * <p>
+ * There is one instance per JVM, shared by every map: the counts add up
+ * the work of all maps while enabled, and nodes created minus nodes freed
+ * is the change in the number of buckets across all of them, not the
+ * size of any one map.
+ * <p>
+ * Counting is off until {@link #enable()} is called.  While off, every
+ * probe is a single read of a static field that is null, so the structures
+ * pay nothing measurable.  While on, counters are {@link LongAdder}s, so
+ * concurrent maps do not contend on them.
+ */
+public class RedBlackHashTreeStats implements RedBlackHashTreeStatsMBean {
+
+    public static final String OBJECT_NAME = "cn.wensiqun.commons.structure:type=RedBlackHashTreeStats";
+
+    /**
+     * The instance being recorded to, or null while disabled
+     */
+    static volatile RedBlackHashTreeStats current;
+
+    final LongAdder rotateLeft = new LongAdder();
+
+    final LongAdder rotateRight = new LongAdder();
+
+    final LongAdder redFixup = new LongAdder();
+
+    final LongAdder blackFixup = new LongAdder();
+
+    final LongAdder nodesCreated = new LongAdder();
+
+    final LongAdder nodesFreed = new LongAdder();
+
+    /**
+     * Number of buckets visited by each descent from the root
+     */
+    final Histogram descent = new Histogram();
+
+    /**
+     * Size of a bucket right after an entry is put into it
+     */
+    final Histogram bucketSize = new Histogram();
+
+    final Histogram putLatency = new Histogram();
+
+    final Histogram getLatency = new Histogram();
+
+    final Histogram removeLatency = new Histogram();
+
+    /**
+     * Starts recording, keeping counts from any earlier enabled period.
+     *
+     * @return the instance being recorded to
+     */
+    public static synchronized RedBlackHashTreeStats enable() {
+        if (current == null) {
+            current = new RedBlackHashTreeStats();
+        }
+        return current;
+    }
+
+    /**
+     * Stops recording.  The instance returned by {@link #enable()} keeps
+     * its counts.
+     */
+    public static synchronized void disable() {
+        current = null;
+    }
+
+    /**
+     * @return the instance being recorded to, or null while disabled
+     */
+    public static RedBlackHashTreeStats get() {
+        return current;
+    }
+
+    /**
+     * Registers this instance with the platform MBean server under
+     * {@link #OBJECT_NAME}.
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Removes the registration made by {@link #registerMBean()}, if any.
+     */
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    public long getRotateLeftCount() {
+        return rotateLeft.sum();
+    }
+
+    public long getRotateRightCount() {
+        return rotateRight.sum();
+    }
+
+    public long getRedFixupCount() {
+        return redFixup.sum();
+    }
+
+    public long getBlackFixupCount() {
+        return blackFixup.sum();
+    }
+
+    public long getNodesCreated() {
+        return nodesCreated.sum();
+    }
+
+    public long getNodesFreed() {
+        return nodesFreed.sum();
+    }
+
+    public long getDescentCount() {
+        return descent.count();
+    }
+
+    public double getDescentMean() {
+        return descent.mean();
+    }
+
+    public long getDescentMax() {
+        return descent.percentile(1.0);
+    }
+
+    public double getBucketSizeMean() {
+        return bucketSize.mean();
+    }
+
+    public long getBucketSizeMax() {
+        return bucketSize.percentile(1.0);
+    }
+
+    public long getPutCount() {
+        return putLatency.count();
+    }
+
+    public long getPutLatencyP99() {
+        return putLatency.percentile(0.99);
+    }
+
+    public long getGetCount() {
+        return getLatency.count();
+    }
+
+    public long getGetLatencyP99() {
+        return getLatency.percentile(0.99);
+    }
+
+    public long getRemoveCount() {
+        return removeLatency.count();
+    }
+
+    public long getRemoveLatencyP99() {
+        return removeLatency.percentile(0.99);
+    }
+
+    public Histogram getDescentHistogram() {
+        return descent;
+    }
+
+    public Histogram getBucketSizeHistogram() {
+        return bucketSize;
+    }
+
+    public Histogram getPutLatencyHistogram() {
+        return putLatency;
+    }
+
+    public Histogram getGetLatencyHistogram() {
+        return getLatency;
+    }
+
+    public Histogram getRemoveLatencyHistogram() {
+        return removeLatency;
+    }
+
+    public void reset() {
+        rotateLeft.reset();
+        rotateRight.reset();
+        redFixup.reset();
+        blackFixup.reset();
+        nodesCreated.reset();
+        nodesFreed.reset();
+        descent.reset();
+        bucketSize.reset();
+        putLatency.reset();
+        getLatency.reset();
+        removeLatency.reset();
+    }
+
+    public String toString() {
+        return "rotations=" + (getRotateLeftCount() + getRotateRightCount())
+            + ", redFixups=" + getRedFixupCount()
+            + ", blackFixups=" + getBlackFixupCount()
+            + ", nodes=" + (getNodesCreated() - getNodesFreed())
+            + ", descent=" + descent
+            + ", bucketSize=" + bucketSize
+            + ", put=" + putLatency
+            + ", get=" + getLatency
+            + ", remove=" + removeLatency;
+    }
+
+    /**
+     * A histogram of non-negative values in power-of-two buckets: bucket
+     * i counts values whose highest set bit is bit i - 1 (bucket 0 counts 0).
+     */
+    public static class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[65];
+
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public double mean() {
+            long count = count();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        /**
+         * @return the number of values recorded whose highest set bit is
+         *         bit <code>bucket - 1</code>
+         */
+        public long bucketCount(int bucket) {
+            return buckets[bucket].sum();
+        }
+
+        /**
+         * @param fraction between 0 and 1
+         * @return an upper bound of the value at fraction of the
+         *         distribution, or 0 if nothing was recorded
+         */
+        public long percentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0)
+                    return i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            sum.reset();
+        }
+
+        public String toString() {
+            return "{count=" + count() + ", mean=" + mean() + ", p50<=" + percentile(0.5) + ", p99<=" + percentile(0.99) + ", max<=" + percentile(1.0) + "}";
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package cn.wensiqun.commons.structure;
+
+/**
+ * JMX view of {@link RedBlackHashTreeStats}.  Latencies are in nanoseconds;
+ * percentiles are upper bounds taken from power-of-two histograms.
+ */
+public interface RedBlackHashTreeStatsMBean {
+
+	public long getRotateLeftCount();
+
+	public long getRotateRightCount();
+
+	public long getRedFixupCount();
+
+	public long getBlackFixupCount();
+
+	/**
+	 * @return the buckets created by every map since the last reset
+	 */
+	public long getNodesCreated();
+
+	/**
+	 * @return the buckets freed by every map since the last reset
+	 */
+	public long getNodesFreed();
+
+	public long getDescentCount();
+
+	public double getDescentMean();
+
+	public long getDescentMax();
+
+	public double getBucketSizeMean();
+
+	public long getBucketSizeMax();
+
+	public long getPutCount();
+
+	public long getPutLatencyP99();
+
+	public long getGetCount();
+
+	public long getGetLatencyP99();
+
+	public long getRemoveCount();
+
+	public long getRemoveLatencyP99();
+
+	public void reset();
+
+}
@@ -0,0 +1,173 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.stream.Collector;
+
+/**
+ * Aggregates the values of a {@link RedBlackHashTreeMap} over tumbling or
+ * sliding windows of its numeric compare objects, in one ascending pass.
+ * <p>
+ * Windows are aligned to multiples of the slide: window k covers
+ * [k * slide, k * slide + size).  A slide equal to the size gives tumbling
+ * windows, a smaller slide overlapping ones.  Each value is accumulated
+ * into every window that covers its compare object with the collector, and
+ * a window is finished and returned as soon as the pass moves beyond its
+ * end, so only the windows overlapping the current bucket are held open.
+ * Windows without any entry are skipped.
+ * <p>
+ * Like the sub iterators, this walks the live tree and must not be
+ * interleaved with structural changes to the map.
+ */
+public class RedBlackHashTreeWindows<K, V, A> implements Iterator<RedBlackHashTreeWindows.Window<A>> {
+
+    private final RedBlackHashTreeMap<K, V> map;
+
+    private final RedBlackHashTreeRange range;
+
+    private final long size;
+
+    private final long slide;
+
+    private final Collector<? super V, Object, A> collector;
+
+    private final BiConsumer<Object, ? super V> accumulator;
+
+    /**
+     * Windows that have seen entries and may still see more, by start
+     */
+    private final ArrayDeque<Open> open = new ArrayDeque<Open>();
+
+    /**
+     * The next bucket to aggregate, or null once the range is exhausted
+     */
+    private RedBlackHashTree<K, V> node;
+
+    RedBlackHashTreeWindows(RedBlackHashTreeMap<K, V> map, RedBlackHashTreeRange range, long size, long slide,
+            Collector<? super V, ?, A> collector) {
+        if (size < 1 || slide < 1) {
+            throw new IllegalArgumentException("size and slide must be positive: " + size + ", " + slide);
+        }
+        if (slide > size) {
+            throw new IllegalArgumentException("slide must not exceed size: " + slide + " > " + size);
+        }
+        this.map = map;
+        this.range = range;
+        this.size = size;
+        this.slide = slide;
+        this.collector = (Collector<? super V, Object, A>) collector;
+        this.accumulator = this.collector.accumulator();
+        this.node = map.firstNode(range);
+    }
+
+    public boolean hasNext() {
+        advance();
+        return !open.isEmpty();
+    }
+
+    public Window<A> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Open window = open.pollFirst();
+        return new Window<A>(window.start, window.start + size, window.entries,
+                collector.finisher().apply(window.container));
+    }
+
+    /**
+     * Aggregates buckets until the oldest open window is complete or the
+     * range is exhausted.
+     */
+    private void advance() {
+        while (node != null) {
+            long c = ((Number) node.getCompareObj()).longValue();
+            if (!open.isEmpty() && open.peekFirst().start + size <= c) {
+                return;
+            }
+            // windows k with k * slide <= c < k * slide + size
+            long firstK = Math.floorDiv(c - size, slide) + 1;
+            long lastK = Math.floorDiv(c, slide);
+            long k = open.isEmpty() ? firstK : Math.max(firstK, open.peekLast().start / slide + 1);
+            for (; k <= lastK; k++) {
+                open.addLast(new Open(k * slide, collector.supplier().get()));
+            }
+            // every open window covers c: those ending before it are done
+            Map<K, V> bucket = node.value();
+            for (Open window : open) {
+                for (V value : bucket.values()) {
+                    accumulator.accept(window.container, value);
+                }
+                window.entries += bucket.size();
+            }
+            RedBlackHashTree<K, V> next = map.successor(node);
+            node = map.nodeIsValid(next) && range.belowTo(next.getCompareObj()) ? next : null;
+        }
+    }
+
+    private static class Open {
+
+        private final long start;
+
+        private final Object container;
+
+        private long entries;
+
+        Open(long start, Object container) {
+            this.start = start;
+            this.container = container;
+        }
+    }
+
+    /**
+     * The aggregate of one window
+     */
+    public static class Window<A> {
+
+        private final long start;
+
+        private final long end;
+
+        private final long entries;
+
+        private final A value;
+
+        Window(long start, long end, long entries, A value) {
+            this.start = start;
+            this.end = end;
+            this.entries = entries;
+            this.value = value;
+        }
+
+        /**
+         * @return the first compare object covered
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the compare object just past the window
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the number of entries aggregated
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        public A getValue() {
+            return value;
+        }
+
+        public String toString() {
+            return "[" + start + ", " + end + ") = " + value;
+        }
+    }
+}
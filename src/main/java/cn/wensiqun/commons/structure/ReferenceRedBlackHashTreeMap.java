@@ -0,0 +1,429 @@
+package cn.wensiqun.commons.structure;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link RedBlackHashTreeMap} whose values are held through soft or weak
+ * references, for caches that must give memory back under pressure.
+ * <p>
+ * Keys and compare objects stay strongly reachable.  Once the collector
+ * clears a value its reference is enqueued, and the entry, together with
+ * its bucket if that becomes empty, is purged by the next put or remove
+ * (or an explicit {@link #purge()}), which keeps size() in step.  Until
+ * then get() simply returns null for the cleared entry, and navigation,
+ * polling and iteration skip it, as well as any bucket left without a live
+ * entry.  Buckets are handed out as copies of their live entries.
+ */
+public class ReferenceRedBlackHashTreeMap<K, V>
+{
+
+    /**
+     * How values are referenced
+     */
+    public static enum Strength {
+        /**
+         * Cleared only when the heap runs low
+         */
+        SOFT,
+        /**
+         * Cleared as soon as the value is otherwise unreachable
+         */
+        WEAK
+    }
+
+    private final RedBlackHashTreeMap<K, ValueReference<K, V>> map;
+
+    private final Strength strength;
+
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+    /**
+     * Removes the entry of a cleared reference, unless the key was put
+     * again since
+     */
+    private final BiFunction<K, ValueReference<K, V>, ValueReference<K, V>> expunge =
+        new BiFunction<K, ValueReference<K, V>, ValueReference<K, V>>() {
+            public ValueReference<K, V> apply(K key, ValueReference<K, V> current) {
+                return current.isCleared() ? null : current;
+            }
+        };
+
+    public ReferenceRedBlackHashTreeMap(Strength strength)
+    {
+        this(strength, new RedBlackHashTreeMap<K, ValueReference<K, V>>());
+    }
+
+    /**
+     * Constructs a map over delegate, which must be empty and must not be
+     * used directly from now on.  Bucket capacity and size bounds of the
+     * delegate still apply.
+     */
+    public ReferenceRedBlackHashTreeMap(Strength strength, RedBlackHashTreeMap<K, ValueReference<K, V>> delegate)
+    {
+        if (strength == null) {
+            throw new NullPointerException("strength");
+        }
+        this.strength = strength;
+        this.map = delegate;
+    }
+
+    public Strength getStrength()
+    {
+        return strength;
+    }
+
+    /**
+     * @return the value previously associated with key, or null if there
+     *         was none or it has been cleared
+     */
+    public V put(K key, V value)
+    {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        purge();
+        return dereference(map.put(key, newReference(key, value)));
+    }
+
+    public V get(K key)
+    {
+        return dereference(map.get(key));
+    }
+
+    public boolean contains(K key)
+    {
+        return get(key) != null;
+    }
+
+    public V remove(K key)
+    {
+        purge();
+        return dereference(map.remove(key));
+    }
+
+    /**
+     * @return a copy of the live entries of the bucket of compareObj, or
+     *         null if there is no such bucket
+     */
+    public Map<K, V> getMap(Comparable compareObj)
+    {
+        Map<K, ValueReference<K, V>> bucket = map.getMap(compareObj);
+        return bucket == null ? null : liveCopy(bucket);
+    }
+
+    /**
+     * Like {@link RedBlackHashTreeMap#ceilingValue(Object)}; a cleared
+     * value reads as null, as in get().
+     */
+    public V ceilingValue(K key)
+    {
+        return dereference(map.ceilingValue(key));
+    }
+
+    public V higherValue(K key)
+    {
+        return dereference(map.higherValue(key));
+    }
+
+    public V floorValue(K key)
+    {
+        return dereference(map.floorValue(key));
+    }
+
+    public V lowerValue(K key)
+    {
+        return dereference(map.lowerValue(key));
+    }
+
+    /**
+     * @return the first bucket with a live entry, or null
+     */
+    public Map.Entry<Comparable, Map<K, V>> firstEntry()
+    {
+        return liveFrom(map.firstNode(), true);
+    }
+
+    /**
+     * @return the last bucket with a live entry, or null
+     */
+    public Map.Entry<Comparable, Map<K, V>> lastEntry()
+    {
+        return liveFrom(map.lastNode(), false);
+    }
+
+    /**
+     * @return the least bucket at or above compareObj with a live entry,
+     *         or null
+     */
+    public Map.Entry<Comparable, Map<K, V>> ceilingEntry(Comparable compareObj)
+    {
+        return liveFrom(map.ceilingNode(compareObj), true);
+    }
+
+    /**
+     * @return the least bucket above compareObj with a live entry, or null
+     */
+    public Map.Entry<Comparable, Map<K, V>> higherEntry(Comparable compareObj)
+    {
+        return liveFrom(map.higherNode(compareObj), true);
+    }
+
+    /**
+     * @return the greatest bucket at or below compareObj with a live
+     *         entry, or null
+     */
+    public Map.Entry<Comparable, Map<K, V>> floorEntry(Comparable compareObj)
+    {
+        return liveFrom(map.floorNode(compareObj), false);
+    }
+
+    /**
+     * @return the greatest bucket below compareObj with a live entry, or
+     *         null
+     */
+    public Map.Entry<Comparable, Map<K, V>> lowerEntry(Comparable compareObj)
+    {
+        return liveFrom(map.lowerNode(compareObj), false);
+    }
+
+    /**
+     * Removes the first bucket, and with it any bucket before it that had
+     * no live entry left.
+     *
+     * @return the removed bucket, or null if no bucket has a live entry
+     */
+    public Map.Entry<Comparable, Map<K, V>> pollFirstEntry()
+    {
+        RedBlackHashTree<K, ValueReference<K, V>> node;
+        while ((node = map.pollFirstNode()) != null) {
+            Map.Entry<Comparable, Map<K, V>> entry = live(node);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the last bucket, and with it any bucket after it that had no
+     * live entry left.
+     *
+     * @return the removed bucket, or null if no bucket has a live entry
+     */
+    public Map.Entry<Comparable, Map<K, V>> pollLastEntry()
+    {
+        RedBlackHashTree<K, ValueReference<K, V>> node;
+        while ((node = map.pollLastNode()) != null) {
+            Map.Entry<Comparable, Map<K, V>> entry = live(node);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterates the buckets with a live entry between the compare objects,
+     * descending if fromCompareObj lies above toCompareObj.  The iterator
+     * is read-only.
+     */
+    public Iterator<Map.Entry<Comparable, Map<K, V>>> subIterator(Comparable fromCompareObj, boolean fromInclusive,
+            Comparable toCompareObj, boolean toInclusive)
+    {
+        return new LiveIterator(map.subIterator(fromCompareObj, fromInclusive, toCompareObj, toInclusive));
+    }
+
+    public Iterator<Map.Entry<Comparable, Map<K, V>>> headIterator(Comparable toCompareObj, boolean inclusive)
+    {
+        return new LiveIterator(map.headIterator(toCompareObj, inclusive));
+    }
+
+    public Iterator<Map.Entry<Comparable, Map<K, V>>> tailIterator(Comparable fromCompareObj, boolean inclusive)
+    {
+        return new LiveIterator(map.tailIterator(fromCompareObj, inclusive));
+    }
+
+    /**
+     * @return the number of entries, including cleared entries not yet
+     *         purged
+     */
+    public int size()
+    {
+        return map.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    public void clear()
+    {
+        map.clear();
+        while (queue.poll() != null)
+            ;
+    }
+
+    /**
+     * Removes the entries whose values have been cleared and enqueued.
+     *
+     * @return the number of entries removed
+     */
+    public int purge()
+    {
+        int purged = 0;
+        Reference<? extends V> ref;
+        while ((ref = queue.poll()) != null) {
+            K key = ((ValueReference<K, V>) ref).getKey();
+            int before = map.size();
+            map.computeIfPresent(key, expunge);
+            purged += before - map.size();
+        }
+        return purged;
+    }
+
+    private ValueReference<K, V> newReference(K key, V value)
+    {
+        if (strength == Strength.SOFT) {
+            return new SoftValue<K, V>(key, value, queue);
+        }
+        return new WeakValue<K, V>(key, value, queue);
+    }
+
+    private V dereference(ValueReference<K, V> ref)
+    {
+        return ref == null ? null : ref.get();
+    }
+
+    private Map<K, V> liveCopy(Map<K, ValueReference<K, V>> bucket)
+    {
+        Map<K, V> copy = new HashMap<K, V>(bucket.size());
+        for (Map.Entry<K, ValueReference<K, V>> entry : bucket.entrySet()) {
+            V value = entry.getValue().get();
+            if (value != null) {
+                copy.put(entry.getKey(), value);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return the compare object and live entries of node, or null if it
+     *         has none
+     */
+    private Map.Entry<Comparable, Map<K, V>> live(RedBlackHashTree<K, ValueReference<K, V>> node)
+    {
+        Map<K, V> copy = liveCopy(node.value());
+        if (copy.isEmpty()) {
+            return null;
+        }
+        return new AbstractMap.SimpleImmutableEntry<Comparable, Map<K, V>>(node.getCompareObj(), copy);
+    }
+
+    /**
+     * @return the first bucket with a live entry from node on, walking up
+     *         if ascending and down otherwise, or null
+     */
+    private Map.Entry<Comparable, Map<K, V>> liveFrom(RedBlackHashTree<K, ValueReference<K, V>> node, boolean ascending)
+    {
+        for (RedBlackHashTree<K, ValueReference<K, V>> p = node; map.nodeIsValid(p);
+                p = ascending ? map.successor(p) : map.predecessor(p)) {
+            Map.Entry<Comparable, Map<K, V>> entry = live(p);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterates the buckets of a delegate iterator that still hold a live
+     * entry
+     */
+    private class LiveIterator implements Iterator<Map.Entry<Comparable, Map<K, V>>> {
+
+        private final Iterator<RedBlackHashTree<K, ValueReference<K, V>>> nodes;
+
+        private Map.Entry<Comparable, Map<K, V>> next;
+
+        LiveIterator(Iterator<RedBlackHashTree<K, ValueReference<K, V>>> nodes) {
+            this.nodes = nodes;
+        }
+
+        public boolean hasNext() {
+            while (next == null && nodes.hasNext()) {
+                next = live(nodes.next());
+            }
+            return next != null;
+        }
+
+        public Map.Entry<Comparable, Map<K, V>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Comparable, Map<K, V>> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+
+    /**
+     * A reference to a value that remembers the key it was stored under
+     */
+    public static interface ValueReference<K, V> {
+
+        K getKey();
+
+        /**
+         * @return the value, or null once it has been cleared
+         */
+        V get();
+
+        boolean isCleared();
+    }
+
+    private static class SoftValue<K, V> extends SoftReference<V> implements ValueReference<K, V> {
+
+        private final K key;
+
+        SoftValue(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public boolean isCleared() {
+            return get() == null;
+        }
+    }
+
+    private static class WeakValue<K, V> extends WeakReference<V> implements ValueReference<K, V> {
+
+        private final K key;
+
+        WeakValue(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public boolean isCleared() {
+            return get() == null;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class AsyncRedBlackHashTreeMapTest {
+
+	private static final BiFunction<Long, Long, Long> SUM = new BiFunction<Long, Long, Long>() {
+		public Long apply(Long a, Long b) {
+			return a + b;
+		}
+	};
+
+	@Test
+	public void testConcurrentMerge() throws Exception {
+		final AsyncRedBlackHashTreeMap<TestKey, Long> map = new AsyncRedBlackHashTreeMap<TestKey, Long>();
+		final int threads = 8;
+		final int perThread = 2000;
+		List<Thread> workers = new ArrayList<Thread>();
+		final List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+		for(int t=0; t<threads; t++) {
+			Thread worker = new Thread() {
+				public void run() {
+					List<CompletableFuture<Long>> mine = new ArrayList<CompletableFuture<Long>>();
+					for(int i=0; i<perThread; i++) {
+						mine.add(map.merge(new TestKey((long) (i % 50), "Name" + (i % 7)), 1L, SUM));
+					}
+					synchronized (futures) {
+						futures.addAll(mine);
+					}
+				}
+			};
+			workers.add(worker);
+			worker.start();
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		for(CompletableFuture<Long> future : futures) {
+			future.get();
+		}
+		long total = 0;
+		for(int ts=0; ts<50; ts++) {
+			for(Long v : map.getMap((long) ts).values()) {
+				total += v;
+			}
+		}
+		assertEquals(threads * perThread, total);
+		assertEquals(350, map.size());
+		map.close();
+	}
+
+	@Test
+	public void testOrderWithinKey() throws Exception {
+		AsyncRedBlackHashTreeMap<TestKey, Long> map = new AsyncRedBlackHashTreeMap<TestKey, Long>();
+		TestKey key = new TestKey(1L, "a");
+		CompletableFuture<Long> first = map.put(key, 1L);
+		map.put(new TestKey(0L, "b"), 0L);
+		CompletableFuture<Long> second = map.put(key, 2L);
+		CompletableFuture<Long> removed = map.remove(key);
+		assertEquals(null, first.get());
+		assertEquals(Long.valueOf(1L), second.get());
+		assertEquals(Long.valueOf(2L), removed.get());
+		assertEquals(1, map.size());
+		map.close();
+		try {
+			map.put(key, 3L).get();
+			assertTrue(false);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void testConcurrentLruGets() throws Exception {
+		final RedBlackHashTreeMap<TestKey, Long> lru = new RedBlackHashTreeMap<TestKey, Long>();
+		lru.setMaxSize(500, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		lru.setBucketCapacity(4, RedBlackHashTreeMap.BucketEvictionPolicy.LRU);
+		assertTrue(lru.readsReorder());
+		final AsyncRedBlackHashTreeMap<TestKey, Long> map = new AsyncRedBlackHashTreeMap<TestKey, Long>(lru, Executors.defaultThreadFactory(), 64);
+		for(int i=0; i<1000; i++) {
+			map.put(new TestKey((long) (i % 200), "Name" + (i / 200)), (long) i);
+		}
+		List<Thread> readers = new ArrayList<Thread>();
+		for(int t=0; t<8; t++) {
+			Thread reader = new Thread() {
+				public void run() {
+					for(int i=0; i<20000; i++) {
+						map.get(new TestKey((long) (i % 200), "Name" + (i / 200 % 5)));
+					}
+				}
+			};
+			readers.add(reader);
+			reader.start();
+		}
+		for(Thread reader : readers) {
+			reader.join();
+		}
+		map.close();
+		// gets touched the access order one at a time, so it is intact
+		assertEquals(500, lru.size());
+		lru.setMaxSize(100, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		assertEquals(100, lru.size());
+		assertTrue(lru.root.consistency());
+	}
+
+	@Test
+	public void testCloseRacingSubmits() throws Exception {
+		for(int round=0; round<50; round++) {
+			final AsyncRedBlackHashTreeMap<TestKey, Long> map = new AsyncRedBlackHashTreeMap<TestKey, Long>();
+			final CountDownLatch started = new CountDownLatch(4);
+			final List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+			List<Thread> workers = new ArrayList<Thread>();
+			for(int t=0; t<4; t++) {
+				final long ts = t;
+				Thread worker = new Thread() {
+					public void run() {
+						List<CompletableFuture<Long>> mine = new ArrayList<CompletableFuture<Long>>();
+						started.countDown();
+						CompletableFuture<Long> future;
+						do {
+							future = map.merge(new TestKey(ts, "a"), 1L, SUM);
+							mine.add(future);
+						} while(!future.isCompletedExceptionally());
+						synchronized (futures) {
+							futures.addAll(mine);
+						}
+					}
+				};
+				workers.add(worker);
+				worker.start();
+			}
+			started.await();
+			map.close();
+			for(Thread worker : workers) {
+				worker.join();
+			}
+			long applied = 0;
+			for(CompletableFuture<Long> future : futures) {
+				// every future is settled once close returns
+				assertTrue(future.isDone());
+				if(!future.isCompletedExceptionally())
+					applied++;
+			}
+			long total = 0;
+			for(int ts=0; ts<4; ts++) {
+				Map<TestKey, Long> bucket = map.getMap((long) ts);
+				if(bucket != null)
+					total += bucket.get(new TestKey((long) ts, "a"));
+			}
+			assertEquals(applied, total);
+		}
+	}
+}
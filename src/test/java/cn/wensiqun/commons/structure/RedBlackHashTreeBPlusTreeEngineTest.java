@@ -0,0 +1,69 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class RedBlackHashTreeBPlusTreeEngineTest {
+
+	private static final int RANGE = 20000;
+
+	private Random random = new Random();
+
+	private Long randomProbe() {
+		return Long.valueOf(random.nextInt(RANGE + 200) - 100);
+	}
+
+	@Test
+	public void testAgainstTreeMap() {
+		RedBlackHashTreeBPlusTreeEngine<TestKey, Long> engine = new RedBlackHashTreeBPlusTreeEngine<TestKey, Long>();
+		RedBlackHashTreeEngineOracle check = new RedBlackHashTreeEngineOracle(engine);
+		for(int round=0; round<40; round++) {
+			// grow for the first half, then shrink, so nodes split and merge
+			boolean shrinking = round >= 20;
+			for(int i=0; i<1000; i++) {
+				TestKey key = new TestKey((long) random.nextInt(RANGE), "Name" + random.nextInt(2));
+				if(shrinking ? random.nextInt(4) != 0 : random.nextInt(5) == 0)
+					check.remove(key);
+				else
+					check.put(key, random.nextLong());
+			}
+			check.assertSame(randomProbe(), randomProbe(), -1L, (long) RANGE, randomProbe(), randomProbe());
+			check.pollFirstAndLast();
+			check.removeMap(randomProbe());
+			check.assertSame(randomProbe(), randomProbe());
+		}
+		check.clear();
+	}
+
+	@Test
+	public void testGrowAndDrain() {
+		RedBlackHashTreeBPlusTreeEngine<TestKey, Long> engine = new RedBlackHashTreeBPlusTreeEngine<TestKey, Long>();
+		int n = RedBlackHashTreeBPlusTreeEngine.ORDER * RedBlackHashTreeBPlusTreeEngine.ORDER * 2;
+		for(long ts=0; ts<n; ts++)
+			engine.put(new TestKey(ts, "Name"), ts);
+		assertTrue(engine.getHeight() >= 2);
+		assertTrue(engine.getHeight() <= 3);
+
+		long expected = 0;
+		for(Iterator<RedBlackHashTreeBucket<TestKey, Long>> it = engine.tailIterator(Long.valueOf(0), true); it.hasNext(); expected++)
+			assertEquals(Long.valueOf(expected), it.next().getCompareObj());
+		assertEquals(n, expected);
+
+		for(long ts=0; ts<n; ts++) {
+			if(ts % 2 == 0)
+				assertEquals(Long.valueOf(ts / 2), engine.pollFirstNode().getCompareObj());
+			else
+				assertEquals(Long.valueOf(n - 1 - ts / 2), engine.pollLastNode().getCompareObj());
+		}
+		assertEquals(0, engine.size());
+		assertEquals(0, engine.getHeight());
+		assertEquals(null, engine.firstNode());
+	}
+}
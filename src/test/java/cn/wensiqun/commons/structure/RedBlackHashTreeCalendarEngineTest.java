@@ -0,0 +1,191 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class RedBlackHashTreeCalendarEngineTest {
+
+	private static final long STEP = 4;
+
+	private static final int SLOTS = 64;
+
+	private Random random = new Random();
+
+	private RedBlackHashTreeCalendarEngine<TestKey, Long> engine = new RedBlackHashTreeCalendarEngine<TestKey, Long>(STEP, SLOTS);
+
+	private RedBlackHashTreeMap<TestKey, Long> oracle = new RedBlackHashTreeMap<TestKey, Long>();
+
+	private long now = 1000;
+
+	private long randomTimestamp() {
+		switch(random.nextInt(10)) {
+		case 0:
+			// late
+			return now - STEP * random.nextInt(3 * SLOTS);
+		case 1:
+			// off the step
+			return now + random.nextInt(SLOTS) * STEP + 1 + random.nextInt((int) STEP - 1);
+		case 2:
+			// far ahead
+			return now + STEP * (2 * SLOTS + random.nextInt(SLOTS));
+		default:
+			now += STEP * random.nextInt(2);
+			return now - STEP * random.nextInt(SLOTS / 2);
+		}
+	}
+
+	private static Comparable compareObjOf(RedBlackHashTreeBucket<TestKey, Long> bucket) {
+		return bucket == null ? null : bucket.getCompareObj();
+	}
+
+	private Comparable oracleCompareObjOf(RedBlackHashTree<TestKey, Long> node) {
+		return oracle.nodeIsValid(node) ? node.getCompareObj() : null;
+	}
+
+	private void assertSameIteration(Iterator<? extends RedBlackHashTreeBucket<TestKey, Long>> exp,
+			Iterator<? extends RedBlackHashTreeBucket<TestKey, Long>> act) {
+		List<Comparable> expected = new ArrayList<Comparable>();
+		while(exp.hasNext())
+			expected.add(exp.next().getCompareObj());
+		List<Comparable> actual = new ArrayList<Comparable>();
+		while(act.hasNext())
+			actual.add(act.next().getCompareObj());
+		assertEquals(expected, actual);
+	}
+
+	private void assertSameNavigation() {
+		assertEquals(oracle.size(), engine.size());
+		if(oracle.isEmpty()) {
+			assertTrue(engine.isEmpty());
+			assertEquals(null, engine.firstNode());
+			return;
+		}
+		assertEquals(oracleCompareObjOf(oracle.firstNode()), compareObjOf(engine.firstNode()));
+		assertEquals(oracleCompareObjOf(oracle.lastNode()), compareObjOf(engine.lastNode()));
+		for(int i=0; i<20; i++) {
+			Long probe = now - STEP * SLOTS * 3 + random.nextInt((int) STEP * SLOTS * 6);
+			assertEquals(oracleCompareObjOf(oracle.ceilingNode(probe)), compareObjOf(engine.ceilingNode(probe)));
+			assertEquals(oracleCompareObjOf(oracle.higherNode(probe)), compareObjOf(engine.higherNode(probe)));
+			assertEquals(oracleCompareObjOf(oracle.floorNode(probe)), compareObjOf(engine.floorNode(probe)));
+			assertEquals(oracleCompareObjOf(oracle.lowerNode(probe)), compareObjOf(engine.lowerNode(probe)));
+			assertEquals(oracle.getMap(probe), engine.getMap(probe));
+		}
+		Long from = now - STEP * SLOTS;
+		Long to = now + STEP * SLOTS;
+		assertSameIteration(oracle.subIterator(from, true, to, true), engine.subIterator(from, true, to, true));
+		assertSameIteration(oracle.subIterator(to, false, from, false), engine.subIterator(to, false, from, false));
+		assertSameIteration(oracle.headIterator(now), engine.headIterator(now));
+		assertSameIteration(oracle.tailIterator(now, true), engine.tailIterator(now, true));
+	}
+
+	@Test
+	public void testAgainstTreeMap() {
+		for(int round=0; round<50; round++) {
+			for(int i=0; i<200; i++) {
+				TestKey key = new TestKey(randomTimestamp(), "Name" + random.nextInt(3));
+				if(random.nextInt(4) == 0) {
+					assertEquals(oracle.remove(key), engine.remove(key));
+				} else {
+					Long value = random.nextLong();
+					assertEquals(oracle.put(key, value), engine.put(key, value));
+				}
+				assertEquals(oracle.get(key), engine.get(key));
+				assertEquals(oracle.contains(key), engine.contains(key));
+			}
+			assertSameNavigation();
+			if(!oracle.isEmpty()) {
+				Comparable first = oracle.firstNode().getCompareObj();
+				assertEquals(oracle.firstNode().value(), engine.pollFirstNode().value());
+				oracle.removeMap(first);
+				Comparable last = oracle.lastNode().getCompareObj();
+				if(!oracle.isEmpty()) {
+					assertEquals(oracle.removeMap(last), engine.pollLastNode().value());
+				}
+			}
+			Long probe = randomTimestamp();
+			assertEquals(oracle.removeMap(probe), engine.removeMap(probe));
+			assertSameNavigation();
+		}
+		assertTrue(engine.getWindowStart() > 1000);
+		engine.clear();
+		oracle.clear();
+		assertSameNavigation();
+	}
+
+	@Test
+	public void testDenseWindowStaysInSlots() {
+		RedBlackHashTreeCalendarEngine<TestKey, Long> dense = new RedBlackHashTreeCalendarEngine<TestKey, Long>(0, STEP, SLOTS);
+		for(long ts=0; ts<STEP * SLOTS * 10; ts+=STEP) {
+			dense.put(new TestKey(ts, "Name"), ts);
+			if(ts >= STEP * SLOTS)
+				dense.pollFirstNode();
+		}
+		assertEquals(0, dense.getSpilled());
+		assertEquals(SLOTS, dense.size());
+		assertEquals(Long.valueOf(STEP * SLOTS * 9), dense.firstNode().getCompareObj());
+		assertEquals(Long.valueOf(STEP * SLOTS * 9 + STEP), dense.ceilingNode(Long.valueOf(STEP * SLOTS * 9 + 1)).getCompareObj());
+	}
+
+	@Test
+	public void testWindowFollowsGap() {
+		RedBlackHashTreeCalendarEngine<TestKey, Long> gapped = new RedBlackHashTreeCalendarEngine<TestKey, Long>(1, 16);
+		for(long ts=0; ts<16; ts++)
+			gapped.put(new TestKey(ts, "Name"), ts);
+		for(long ts=100; ts<200; ts++)
+			gapped.put(new TestKey(ts, "Name"), ts);
+		// only what the window left behind spills: 0..15 and 100..183
+		assertEquals(184, gapped.getWindowStart());
+		assertEquals(100, gapped.getSpilled());
+		assertEquals(116, gapped.size());
+		assertEquals(Long.valueOf(0), gapped.firstNode().getCompareObj());
+		assertEquals(Long.valueOf(199), gapped.lastNode().getCompareObj());
+
+		RedBlackHashTreeCalendarEngine<TestKey, Long> polled = new RedBlackHashTreeCalendarEngine<TestKey, Long>(1, 16);
+		for(long ts=0; ts<16; ts++)
+			polled.put(new TestKey(ts, "Name"), ts);
+		for(long ts=100; ts<200; ts++) {
+			polled.pollFirstNode();
+			polled.put(new TestKey(ts, "Name"), ts);
+		}
+		assertEquals(0, polled.getSpilled());
+		assertEquals(16, polled.size());
+		assertEquals(Long.valueOf(184), polled.firstNode().getCompareObj());
+	}
+
+	@Test
+	public void testIntegerCompareObjects() {
+		RedBlackHashTreeCalendarEngine<TestKey, Long> ints = new RedBlackHashTreeCalendarEngine<TestKey, Long>(0, 2, 8, new Function<TestKey, Integer>() {
+			public Integer apply(TestKey key) {
+				return key.getComparableObject().intValue();
+			}
+		});
+		// late, so the slides below walk a non-empty spill
+		ints.put(new TestKey(-2L, "Name"), -2L);
+		for(long ts=0; ts<40; ts+=2)
+			ints.put(new TestKey(ts, "Name"), ts);
+		// off the step, ahead of the window until it slides past
+		ints.put(new TestKey(45L, "Name"), 45L);
+		for(long ts=40; ts<60; ts+=2)
+			ints.put(new TestKey(ts, "Name"), ts);
+		assertEquals(32, ints.size());
+		assertEquals(44, ints.getWindowStart());
+		assertEquals(Integer.valueOf(-2), ints.firstNode().getCompareObj());
+		assertEquals(Integer.valueOf(58), ints.lastNode().getCompareObj());
+		assertEquals(Integer.valueOf(45), ints.ceilingNode(Integer.valueOf(45)).getCompareObj());
+		assertEquals(Integer.valueOf(46), ints.higherNode(Integer.valueOf(45)).getCompareObj());
+		assertEquals(Integer.valueOf(44), ints.lowerNode(Integer.valueOf(45)).getCompareObj());
+		assertEquals(Long.valueOf(20), ints.get(new TestKey(20L, "Name")));
+		assertEquals(Long.valueOf(50), ints.remove(new TestKey(50L, "Name")));
+		assertEquals(31, ints.size());
+	}
+}
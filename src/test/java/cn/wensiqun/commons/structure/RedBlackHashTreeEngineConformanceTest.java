@@ -0,0 +1,109 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+/**
+ * Runs the same checks against every engine.
+ */
+@RunWith(Parameterized.class)
+public class RedBlackHashTreeEngineConformanceTest {
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> engines() {
+		List<Object[]> engines = new ArrayList<Object[]>();
+		for(RedBlackHashTreeEngines.Kind kind : RedBlackHashTreeEngines.Kind.values())
+			engines.add(new Object[] { kind.name() });
+		engines.add(new Object[] { "CALENDAR" });
+		return engines;
+	}
+
+	private final String name;
+
+	private Random random = new Random();
+
+	public RedBlackHashTreeEngineConformanceTest(String name) {
+		this.name = name;
+	}
+
+	private RedBlackHashTreeEngine<TestKey, Long> newEngine() {
+		if("CALENDAR".equals(name))
+			return RedBlackHashTreeEngines.newCalendarEngine(1, 256, null);
+		return RedBlackHashTreeEngines.newEngine(RedBlackHashTreeEngines.Kind.valueOf(name));
+	}
+
+	@Test
+	public void testEmpty() {
+		RedBlackHashTreeEngine<TestKey, Long> engine = newEngine();
+		Long probe = Long.valueOf(10);
+		assertTrue(engine.isEmpty());
+		assertNull(engine.firstNode());
+		assertNull(engine.lastNode());
+		assertNull(engine.ceilingNode(probe));
+		assertNull(engine.floorNode(probe));
+		assertNull(engine.getMap(probe));
+		assertNull(engine.removeMap(probe));
+		assertNull(engine.remove(new TestKey(10L, "Name")));
+		assertNull(engine.pollFirstNode());
+		assertNull(engine.pollLastNode());
+		assertFalse(engine.headIterator(probe, true).hasNext());
+		assertFalse(engine.tailIterator(probe, true).hasNext());
+		assertFalse(engine.subIterator(probe, Long.valueOf(20)).hasNext());
+	}
+
+	@Test
+	public void testBuckets() {
+		RedBlackHashTreeEngine<TestKey, Long> engine = newEngine();
+		TestKey first = new TestKey(10L, "First");
+		TestKey second = new TestKey(10L, "Second");
+		assertNull(engine.put(first, 1L));
+		assertNull(engine.put(second, 2L));
+		assertEquals(Long.valueOf(2), engine.put(second, 3L));
+		assertEquals(2, engine.size());
+		assertEquals(2, engine.getMap(Long.valueOf(10)).size());
+		assertEquals(Long.valueOf(1), engine.remove(first));
+		assertTrue(engine.contains(first));
+		assertNull(engine.get(first));
+		assertEquals(Long.valueOf(3), engine.ceilingValue(new TestKey(9L, "Second")));
+		assertEquals(Long.valueOf(3), engine.floorValue(new TestKey(11L, "Second")));
+		RedBlackHashTreeBucket<TestKey, Long> polled = engine.pollFirstNode();
+		assertEquals(Long.valueOf(10), polled.getCompareObj());
+		assertEquals(Long.valueOf(3), polled.value().get(second));
+		assertTrue(engine.isEmpty());
+	}
+
+	@Test
+	public void testAgainstTreeMap() {
+		RedBlackHashTreeEngineOracle check = new RedBlackHashTreeEngineOracle(newEngine());
+		for(int round=0; round<20; round++) {
+			for(int i=0; i<300; i++) {
+				TestKey key = new TestKey((long) random.nextInt(1000), "Name" + random.nextInt(3));
+				if(random.nextInt(3) == 0)
+					check.remove(key);
+				else
+					check.put(key, random.nextLong());
+			}
+			Long from = Long.valueOf(random.nextInt(1200) - 100);
+			Long to = Long.valueOf(random.nextInt(1200) - 100);
+			check.assertSame(from, to, Long.valueOf(-1), Long.valueOf(1000));
+			check.pollFirstAndLast();
+			check.removeMap(Long.valueOf(random.nextInt(1000)));
+			check.assertSame(to, from);
+		}
+		check.clear();
+	}
+}
@@ -0,0 +1,102 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+/**
+ * Applies the same operations to an engine and to a
+ * {@link RedBlackHashTreeMap}, and checks that they agree.
+ */
+class RedBlackHashTreeEngineOracle {
+
+	final RedBlackHashTreeEngine<TestKey, Long> engine;
+
+	final RedBlackHashTreeMap<TestKey, Long> oracle = new RedBlackHashTreeMap<TestKey, Long>();
+
+	RedBlackHashTreeEngineOracle(RedBlackHashTreeEngine<TestKey, Long> engine) {
+		this.engine = engine;
+	}
+
+	void put(TestKey key, Long value) {
+		assertEquals(oracle.put(key, value), engine.put(key, value));
+		assertEquals(oracle.get(key), engine.get(key));
+		assertEquals(oracle.contains(key), engine.contains(key));
+	}
+
+	void remove(TestKey key) {
+		assertEquals(oracle.remove(key), engine.remove(key));
+		assertEquals(oracle.get(key), engine.get(key));
+		assertEquals(oracle.contains(key), engine.contains(key));
+	}
+
+	void removeMap(Long compareObj) {
+		assertEquals(oracle.removeMap(compareObj), engine.removeMap(compareObj));
+	}
+
+	void pollFirstAndLast() {
+		if(oracle.isEmpty()) {
+			assertEquals(null, engine.pollFirstNode());
+			assertEquals(null, engine.pollLastNode());
+			return;
+		}
+		assertEquals(oracle.removeMap(oracle.firstNode().getCompareObj()), engine.pollFirstNode().value());
+		if(!oracle.isEmpty())
+			assertEquals(oracle.removeMap(oracle.lastNode().getCompareObj()), engine.pollLastNode().value());
+	}
+
+	private static Comparable compareObjOf(RedBlackHashTreeBucket<TestKey, Long> bucket) {
+		return bucket == null ? null : bucket.getCompareObj();
+	}
+
+	private Comparable oracleCompareObjOf(RedBlackHashTree<TestKey, Long> node) {
+		return oracle.nodeIsValid(node) ? node.getCompareObj() : null;
+	}
+
+	private static List<Comparable> compareObjs(Iterator<? extends RedBlackHashTreeBucket<TestKey, Long>> it) {
+		List<Comparable> compareObjs = new ArrayList<Comparable>();
+		while(it.hasNext())
+			compareObjs.add(it.next().getCompareObj());
+		return compareObjs;
+	}
+
+	/**
+	 * Compares sizes, ends, the navigation around each probe and the
+	 * iteration between the first two probes and beyond.
+	 */
+	void assertSame(Long... probes) {
+		assertEquals(oracle.size(), engine.size());
+		if(oracle.isEmpty()) {
+			assertTrue(engine.isEmpty());
+			assertEquals(null, engine.firstNode());
+			assertEquals(null, engine.lastNode());
+			return;
+		}
+		assertEquals(oracleCompareObjOf(oracle.firstNode()), compareObjOf(engine.firstNode()));
+		assertEquals(oracleCompareObjOf(oracle.lastNode()), compareObjOf(engine.lastNode()));
+		for(Long probe : probes) {
+			assertEquals(oracleCompareObjOf(oracle.ceilingNode(probe)), compareObjOf(engine.ceilingNode(probe)));
+			assertEquals(oracleCompareObjOf(oracle.higherNode(probe)), compareObjOf(engine.higherNode(probe)));
+			assertEquals(oracleCompareObjOf(oracle.floorNode(probe)), compareObjOf(engine.floorNode(probe)));
+			assertEquals(oracleCompareObjOf(oracle.lowerNode(probe)), compareObjOf(engine.lowerNode(probe)));
+			assertEquals(oracle.getMap(probe), engine.getMap(probe));
+		}
+		Long from = probes[0];
+		Long to = probes[1];
+		assertEquals(compareObjs(oracle.subIterator(from, true, to, true)), compareObjs(engine.subIterator(from, true, to, true)));
+		assertEquals(compareObjs(oracle.subIterator(to, false, from, false)), compareObjs(engine.subIterator(to, false, from, false)));
+		assertEquals(compareObjs(oracle.headIterator(from)), compareObjs(engine.headIterator(from)));
+		assertEquals(compareObjs(oracle.tailIterator(from, true)), compareObjs(engine.tailIterator(from, true)));
+	}
+
+	void clear() {
+		engine.clear();
+		oracle.clear();
+		assertSame();
+	}
+}
@@ -0,0 +1,325 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Guards the allocation per operation and the retained heap per entry of
+ * {@link RedBlackHashTreeMap}.  Budgets are about a quarter above what a
+ * 64-bit JVM with compressed oops measures, so a change that makes the map
+ * allocate or retain a field or an object more per entry fails.
+ */
+public class RedBlackHashTreeFootprintTest {
+
+	/**
+	 * HashMap.Node plus amortized table growth
+	 */
+	private static final double PUT_EXISTING_BUCKET_BYTES = 40;
+
+	/**
+	 * Tree node, its empty sentinel, the bucket HashMap, its table and a node
+	 */
+	private static final double PUT_NEW_BUCKET_BYTES = 300;
+
+	private static final double GET_BYTES = 1;
+
+	private static final double CEILING_BYTES = 1;
+
+	/**
+	 * Per-bucket entry iterator shared by the entries of the bucket
+	 */
+	private static final double ITERATED_ENTRY_BYTES = 13;
+
+	private static final double RETAINED_BYTES_PER_ENTRY = 105;
+
+	private static final double RETAINED_BYTES_PER_NODE = 420;
+
+	private static final int ENTRIES_PER_BUCKET = 4;
+
+	private static final int WARMUP = 20000;
+
+	private static final int OPS = 100000;
+
+	private static final Long VALUE = Long.valueOf(-1);
+
+	private com.sun.management.ThreadMXBean threadBean;
+
+	private long threadId;
+
+	@Before
+	public void setup() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		threadId = Thread.currentThread().getId();
+	}
+
+	private long allocated() {
+		return threadBean.getThreadAllocatedBytes(threadId);
+	}
+
+	private static FootprintKey[] keys(int n, int entriesPerBucket, long offset) {
+		FootprintKey[] keys = new FootprintKey[n];
+		Long ts = null;
+		for(int i=0; i<n; i++) {
+			if(i % entriesPerBucket == 0)
+				ts = Long.valueOf(offset + i / entriesPerBucket);
+			keys[i] = new FootprintKey(ts, i);
+		}
+		return keys;
+	}
+
+	private static RedBlackHashTreeMap<FootprintKey, Long> fill(FootprintKey[] keys) {
+		RedBlackHashTreeMap<FootprintKey, Long> map = new RedBlackHashTreeMap<FootprintKey, Long>();
+		for(FootprintKey key : keys) {
+			map.put(key, VALUE);
+		}
+		return map;
+	}
+
+	private void assertBudget(String what, double bytesPerOp, double budget) {
+		System.out.println("[footprint] " + what + " : " + bytesPerOp + " bytes (budget " + budget + ")");
+		assertTrue(what + " allocated " + bytesPerOp + " bytes, budget is " + budget, bytesPerOp <= budget);
+	}
+
+	@Test
+	public void testPutIntoExistingBucket() {
+		// every bucket already holds key 0 of its comparable
+		int buckets = (WARMUP + OPS) / 8;
+		FootprintKey[] seeds = keys(buckets, 1, 0);
+		FootprintKey[] keys = new FootprintKey[WARMUP + OPS];
+		for(int i=0; i<keys.length; i++) {
+			keys[i] = new FootprintKey(seeds[i % buckets].getComparableObject(), buckets + i);
+		}
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(seeds);
+		for(int i=0; i<WARMUP; i++) {
+			map.put(keys[i], VALUE);
+		}
+		long before = allocated();
+		for(int i=WARMUP; i<keys.length; i++) {
+			map.put(keys[i], VALUE);
+		}
+		assertBudget("put into existing bucket", (double) (allocated() - before) / OPS, PUT_EXISTING_BUCKET_BYTES);
+	}
+
+	@Test
+	public void testPutIntoNewBucket() {
+		FootprintKey[] keys = keys(WARMUP + OPS, 1, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = new RedBlackHashTreeMap<FootprintKey, Long>();
+		for(int i=0; i<WARMUP; i++) {
+			map.put(keys[i], VALUE);
+		}
+		long before = allocated();
+		for(int i=WARMUP; i<keys.length; i++) {
+			map.put(keys[i], VALUE);
+		}
+		assertBudget("put into new bucket", (double) (allocated() - before) / OPS, PUT_NEW_BUCKET_BYTES);
+	}
+
+	@Test
+	public void testGet() {
+		FootprintKey[] keys = keys(OPS, ENTRIES_PER_BUCKET, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(keys);
+		long sink = 0;
+		for(int r=0; r<3; r++) {
+			for(FootprintKey key : keys) {
+				sink += map.get(key);
+			}
+		}
+		long before = allocated();
+		for(FootprintKey key : keys) {
+			sink += map.get(key);
+		}
+		assertBudget("get", (double) (allocated() - before) / keys.length, GET_BYTES);
+		assertTrue(sink != 0);
+	}
+
+	@Test
+	public void testProbeGet() {
+		FootprintKey[] keys = keys(OPS, ENTRIES_PER_BUCKET, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(keys);
+		long[] timestamps = new long[keys.length];
+		for(int i=0; i<keys.length; i++) {
+			timestamps[i] = keys[i].getComparableObject();
+		}
+		IdProbe probe = new IdProbe();
+		long sink = 0;
+		for(int r=0; r<3; r++) {
+			for(int i=0; i<keys.length; i++) {
+				probe.id = i;
+				sink += map.get(timestamps[i], probe);
+			}
+		}
+		long before = allocated();
+		for(int i=0; i<keys.length; i++) {
+			probe.id = i;
+			sink += map.get(timestamps[i], probe);
+		}
+		assertBudget("probe get", (double) (allocated() - before) / keys.length, GET_BYTES);
+		assertTrue(sink != 0);
+	}
+
+	@Test
+	public void testLongExtractorGet() {
+		FootprintKey[] keys = keys(OPS, ENTRIES_PER_BUCKET, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = RedBlackHashTreeMap.withLongExtractor(new ToLongFunction<FootprintKey>() {
+			public long applyAsLong(FootprintKey key) {
+				return key.timestamp;
+			}
+		});
+		for(FootprintKey key : keys) {
+			map.put(key, VALUE);
+		}
+		long sink = 0;
+		for(int r=0; r<3; r++) {
+			for(FootprintKey key : keys) {
+				sink += map.get(key);
+			}
+		}
+		long before = allocated();
+		for(FootprintKey key : keys) {
+			sink += map.get(key);
+		}
+		assertBudget("long extractor get", (double) (allocated() - before) / keys.length, GET_BYTES);
+		assertTrue(sink != 0);
+	}
+
+	@Test
+	public void testLruGet() {
+		FootprintKey[] keys = keys(OPS, ENTRIES_PER_BUCKET, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(keys);
+		map.setMaxSize(OPS, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		long sink = 0;
+		for(int r=0; r<3; r++) {
+			for(FootprintKey key : keys) {
+				sink += map.get(key);
+			}
+		}
+		long before = allocated();
+		for(FootprintKey key : keys) {
+			sink += map.get(key);
+		}
+		assertBudget("LRU get", (double) (allocated() - before) / keys.length, GET_BYTES);
+		assertTrue(sink != 0);
+	}
+
+	@Test
+	public void testCeilingNode() {
+		FootprintKey[] keys = keys(OPS, ENTRIES_PER_BUCKET, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(keys);
+		long sink = 0;
+		for(int r=0; r<3; r++) {
+			for(FootprintKey key : keys) {
+				sink += map.ceilingNode(key.getComparableObject()).value().size();
+			}
+		}
+		long before = allocated();
+		for(FootprintKey key : keys) {
+			sink += map.ceilingNode(key.getComparableObject()).value().size();
+		}
+		assertBudget("ceilingNode", (double) (allocated() - before) / keys.length, CEILING_BYTES);
+		assertTrue(sink != 0);
+	}
+
+	@Test
+	public void testIteratedEntry() {
+		FootprintKey[] keys = keys(OPS, ENTRIES_PER_BUCKET, 0);
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(keys);
+		long sink = 0;
+		for(int r=0; r<4; r++) {
+			long before = allocated();
+			long entries = 0;
+			Iterator<RedBlackHashTree<FootprintKey, Long>> iter = map.subIterator(map.firstNode().getCompareObj(), true, map.lastNode().getCompareObj(), true);
+			while(iter.hasNext()) {
+				for(Map.Entry<FootprintKey, Long> entry : iter.next().value().entrySet()) {
+					sink += entry.getValue();
+					entries++;
+				}
+			}
+			if(r == 3)
+				assertBudget("iterated entry", (double) (allocated() - before) / entries, ITERATED_ENTRY_BYTES);
+		}
+		assertTrue(sink != 0);
+	}
+
+	private static long usedHeap(MemoryMXBean memory) {
+		long used = Long.MAX_VALUE;
+		for(int i=0; i<5; i++) {
+			System.gc();
+			used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+
+	@Test
+	public void testRetainedHeap() {
+		int n = 200000;
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		Assume.assumeTrue(Runtime.getRuntime().maxMemory() > 128L * 1024 * 1024);
+		FootprintKey[] keys = keys(n, ENTRIES_PER_BUCKET, 0);
+		long before = usedHeap(memory);
+		RedBlackHashTreeMap<FootprintKey, Long> map = fill(keys);
+		long retained = usedHeap(memory) - before;
+		assertBudget("retained per entry", (double) retained / map.size(), RETAINED_BYTES_PER_ENTRY);
+		assertBudget("retained per node", (double) retained / (n / ENTRIES_PER_BUCKET), RETAINED_BYTES_PER_NODE);
+		assertTrue(map.size() == n);
+	}
+
+	/**
+	 * A reusable stand-in for the FootprintKey of an id
+	 */
+	static class IdProbe {
+
+		private int id;
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof FootprintKey && ((FootprintKey) obj).id == id;
+		}
+	}
+
+	/**
+	 * A key without per-probe allocation: its comparable is created once
+	 */
+	static class FootprintKey implements RedBlackHashTreeComparable<Long> {
+
+		private final Long timestamp;
+
+		private final int id;
+
+		FootprintKey(Long timestamp, int id) {
+			this.timestamp = timestamp;
+			this.id = id;
+		}
+
+		public Long getComparableObject() {
+			return timestamp;
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof FootprintKey && ((FootprintKey) obj).id == id;
+		}
+	}
+}
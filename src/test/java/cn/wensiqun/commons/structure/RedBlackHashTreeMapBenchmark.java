@@ -0,0 +1,486 @@
+package cn.wensiqun.commons.structure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+/**
+ * Multi-threaded throughput and latency harness for {@link RedBlackHashTreeMap}
+ * and its concurrent front ends, with a synchronized {@link TreeMap} of
+ * buckets as the baseline.
+ * <p>
+ * Run with <code>java -cp target/classes:target/test-classes
+ * cn.wensiqun.commons.structure.RedBlackHashTreeMapBenchmark</code>.  It is
+ * configured through system properties:
+ * <ul>
+ * <li><code>bench.threads</code> highest thread count, doubled from 1 (default: processors)</li>
+ * <li><code>bench.seconds</code> measured seconds per run (default 3)</li>
+ * <li><code>bench.warmup</code> warm-up seconds per run (default 1)</li>
+ * <li><code>bench.mix</code> percentages of put,get,remove,scan,evict (default 30,60,5,4,1)</li>
+ * <li><code>bench.distribution</code> uniform, zipfian or append (default uniform)</li>
+ * <li><code>bench.comparables</code> distinct compare objects (default 100000)</li>
+ * <li><code>bench.bucket</code> keys per compare object (default 4)</li>
+ * <li><code>bench.scan</code> compare objects covered by a scan (default 100)</li>
+ * <li><code>bench.targets</code> any of synchronized,async,treemap (default all)</li>
+ * </ul>
+ */
+public class RedBlackHashTreeMapBenchmark {
+
+	private static final int PUT = 0, GET = 1, REMOVE = 2, SCAN = 3, EVICT = 4;
+
+	private static final String[] OPS = { "put", "get", "remove", "scan", "evict" };
+
+	/**
+	 * Latency samples kept per thread and operation
+	 */
+	private static final int SAMPLES = 1 << 16;
+
+	private final int[] mix;
+
+	private final String distribution;
+
+	private final int comparables;
+
+	private final int bucket;
+
+	private final int scan;
+
+	public RedBlackHashTreeMapBenchmark(int[] mix, String distribution, int comparables, int bucket, int scan) {
+		this.mix = mix;
+		this.distribution = distribution;
+		this.comparables = comparables;
+		this.bucket = bucket;
+		this.scan = scan;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+		int seconds = Integer.getInteger("bench.seconds", 3);
+		int warmup = Integer.getInteger("bench.warmup", 1);
+		String[] mixSpec = System.getProperty("bench.mix", "30,60,5,4,1").split(",");
+		int[] mix = new int[OPS.length];
+		for (int i = 0; i < mix.length; i++) {
+			mix[i] = Integer.parseInt(mixSpec[i].trim());
+		}
+		RedBlackHashTreeMapBenchmark bench = new RedBlackHashTreeMapBenchmark(mix,
+				System.getProperty("bench.distribution", "uniform"),
+				Integer.getInteger("bench.comparables", 100000),
+				Integer.getInteger("bench.bucket", 4),
+				Integer.getInteger("bench.scan", 100));
+		String[] targets = System.getProperty("bench.targets", "synchronized,async,treemap").split(",");
+
+		System.out.println("mix put/get/remove/scan/evict=" + Arrays.toString(mix) + " distribution=" + bench.distribution
+				+ " comparables=" + bench.comparables + " bucket=" + bench.bucket);
+		System.out.printf("%-13s %7s %12s   %s%n", "target", "threads", "ops/s", "latency ns p50/p99/p999 per op");
+		for (String target : targets) {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				System.out.println(bench.run(target.trim(), threads, warmup, seconds));
+			}
+		}
+	}
+
+	/**
+	 * Fills a fresh target, runs threads against it and reports the result.
+	 */
+	public Result run(String targetName, int threads, int warmupSeconds, int seconds) throws Exception {
+		Target target = newTarget(targetName);
+		Random random = new Random(42);
+		for (int c = 0; c < comparables; c++) {
+			for (int k = 0; k < bucket; k++) {
+				target.put(c, k, random.nextLong());
+			}
+		}
+		AtomicLong head = new AtomicLong(comparables);
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(target, head, i);
+		}
+		run(workers, warmupSeconds);
+		for (Worker worker : workers) {
+			worker.reset();
+		}
+		run(workers, seconds);
+		target.close();
+		return new Result(targetName, threads, seconds, workers);
+	}
+
+	private void run(Worker[] workers, int seconds) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			final Worker worker = workers[i];
+			worker.stop = false;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					worker.run();
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		Thread.sleep(seconds * 1000L);
+		for (Worker worker : workers) {
+			worker.stop = true;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private Target newTarget(String name) {
+		if ("synchronized".equals(name))
+			return new SynchronizedTarget();
+		if ("async".equals(name))
+			return new AsyncTarget();
+		if ("treemap".equals(name))
+			return new TreeMapTarget();
+		throw new IllegalArgumentException("unknown target " + name);
+	}
+
+	private class Worker {
+
+		private final Target target;
+
+		private final AtomicLong head;
+
+		private final Random random;
+
+		private final Zipfian zipfian;
+
+		private final long[][] latencies = new long[OPS.length][SAMPLES];
+
+		private final long[] counts = new long[OPS.length];
+
+		private volatile boolean stop;
+
+		Worker(Target target, AtomicLong head, int seed) {
+			this.target = target;
+			this.head = head;
+			this.random = new Random(seed);
+			this.zipfian = "zipfian".equals(distribution) ? new Zipfian(comparables, 0.99, random) : null;
+		}
+
+		void reset() {
+			Arrays.fill(counts, 0);
+		}
+
+		long nextComparable(boolean insert) {
+			if ("append".equals(distribution)) {
+				// inserts extend the head, everything else hits the recent tail
+				if (insert)
+					return head.getAndIncrement();
+				return Math.max(0, head.get() - 1 - random.nextInt(comparables));
+			}
+			if (zipfian != null)
+				return zipfian.next();
+			return random.nextInt(comparables);
+		}
+
+		void run() {
+			int total = 0;
+			for (int m : mix)
+				total += m;
+			while (!stop) {
+				int pick = random.nextInt(total);
+				int op = 0;
+				while (pick >= mix[op]) {
+					pick -= mix[op++];
+				}
+				long c = nextComparable(op == PUT);
+				int k = random.nextInt(bucket);
+				long start = System.nanoTime();
+				switch (op) {
+				case PUT:
+					target.put(c, k, start);
+					break;
+				case GET:
+					target.get(c, k);
+					break;
+				case REMOVE:
+					target.remove(c, k);
+					break;
+				case SCAN:
+					target.scan(c, c + scan);
+					break;
+				default:
+					target.evict();
+				}
+				long elapsed = System.nanoTime() - start;
+				long n = counts[op]++;
+				// reservoir sampling keeps an unbiased sample of long runs
+				if (n < SAMPLES) {
+					latencies[op][(int) n] = elapsed;
+				} else {
+					long slot = (long) (random.nextDouble() * (n + 1));
+					if (slot < SAMPLES)
+						latencies[op][(int) slot] = elapsed;
+				}
+			}
+		}
+	}
+
+	public static class Result {
+
+		private final String target;
+
+		private final int threads;
+
+		private final double throughput;
+
+		private final long[][] percentiles = new long[OPS.length][];
+
+		Result(String target, int threads, int seconds, Worker[] workers) {
+			this.target = target;
+			this.threads = threads;
+			long ops = 0;
+			for (int op = 0; op < OPS.length; op++) {
+				int samples = 0;
+				for (Worker worker : workers) {
+					ops += worker.counts[op];
+					samples += (int) Math.min(worker.counts[op], SAMPLES);
+				}
+				long[] merged = new long[samples];
+				int pos = 0;
+				for (Worker worker : workers) {
+					int n = (int) Math.min(worker.counts[op], SAMPLES);
+					System.arraycopy(worker.latencies[op], 0, merged, pos, n);
+					pos += n;
+				}
+				Arrays.sort(merged);
+				if (merged.length > 0) {
+					percentiles[op] = new long[] { at(merged, 0.5), at(merged, 0.99), at(merged, 0.999) };
+				}
+			}
+			this.throughput = (double) ops / seconds;
+		}
+
+		private static long at(long[] sorted, double fraction) {
+			return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+		}
+
+		public double getThroughput() {
+			return throughput;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder(String.format("%-13s %7d %12.0f  ", target, threads, throughput));
+			for (int op = 0; op < OPS.length; op++) {
+				if (percentiles[op] != null) {
+					sb.append(' ').append(OPS[op]).append('=').append(percentiles[op][0]).append('/')
+						.append(percentiles[op][1]).append('/').append(percentiles[op][2]);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The operations under test, over long compare objects and int keys
+	 */
+	private interface Target {
+
+		void put(long c, int k, long value);
+
+		Long get(long c, int k);
+
+		Long remove(long c, int k);
+
+		int scan(long from, long to);
+
+		void evict();
+
+		void close() throws InterruptedException;
+	}
+
+	private static TestKey key(long c, int k) {
+		return new TestKey(c, "k" + k);
+	}
+
+	private static int count(Iterator<RedBlackHashTree<TestKey, Long>> iter) {
+		int entries = 0;
+		while (iter.hasNext()) {
+			entries += iter.next().value().size();
+		}
+		return entries;
+	}
+
+	private static class SynchronizedTarget implements Target {
+
+		private final RedBlackHashTreeMap<TestKey, Long> map = new RedBlackHashTreeMap<TestKey, Long>();
+
+		public synchronized void put(long c, int k, long value) {
+			map.put(key(c, k), value);
+		}
+
+		public synchronized Long get(long c, int k) {
+			return map.get(key(c, k));
+		}
+
+		public synchronized Long remove(long c, int k) {
+			return map.remove(key(c, k));
+		}
+
+		public synchronized int scan(long from, long to) {
+			return count(map.subIterator(from, to));
+		}
+
+		public synchronized void evict() {
+			if (!map.isEmpty())
+				map.pollFirstNode();
+		}
+
+		public void close() {
+		}
+	}
+
+	private static class AsyncTarget implements Target {
+
+		private final AsyncRedBlackHashTreeMap<TestKey, Long> map = new AsyncRedBlackHashTreeMap<TestKey, Long>();
+
+		public void put(long c, int k, long value) {
+			map.put(key(c, k), value).join();
+		}
+
+		public Long get(long c, int k) {
+			return map.get(key(c, k));
+		}
+
+		public Long remove(long c, int k) {
+			return map.remove(key(c, k)).join();
+		}
+
+		public int scan(final long from, final long to) {
+			return map.read(m -> count(m.subIterator(from, to)));
+		}
+
+		/**
+		 * The facade has no poll, so the keys of the first bucket are removed
+		 * one by one; they are submitted together so the writer can apply them
+		 * in one batch
+		 */
+		public void evict() {
+			List<TestKey> keys = map.read(m -> m.isEmpty() ? Collections.<TestKey>emptyList()
+					: new ArrayList<TestKey>(m.firstNode().value().keySet()));
+			List<CompletableFuture<Long>> removes = new ArrayList<CompletableFuture<Long>>(keys.size());
+			for (TestKey key : keys) {
+				removes.add(map.remove(key));
+			}
+			for (CompletableFuture<Long> remove : removes) {
+				remove.join();
+			}
+		}
+
+		public void close() throws InterruptedException {
+			map.close();
+		}
+	}
+
+	private static class TreeMapTarget implements Target {
+
+		private final NavigableMap<Long, Map<Integer, Long>> map = Collections.synchronizedNavigableMap(new TreeMap<Long, Map<Integer, Long>>());
+
+		public void put(long c, int k, long value) {
+			synchronized (map) {
+				Map<Integer, Long> bucket = map.get(c);
+				if (bucket == null) {
+					bucket = new HashMap<Integer, Long>();
+					map.put(c, bucket);
+				}
+				bucket.put(k, value);
+			}
+		}
+
+		public Long get(long c, int k) {
+			synchronized (map) {
+				Map<Integer, Long> bucket = map.get(c);
+				return bucket == null ? null : bucket.get(k);
+			}
+		}
+
+		public Long remove(long c, int k) {
+			synchronized (map) {
+				Map<Integer, Long> bucket = map.get(c);
+				if (bucket == null)
+					return null;
+				Long old = bucket.remove(k);
+				if (bucket.isEmpty())
+					map.remove(c);
+				return old;
+			}
+		}
+
+		public int scan(long from, long to) {
+			synchronized (map) {
+				int entries = 0;
+				for (Map<Integer, Long> bucket : map.subMap(from, true, to, false).values()) {
+					entries += bucket.size();
+				}
+				return entries;
+			}
+		}
+
+		public void evict() {
+			map.pollFirstEntry();
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Zipfian generator over [0, n) after Gray et al., as used by YCSB
+	 */
+	private static class Zipfian {
+
+		private final int n;
+
+		private final double theta, alpha, zetan, eta;
+
+		private final Random random;
+
+		Zipfian(int n, double theta, Random random) {
+			this.n = n;
+			this.theta = theta;
+			this.random = random;
+			double zeta2 = zeta(2, theta);
+			this.zetan = zeta(n, theta);
+			this.alpha = 1.0 / (1.0 - theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			return sum;
+		}
+
+		long next() {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1.0)
+				return 0;
+			if (uz < 1.0 + Math.pow(0.5, theta))
+				return 1;
+			return (long) (n * Math.pow(eta * u - eta + 1, alpha)) % n;
+		}
+	}
+}
@@ -4,15 +4,33 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -192,6 +210,139 @@ public class RedBlackHashTreeMapTest {
 		assertEquals(expMap.get(key.timestamp).get(key.secondKey), map.get(key));
 	}
 
+	@Test
+	public void testProbeLookup() {
+		NameProbe probe = new NameProbe();
+		for(int i=0; i<20; i++) {
+			TestKey key = randomMyKey();
+			probe.name = key.secondKey;
+			Long expected = expMap.get(key.timestamp).get(key.secondKey);
+			assertEquals(expected, map.get(key.timestamp, probe));
+			assertEquals(expected, map.get(key.timestamp.longValue(), probe));
+			assertTrue(map.containsKey(key.timestamp, probe));
+			assertTrue(map.containsKey(key.timestamp.longValue(), probe));
+			assertEquals(expected, map.ceilingValue(Long.valueOf(key.timestamp - 1), probe));
+			assertEquals(expected, map.ceilingValue(key.timestamp.longValue() - 1, probe));
+			assertEquals(expected, map.floorValue(Long.valueOf(key.timestamp + 1), probe));
+			assertEquals(expected, map.floorValue(key.timestamp.longValue() + 1, probe));
+			assertEquals(expected, map.remove(key.timestamp, probe));
+			assertEquals(removeExcepted(key), expected);
+			assertEquals(null, map.get(key.timestamp.longValue(), probe));
+			assertFalse(map.containsKey(key.timestamp, probe));
+			assertEquals(null, map.remove(key.timestamp, probe));
+			assertEquals(exceptSize(), map.size());
+		}
+		assertTrue(map.root.consistency());
+		probe.name = "none";
+		assertEquals(null, map.get(expMap.firstKey(), probe));
+		assertEquals(null, map.ceilingValue(expMap.lastKey() + 1, probe));
+		assertEquals(null, map.floorValue(expMap.firstKey().longValue() - 1, probe));
+	}
+
+	@Test
+	public void testProbeRemoveUnderLru() {
+		map.setMaxSize(map.size(), RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		NameProbe probe = new NameProbe();
+		for(int i=0; i<20; i++) {
+			TestKey key = randomMyKey();
+			probe.name = key.secondKey;
+			assertEquals(removeExcepted(key), map.remove(key.timestamp, probe));
+		}
+		// the probe removed the access links too, so none is left dangling
+		int half = map.size() / 2;
+		map.setMaxSize(half, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		assertEquals(half, map.size());
+		map.setMaxSize(1, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		assertEquals(1, map.size());
+		assertTrue(map.root.consistency());
+	}
+
+	/**
+	 * Stands for the TestKey of a name in any bucket
+	 */
+	static class NameProbe {
+
+		private String name;
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof TestKey && name.equals(((TestKey) obj).secondKey);
+		}
+	}
+
+	@Test
+	public void testExtractors() {
+		List<RedBlackHashTreeMap<PlainKey, Long>> maps = new ArrayList<RedBlackHashTreeMap<PlainKey, Long>>();
+		maps.add(RedBlackHashTreeMap.withExtractor(new Function<PlainKey, Comparable>() {
+			public Comparable apply(PlainKey key) {
+				return key.timestamp;
+			}
+		}));
+		maps.add(RedBlackHashTreeMap.withLongExtractor(new ToLongFunction<PlainKey>() {
+			public long applyAsLong(PlainKey key) {
+				return key.timestamp;
+			}
+		}));
+		for(RedBlackHashTreeMap<PlainKey, Long> plain : maps) {
+			for(Entry<Long, Map<String, Long>> bucket : expMap.entrySet())
+				for(Entry<String, Long> entry : bucket.getValue().entrySet())
+					assertEquals(null, plain.put(new PlainKey(bucket.getKey(), entry.getKey()), entry.getValue()));
+			assertEquals(map.size(), plain.size());
+			for(int i=0; i<50; i++) {
+				TestKey key = randomMyKey();
+				PlainKey plainKey = new PlainKey(key.timestamp, key.secondKey);
+				assertEquals(map.get(key), plain.get(plainKey));
+				assertTrue(plain.contains(plainKey));
+				assertEquals(key.timestamp, plain.ceilingNode(new PlainKey(key.timestamp - 1, key.secondKey)).getCompareObj());
+				assertEquals(key.timestamp, plain.floorNode(new PlainKey(key.timestamp + 1, key.secondKey)).getCompareObj());
+				assertEquals(map.get(key), plain.ceilingValue(plainKey));
+				assertEquals(map.get(key), plain.put(plainKey, -1L));
+				assertEquals(Long.valueOf(-1L), plain.remove(plainKey));
+				assertEquals(null, plain.remove(plainKey));
+				assertEquals(null, plain.get(plainKey));
+				plain.put(plainKey, map.get(key));
+			}
+			assertEquals(map.size(), plain.size());
+			assertTrue(plain.root.consistency());
+			int buckets = 0;
+			for(RedBlackHashTree<PlainKey, Long> node = plain.firstNode(); plain.nodeIsValid(node); node = plain.successor(node)) {
+				assertEquals(expMap.get(node.getCompareObj()).size(), node.value().size());
+				buckets++;
+			}
+			assertEquals(expMap.size(), buckets);
+		}
+	}
+
+	/**
+	 * A domain key that knows nothing of the map
+	 */
+	static class PlainKey {
+
+		private final long timestamp;
+
+		private final String name;
+
+		PlainKey(long timestamp, String name) {
+			this.timestamp = timestamp;
+			this.name = name;
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() * 31 + (int) timestamp;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof PlainKey && ((PlainKey) obj).timestamp == timestamp && ((PlainKey) obj).name.equals(name);
+		}
+	}
+
 	@Test
 	public void testGetMap() {
 		for(int i=0; i<20; i++) {
@@ -437,7 +588,901 @@ public class RedBlackHashTreeMapTest {
 		testSubIterator((Long)randomMyKey().timestamp, true, (Long)map.lastNode().getCompareObj(), false);
 	}
 
-	
+	@Test
+	public void testPutReturnsPrevious() {
+		TestKey key = randomMyKey();
+		Long old = expMap.get(key.timestamp).get(key.secondKey);
+		int size = map.size();
+		assertEquals(old, map.put(key, -1L));
+		assertEquals(size, map.size());
+		assertEquals(null, map.put(new TestKey(-1L, "new"), -1L));
+		assertEquals(size + 1, map.size());
+	}
+
+	@Test
+	public void testPutIfAbsent() {
+		TestKey key = randomMyKey();
+		Long old = expMap.get(key.timestamp).get(key.secondKey);
+		int size = map.size();
+		assertEquals(old, map.putIfAbsent(key, -1L));
+		assertEquals(old, map.get(key));
+		assertEquals(null, map.putIfAbsent(new TestKey(key.timestamp, "absent"), -1L));
+		assertEquals(null, map.putIfAbsent(new TestKey((long) -base, "absent"), -2L));
+		assertEquals(size + 2, map.size());
+		assertEquals(Long.valueOf(-2L), map.get(new TestKey((long) -base, "absent")));
+	}
+
+	@Test
+	public void testCompute() {
+		TestKey key = randomMyKey();
+		Long old = expMap.get(key.timestamp).get(key.secondKey);
+		int size = map.size();
+		BiFunction<TestKey, Long, Long> increment = new BiFunction<TestKey, Long, Long>() {
+			public Long apply(TestKey k, Long v) {
+				return v == null ? 1L : v + 1;
+			}
+		};
+		assertEquals(Long.valueOf(old + 1), map.compute(key, increment));
+		assertEquals(Long.valueOf(1L), map.compute(new TestKey((long) -base, "fresh"), increment));
+		assertEquals(size + 1, map.size());
+		assertTrue(map.root.consistency());
+		
+		BiFunction<TestKey, Long, Long> delete = new BiFunction<TestKey, Long, Long>() {
+			public Long apply(TestKey k, Long v) {
+				return null;
+			}
+		};
+		assertEquals(null, map.compute(new TestKey((long) -base, "fresh"), delete));
+		assertEquals(null, map.getMap((long) -base));
+		assertEquals(null, map.computeIfPresent(new TestKey((long) -base, "fresh"), increment));
+		assertEquals(size, map.size());
+		
+		//drain a whole bucket through computeIfPresent
+		for(String name : new ArrayList<String>(expMap.remove(key.timestamp).keySet())) {
+			map.computeIfPresent(new TestKey(key.timestamp, name), delete);
+		}
+		assertEquals(null, map.getMap(key.timestamp));
+		assertEquals(exceptSize(), map.size());
+		assertTrue(map.root.consistency());
+	}
+
+	@Test
+	public void testComputeIfAbsent() {
+		TestKey key = randomMyKey();
+		Long old = expMap.get(key.timestamp).get(key.secondKey);
+		int size = map.size();
+		Function<TestKey, Long> constant = new Function<TestKey, Long>() {
+			public Long apply(TestKey k) {
+				return -1L;
+			}
+		};
+		assertEquals(old, map.computeIfAbsent(key, constant));
+		assertEquals(Long.valueOf(-1L), map.computeIfAbsent(new TestKey((long) -base, "fresh"), constant));
+		assertEquals(size + 1, map.size());
+	}
+
+	@Test
+	public void testMerge() {
+		BiFunction<Long, Long, Long> sum = new BiFunction<Long, Long, Long>() {
+			public Long apply(Long a, Long b) {
+				return a + b;
+			}
+		};
+		int size = map.size();
+		TestKey counter = new TestKey((long) -base, "counter");
+		for (int i = 0; i < 10; i++) {
+			map.merge(counter, 1L, sum);
+		}
+		assertEquals(Long.valueOf(10L), map.get(counter));
+		assertEquals(size + 1, map.size());
+
+		TestKey absent = new TestKey((long) -base, "absent");
+		try {
+			map.merge(absent, null, sum);
+			assertTrue(false);
+		} catch (NullPointerException e) {
+		}
+		try {
+			map.merge(counter, 1L, null);
+			assertTrue(false);
+		} catch (NullPointerException e) {
+		}
+		assertEquals(null, map.get(absent));
+		assertEquals(Long.valueOf(10L), map.get(counter));
+	}
+
+	@Test
+	public void testGetAll() {
+		testRemove();
+		List<TestKey> keys = new ArrayList<TestKey>();
+		for(int i=0; i<50; i++) {
+			keys.add(randomMyKey());
+		}
+		keys.add(new TestKey((long) -base, "missing"));
+		keys.add(new TestKey(Long.MAX_VALUE, "missing"));
+		List<Long> all = map.getAll(keys);
+		assertEquals(keys.size(), all.size());
+		for(int i=0; i<keys.size(); i++) {
+			assertEquals(map.get(keys.get(i)), all.get(i));
+		}
+		assertEquals(null, all.get(keys.size() - 1));
+	}
+
+	@Test
+	public void testQueryRanges() {
+		testRemove();
+		List<RedBlackHashTreeRange> ranges = new ArrayList<RedBlackHashTreeRange>();
+		for(int i=0; i<30; i++) {
+			Long start = randomMyKey().timestamp + (random.nextBoolean() ? 0 : 1);
+			Long end = start + random.nextInt(20) * base;
+			ranges.add(new RedBlackHashTreeRange(start, random.nextBoolean(), end, random.nextBoolean()));
+		}
+		ranges.add(new RedBlackHashTreeRange(null, true, (long) 10 * base, true));
+		ranges.add(new RedBlackHashTreeRange((long) 10 * base, false, null, true));
+		List<List<RedBlackHashTree<TestKey, Long>>> result = map.queryRanges(ranges);
+		assertEquals(ranges.size(), result.size());
+		for(int i=0; i<ranges.size(); i++) {
+			RedBlackHashTreeRange range = ranges.get(i);
+			Map<Long, Map<String, Long>> exp = new TreeMap<Long, Map<String, Long>>();
+			for(Entry<Long, Map<String, Long>> entry : expMap.entrySet()) {
+				if(range.contains(entry.getKey()))
+					exp.put(entry.getKey(), entry.getValue());
+			}
+			List<RedBlackHashTree<TestKey, Long>> act = result.get(i);
+			assertEquals(exp.size(), act.size());
+			int j = 0;
+			for(Entry<Long, Map<String, Long>> entry : exp.entrySet()) {
+				assertEquals(entry.getKey(), act.get(j).getCompareObj());
+				assertMapEquals(entry.getValue(), act.get(j).value());
+				j++;
+			}
+		}
+	}
+
+	@Test
+	public void testBulkReadsUnderLru() {
+		map.setMaxSize(map.size(), RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		Long first = expMap.firstKey();
+		Long second = expMap.higherKey(first);
+		List<TestKey> read = new ArrayList<TestKey>();
+		for(String name : expMap.get(first).keySet()) {
+			read.add(new TestKey(first, name));
+		}
+		map.getAll(read);
+		List<RedBlackHashTreeRange> ranges = new ArrayList<RedBlackHashTreeRange>();
+		ranges.add(new RedBlackHashTreeRange(second, true, second, true));
+		map.queryRanges(ranges);
+		for(String name : expMap.get(second).keySet()) {
+			read.add(new TestKey(second, name));
+		}
+		// the entries just read are the most recently used, so others go first
+		for(int i=0; i<read.size(); i++) {
+			map.put(new TestKey(expMap.lastKey() + base, "new" + i), 1L);
+		}
+		for(TestKey key : read) {
+			assertTrue(map.get(key) != null);
+		}
+	}
+
+	@Test
+	public void testSubscribe() {
+		Long from = expMap.firstKey();
+		Long to = from + 3 * base;
+		Queue<RedBlackHashTreeEvent<TestKey, Long>> events = new LinkedList<RedBlackHashTreeEvent<TestKey, Long>>();
+		RedBlackHashTreeMap.Subscription<TestKey, Long> subscription = map.subscribe(new RedBlackHashTreeRange(from, true, to, true), events);
+		
+		TestKey inside = new TestKey(from + base, "inside");
+		map.put(inside, 1L);
+		map.put(inside, 2L);
+		map.put(new TestKey(to + base, "outside"), 1L);
+		map.remove(inside);
+		assertEquals(3, events.size());
+		RedBlackHashTreeEvent<TestKey, Long> event = events.poll();
+		assertEquals(RedBlackHashTreeEvent.Type.PUT, event.getType());
+		assertEquals(null, event.getOldValue());
+		event = events.poll();
+		assertEquals(Long.valueOf(1L), event.getOldValue());
+		assertEquals(Long.valueOf(2L), event.getNewValue());
+		event = events.poll();
+		assertEquals(RedBlackHashTreeEvent.Type.REMOVE, event.getType());
+		assertEquals(inside, event.getKey());
+		
+		int polled = map.firstNode().value().size();
+		map.pollFirstNode();
+		assertEquals(polled, events.size());
+		for(RedBlackHashTreeEvent<TestKey, Long> e : events) {
+			assertEquals(RedBlackHashTreeEvent.Type.EVICT, e.getType());
+			assertEquals(from, e.getCompareObj());
+		}
+		events.clear();
+		
+		subscription.cancel();
+		map.put(inside, 3L);
+		assertTrue(events.isEmpty());
+	}
+
+	@Test
+	public void testBucketCapacity() {
+		RedBlackHashTreeMap<TestKey, Long> bounded = new RedBlackHashTreeMap<TestKey, Long>();
+		bounded.setBucketCapacity(2, RedBlackHashTreeMap.BucketEvictionPolicy.OLDEST);
+		Queue<RedBlackHashTreeEvent<TestKey, Long>> events = new LinkedList<RedBlackHashTreeEvent<TestKey, Long>>();
+		bounded.subscribe(RedBlackHashTreeRange.all(), events);
+		bounded.put(new TestKey(1L, "a"), 1L);
+		bounded.put(new TestKey(1L, "b"), 2L);
+		bounded.put(new TestKey(1L, "a"), 3L);
+		bounded.put(new TestKey(1L, "c"), 4L);
+		assertEquals(2, bounded.size());
+		assertEquals(null, bounded.get(new TestKey(1L, "a")));
+		assertTrue(bounded.get(new TestKey(1L, "c")) != null);
+		RedBlackHashTreeEvent<TestKey, Long> evict = null;
+		for(RedBlackHashTreeEvent<TestKey, Long> e : events) {
+			if(e.getType() == RedBlackHashTreeEvent.Type.EVICT)
+				evict = e;
+		}
+		assertEquals(new TestKey(1L, "a"), evict.getKey());
+		assertEquals(Long.valueOf(3L), evict.getOldValue());
+
+		bounded = new RedBlackHashTreeMap<TestKey, Long>();
+		bounded.setBucketCapacity(2, RedBlackHashTreeMap.BucketEvictionPolicy.LRU);
+		bounded.put(new TestKey(1L, "a"), 1L);
+		bounded.put(new TestKey(1L, "b"), 2L);
+		bounded.get(new TestKey(1L, "a"));
+		bounded.put(new TestKey(1L, "c"), 3L);
+		assertEquals(2, bounded.size());
+		assertTrue(bounded.get(new TestKey(1L, "a")) != null);
+		assertEquals(null, bounded.get(new TestKey(1L, "b")));
+
+		bounded = new RedBlackHashTreeMap<TestKey, Long>();
+		bounded.setBucketCapacity(1, RedBlackHashTreeMap.BucketEvictionPolicy.REJECT);
+		bounded.put(new TestKey(1L, "a"), 1L);
+		bounded.put(new TestKey(1L, "a"), 2L);
+		try {
+			bounded.put(new TestKey(1L, "b"), 3L);
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		}
+		bounded.put(new TestKey(2L, "b"), 3L);
+		assertEquals(2, bounded.size());
+		assertEquals(Long.valueOf(2L), bounded.get(new TestKey(1L, "a")));
+		assertTrue(bounded.root.consistency());
+
+		// the new entry is in place while the eldest is evicted
+		final RedBlackHashTreeMap<TestKey, Long> single = new RedBlackHashTreeMap<TestKey, Long>();
+		single.setBucketCapacity(1, RedBlackHashTreeMap.BucketEvictionPolicy.OLDEST);
+		final List<Comparable> seen = new ArrayList<Comparable>();
+		single.setEvictionListener(new RedBlackHashTreeListener<TestKey, Long>() {
+			public void onEvent(RedBlackHashTreeEvent<TestKey, Long> event) {
+				seen.add(single.ceilingNode(event.getCompareObj()).getCompareObj());
+				assertEquals(Long.valueOf(2L), single.get(new TestKey(1L, "b")));
+			}
+		});
+		single.put(new TestKey(1L, "a"), 1L);
+		single.put(new TestKey(1L, "b"), 2L);
+		assertEquals(1, seen.size());
+		assertEquals(Long.valueOf(1L), seen.get(0));
+		assertEquals(1, single.size());
+		assertTrue(single.root.consistency());
+	}
+
+	@Test
+	public void testMaxSize() {
+		final List<RedBlackHashTreeEvent<TestKey, Long>> evicted = new ArrayList<RedBlackHashTreeEvent<TestKey, Long>>();
+		RedBlackHashTreeListener<TestKey, Long> listener = new RedBlackHashTreeListener<TestKey, Long>() {
+			public void onEvent(RedBlackHashTreeEvent<TestKey, Long> event) {
+				evicted.add(event);
+			}
+		};
+		RedBlackHashTreeMap<TestKey, Long> bounded = new RedBlackHashTreeMap<TestKey, Long>();
+		bounded.setMaxSize(100, RedBlackHashTreeMap.SizeEvictionPolicy.OLDEST_COMPARABLE);
+		bounded.setEvictionListener(listener);
+		for(long i=0; i<200; i++) {
+			bounded.put(new TestKey(i / 2, "Name" + (i % 2)), i);
+		}
+		assertEquals(100, bounded.size());
+		assertEquals(100, evicted.size());
+		assertEquals(Long.valueOf(50L), bounded.firstNode().getCompareObj());
+		assertEquals(Long.valueOf(0L), evicted.get(0).getCompareObj());
+		assertTrue(bounded.root.consistency());
+
+		evicted.clear();
+		bounded = new RedBlackHashTreeMap<TestKey, Long>();
+		bounded.setMaxSize(3, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		bounded.setEvictionListener(listener);
+		bounded.put(new TestKey(3L, "a"), 1L);
+		bounded.put(new TestKey(2L, "b"), 2L);
+		bounded.put(new TestKey(1L, "c"), 3L);
+		bounded.get(new TestKey(3L, "a"));
+		bounded.put(new TestKey(4L, "d"), 4L);
+		assertEquals(3, bounded.size());
+		assertEquals(1, evicted.size());
+		assertEquals(new TestKey(2L, "b"), evicted.get(0).getKey());
+		assertEquals(Long.valueOf(2L), evicted.get(0).getOldValue());
+		assertEquals(null, bounded.getMap(2L));
+
+		// equal keys of different buckets are different entries
+		RedBlackHashTreeMap<TestKey, Long> shared = new RedBlackHashTreeMap<TestKey, Long>();
+		shared.setMaxSize(2, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		shared.put(new TestKey(1L, "a"), 1L);
+		shared.put(new TestKey(2L, "a"), 2L);
+		shared.get(new TestKey(1L, "a"));
+		shared.put(new TestKey(3L, "a"), 3L);
+		assertEquals(null, shared.getMap(2L));
+		assertEquals(Long.valueOf(1L), shared.get(new TestKey(1L, "a")));
+		shared.remove(new TestKey(1L, "a"));
+		shared.put(new TestKey(4L, "a"), 4L);
+		shared.put(new TestKey(5L, "a"), 5L);
+		assertEquals(null, shared.getMap(3L));
+		assertEquals(2, shared.size());
+
+		testRemove();
+		int max = map.size() / 2;
+		map.setMaxSize(max, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		assertEquals(max, map.size());
+		for(int i=0; i<count; i++) {
+			TestKey key = randomMyKey();
+			if(random.nextBoolean())
+				map.put(key, (long) i);
+			else
+				map.remove(key);
+			assertTrue(map.size() <= max);
+		}
+		assertTrue(map.root.consistency());
+	}
+
+	@Test
+	public void testCompaction() {
+		RedBlackHashTreeMap<TestKey, Long> series = new RedBlackHashTreeMap<TestKey, Long>();
+		for(long ts=0; ts<1000; ts++) {
+			for(int n=0; n<4; n++) {
+				series.put(new TestKey(ts, "Name" + n), 1L);
+			}
+		}
+		RedBlackHashTreeCompaction<TestKey, Long> compaction = series.compaction(new RedBlackHashTreeRange(0L, 500L),
+			new Function<Comparable, Comparable>() {
+				public Comparable apply(Comparable c) {
+					return (Long) c / 100 * 100;
+				}
+			},
+			new BiFunction<TestKey, Comparable, TestKey>() {
+				public TestKey apply(TestKey key, Comparable coarse) {
+					return new TestKey((Long) coarse, key.secondKey);
+				}
+			},
+			new BiFunction<Long, Long, Long>() {
+				public Long apply(Long a, Long b) {
+					return a + b;
+				}
+			});
+		int slices = 0;
+		while(compaction.runSlice(7) > 0) {
+			slices++;
+			assertTrue(series.root.consistency());
+		}
+		assertTrue(compaction.isDone());
+		assertTrue(slices > 1);
+		assertEquals(495, compaction.getBucketsCompacted());
+		assertEquals(5 * 4 + 500 * 4, series.size());
+		for(long ts=0; ts<500; ts += 100) {
+			Map<TestKey, Long> bucket = series.getMap(ts);
+			assertEquals(4, bucket.size());
+			assertEquals(Long.valueOf(100L), bucket.get(new TestKey(ts, "Name0")));
+			assertEquals(null, series.getMap(ts + 1));
+		}
+		assertEquals(Long.valueOf(500L), series.higherNode(400L).getCompareObj());
+		assertEquals(4, series.getMap(500L).size());
+	}
+
+	@Test
+	public void testCompactionIntoFullBucket() {
+		RedBlackHashTreeMap<TestKey, Long> series = new RedBlackHashTreeMap<TestKey, Long>();
+		series.setBucketCapacity(4, RedBlackHashTreeMap.BucketEvictionPolicy.REJECT);
+		for(long ts=0; ts<10; ts++) {
+			for(int n=0; n<4; n++) {
+				series.put(new TestKey(ts, "Name" + n), ts);
+			}
+		}
+		RedBlackHashTreeCompaction<TestKey, Long> compaction = series.compaction(RedBlackHashTreeRange.all(),
+			new Function<Comparable, Comparable>() {
+				public Comparable apply(Comparable c) {
+					return (Long) c / 10 * 10;
+				}
+			},
+			new BiFunction<TestKey, Comparable, TestKey>() {
+				public TestKey apply(TestKey key, Comparable coarse) {
+					return new TestKey((Long) coarse, key.secondKey + "@" + key.timestamp);
+				}
+			},
+			new BiFunction<Long, Long, Long>() {
+				public Long apply(Long a, Long b) {
+					return a + b;
+				}
+			});
+		try {
+			compaction.runSlice(3);
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		}
+		// the rejected entries stay in their bucket
+		assertEquals(40, series.size());
+		assertEquals(4, series.getMap(1L).size());
+		assertEquals(0, compaction.getEntriesMoved());
+		assertTrue(series.root.consistency());
+
+		series.setBucketCapacity(0, RedBlackHashTreeMap.BucketEvictionPolicy.REJECT);
+		compaction.runAll();
+		assertEquals(9, compaction.getBucketsCompacted());
+		assertEquals(36, compaction.getEntriesMoved());
+		assertEquals(40, series.size());
+		assertEquals(40, series.getMap(0L).size());
+		assertEquals(Long.valueOf(9L), series.getMap(0L).get(new TestKey(0L, "Name3@9")));
+		assertTrue(series.root.consistency());
+	}
+
+	@Test
+	public void testWindows() {
+		RedBlackHashTreeMap<TestKey, Long> series = new RedBlackHashTreeMap<TestKey, Long>();
+		TreeMap<Long, Long> sums = new TreeMap<Long, Long>();
+		for(int i=0; i<600; i++) {
+			long ts = random.nextInt(1000) + (i < 300 ? 0 : 1500);
+			long value = random.nextInt(100);
+			if(series.put(new TestKey(ts, "Name" + (i % 3)), value) == null) {
+				sums.put(ts, (sums.containsKey(ts) ? sums.get(ts) : 0) + value);
+			} else {
+				sums.put(ts, 0L);
+				for(Long v : series.getMap(ts).values())
+					sums.put(ts, sums.get(ts) + v);
+			}
+		}
+		long[][] shapes = { { 100, 100 }, { 100, 30 }, { 7, 1 } };
+		for(long[] shape : shapes) {
+			long size = shape[0], slide = shape[1];
+			Iterator<RedBlackHashTreeWindows.Window<Long>> windows = series.windows(new RedBlackHashTreeRange(50L, 2200L), size, slide,
+				Collectors.summingLong(new ToLongFunction<Long>() {
+					public long applyAsLong(Long value) {
+						return value;
+					}
+				}));
+			long expStart = Math.floorDiv(50 - size, slide) + 1;
+			while(true) {
+				long expSum = 0;
+				boolean any = false;
+				for(; expStart * slide < 2200; expStart++) {
+					long start = expStart * slide;
+					for(Long ts : sums.subMap(Math.max(start, 50), Math.min(start + size, 2200)).keySet()) {
+						expSum += sums.get(ts);
+						any = true;
+					}
+					if(any)
+						break;
+				}
+				if(!any)
+					break;
+				RedBlackHashTreeWindows.Window<Long> window = windows.next();
+				assertEquals(expStart * slide, window.getStart());
+				assertEquals(expStart * slide + size, window.getEnd());
+				assertEquals(Long.valueOf(expSum), window.getValue());
+				expStart++;
+			}
+			assertFalse(windows.hasNext());
+		}
+	}
+
+	private void assertRangeEquals(SortedMap<Long, Map<String, Long>> exp, RedBlackHashTreeMap<TestKey, Long> act) {
+		int size = 0;
+		for(Entry<Long, Map<String, Long>> entry : exp.entrySet()) {
+			assertMapEquals(entry.getValue(), act.getMap(entry.getKey()));
+			size += entry.getValue().size();
+		}
+		assertEquals(size, act.size());
+		if(act.isEmpty()) {
+			assertTrue(exp.isEmpty());
+		} else {
+			assertTrue(act.root.consistency());
+			assertEquals(exp.firstKey(), act.firstNode().getCompareObj());
+			assertEquals(exp.lastKey(), act.lastNode().getCompareObj());
+		}
+	}
+
+	@Test
+	public void testSplitAndJoin() {
+		testRemove();
+		Long[] cuts = { expMap.firstKey(), expMap.lastKey(), expMap.lastKey() + 1, (long) -base,
+				randomMyKey().timestamp, randomMyKey().timestamp + 1, randomMyKey().timestamp };
+		for(Long cut : cuts) {
+			RedBlackHashTreeMap.SplitResult<TestKey, Long> split = map.splitAt(cut);
+			assertTrue(map.isEmpty());
+			assertEquals(0, map.size());
+			assertRangeEquals(expMap.headMap(cut), split.getLeft());
+			assertRangeEquals(expMap.tailMap(cut), split.getRight());
+			assertTrue(split.getLeft().root.consistency());
+			assertTrue(split.getRight().root.consistency());
+			map = RedBlackHashTreeMap.join(split.getLeft(), split.getRight());
+			assertTrue(split.getLeft().isEmpty());
+			assertRangeEquals(expMap, map);
+			assertTrue(map.root.consistency());
+		}
+
+		RedBlackHashTreeMap<TestKey, Long> low = new RedBlackHashTreeMap<TestKey, Long>();
+		low.put(new TestKey((long) -base, "low"), 1L);
+		map = RedBlackHashTreeMap.join(low, map);
+		assertEquals(Long.valueOf(1L), map.get(new TestKey((long) -base, "low")));
+		assertTrue(map.root.consistency());
+		RedBlackHashTreeMap.SplitResult<TestKey, Long> split = map.splitAt(expMap.firstKey());
+		try {
+			RedBlackHashTreeMap.join(split.getRight(), split.getLeft());
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testSplitAndJoinKeepSettings() {
+		final List<RedBlackHashTreeEvent<TestKey, Long>> evicted = new ArrayList<RedBlackHashTreeEvent<TestKey, Long>>();
+		RedBlackHashTreeListener<TestKey, Long> listener = new RedBlackHashTreeListener<TestKey, Long>() {
+			public void onEvent(RedBlackHashTreeEvent<TestKey, Long> event) {
+				evicted.add(event);
+			}
+		};
+		RedBlackHashTreeMap<TestKey, Long> bounded = new RedBlackHashTreeMap<TestKey, Long>();
+		bounded.setBucketCapacity(4, RedBlackHashTreeMap.BucketEvictionPolicy.REJECT);
+		bounded.setMaxSize(10, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		bounded.setEvictionListener(listener);
+		Queue<RedBlackHashTreeEvent<TestKey, Long>> events = new LinkedList<RedBlackHashTreeEvent<TestKey, Long>>();
+		bounded.subscribe(RedBlackHashTreeRange.all(), events);
+		for(long i=0; i<10; i++) {
+			bounded.put(new TestKey(i, "a"), i);
+		}
+		// 0 and 5 are now the most recently used of their halves
+		bounded.get(new TestKey(0L, "a"));
+		bounded.get(new TestKey(5L, "a"));
+		events.clear();
+
+		RedBlackHashTreeMap.SplitResult<TestKey, Long> split = bounded.splitAt(5L);
+		RedBlackHashTreeMap<TestKey, Long> upper = split.getRight();
+		assertEquals(4, upper.getBucketCapacity());
+		assertEquals(RedBlackHashTreeMap.BucketEvictionPolicy.REJECT, upper.getBucketEvictionPolicy());
+		assertEquals(10, upper.getMaxSize());
+		assertEquals(RedBlackHashTreeMap.SizeEvictionPolicy.LRU, upper.getSizeEvictionPolicy());
+		for(long i=10; i<16; i++) {
+			upper.put(new TestKey(i, "a"), i);
+		}
+		// the eldest entry of the half goes, and the listener is told
+		assertEquals(1, evicted.size());
+		assertEquals(new TestKey(6L, "a"), evicted.get(0).getKey());
+		assertEquals(Long.valueOf(5L), upper.get(new TestKey(5L, "a")));
+		// subscriptions stay with the emptied map
+		assertTrue(events.isEmpty());
+
+		RedBlackHashTreeMap<TestKey, Long> joined = RedBlackHashTreeMap.join(split.getLeft(), upper);
+		assertEquals(10, joined.getMaxSize());
+		assertEquals(10, joined.size());
+		assertEquals(6, evicted.size());
+		// the left half counts as used before the right
+		assertEquals(new TestKey(1L, "a"), evicted.get(1).getKey());
+		assertEquals(new TestKey(0L, "a"), evicted.get(5).getKey());
+		assertTrue(joined.root.consistency());
+		try {
+			joined.put(new TestKey(5L, "e"), 0L);
+			joined.put(new TestKey(5L, "f"), 0L);
+			joined.put(new TestKey(5L, "g"), 0L);
+			joined.put(new TestKey(5L, "h"), 0L);
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(events.isEmpty());
+	}
+
+	private TreeMap<Long, Map<String, Long>> copyExpected() {
+		TreeMap<Long, Map<String, Long>> copy = new TreeMap<Long, Map<String, Long>>();
+		for(Entry<Long, Map<String, Long>> entry : expMap.entrySet()) {
+			copy.put(entry.getKey(), new HashMap<String, Long>(entry.getValue()));
+		}
+		return copy;
+	}
+
+	@Test
+	public void testChangeTracker() {
+		RedBlackHashTreeChangeTracker<TestKey, Long> tracker = new RedBlackHashTreeChangeTracker<TestKey, Long>(map);
+		long[] versions = new long[3];
+		List<TreeMap<Long, Map<String, Long>>> snapshots = new ArrayList<TreeMap<Long, Map<String, Long>>>();
+		for(int round=0; round<3; round++) {
+			versions[round] = tracker.getVersion();
+			snapshots.add(copyExpected());
+			for(int i=0; i<200; i++) {
+				if(random.nextBoolean()) {
+					TestKey key = randomMyKey();
+					assertEquals(removeExcepted(key), map.remove(key));
+				} else {
+					TestKey key = new TestKey((long) random.nextInt(count) * tsStep, "Name" + random.nextInt(8));
+					map.put(key, (long) i);
+					if(!expMap.containsKey(key.timestamp))
+						expMap.put(key.timestamp, new HashMap<String, Long>());
+					expMap.get(key.timestamp).put(key.secondKey, (long) i);
+				}
+			}
+			Long first = expMap.firstKey();
+			map.pollFirstNode();
+			expMap.remove(first);
+		}
+		for(int round=0; round<3; round++) {
+			TreeMap<Long, Map<String, Long>> replica = snapshots.get(round);
+			for(RedBlackHashTreeChangeTracker.Change<TestKey, Long> change : tracker.diff(versions[round])) {
+				Long ts = (Long) change.getCompareObj();
+				Map<String, Long> bucket = replica.get(ts);
+				boolean present = bucket != null && bucket.containsKey(change.getKey().secondKey);
+				switch(change.getType()) {
+				case INSERT:
+					assertFalse(present);
+					if(bucket == null)
+						replica.put(ts, bucket = new HashMap<String, Long>());
+					bucket.put(change.getKey().secondKey, change.getValue());
+					break;
+				case UPDATE:
+					assertTrue(present);
+					bucket.put(change.getKey().secondKey, change.getValue());
+					break;
+				default:
+					assertTrue(present);
+					bucket.remove(change.getKey().secondKey);
+					if(bucket.isEmpty())
+						replica.remove(ts);
+				}
+			}
+			assertEquals(expMap, replica);
+		}
+		tracker.discardBefore(versions[1]);
+		assertTrue(tracker.diff(tracker.getVersion()).isEmpty());
+		try {
+			tracker.diff(versions[0]);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+		}
+		tracker.close();
+		long version = tracker.getVersion();
+		map.put(randomMyKey(), 1L);
+		assertEquals(version, tracker.getVersion());
+
+		// an overwritten null value existed, both in a bucket and alone
+		tracker = new RedBlackHashTreeChangeTracker<TestKey, Long>(map);
+		map.put(new TestKey(-1L, "Null"), null);
+		map.put(new TestKey(-1L, "Other"), 1L);
+		map.put(new TestKey(-2L, "Null"), null);
+		version = tracker.getVersion();
+		map.put(new TestKey(-1L, "Null"), 2L);
+		map.put(new TestKey(-2L, "Null"), 3L);
+		List<RedBlackHashTreeChangeTracker.Change<TestKey, Long>> changes = tracker.diff(version);
+		assertEquals(2, changes.size());
+		for(RedBlackHashTreeChangeTracker.Change<TestKey, Long> change : changes)
+			assertEquals(RedBlackHashTreeChangeTracker.ChangeType.UPDATE, change.getType());
+		tracker.close();
+	}
+
+	@Test
+	public void testParallelBulk() {
+		testRemove();
+		long expSum = 0;
+		for(Map<String, Long> bucket : expMap.values())
+			for(Long value : bucket.values())
+				expSum += value;
+		final AtomicLong sum = new AtomicLong();
+		map.parallelForEach(new BiConsumer<TestKey, Long>() {
+			public void accept(TestKey key, Long value) {
+				sum.addAndGet(value);
+			}
+		});
+		assertEquals(expSum, sum.get());
+		assertEquals(Long.valueOf(expSum), map.parallelReduce(new BiFunction<TestKey, Long, Long>() {
+			public Long apply(TestKey key, Long value) {
+				return value;
+			}
+		}, new BinaryOperator<Long>() {
+			public Long apply(Long a, Long b) {
+				return a + b;
+			}
+		}));
+		// the reducer must see its operands in ascending order
+		long[] span = map.parallelReduce(new BiFunction<TestKey, Long, long[]>() {
+			public long[] apply(TestKey key, Long value) {
+				return new long[] { key.timestamp, key.timestamp };
+			}
+		}, new BinaryOperator<long[]>() {
+			public long[] apply(long[] a, long[] b) {
+				assertTrue(a[1] <= b[0]);
+				return new long[] { a[0], b[1] };
+			}
+		});
+		assertEquals(expMap.firstKey().longValue(), span[0]);
+		assertEquals(expMap.lastKey().longValue(), span[1]);
+
+		map.parallelReplaceAll(new BiFunction<TestKey, Long, Long>() {
+			public Long apply(TestKey key, Long value) {
+				return value * 2;
+			}
+		});
+		for(Map<String, Long> bucket : expMap.values())
+			for(Entry<String, Long> entry : bucket.entrySet())
+				entry.setValue(entry.getValue() * 2);
+		assertRangeEquals(expMap, map);
+
+		Queue<RedBlackHashTreeEvent<TestKey, Long>> events = new LinkedList<RedBlackHashTreeEvent<TestKey, Long>>();
+		map.subscribe(RedBlackHashTreeRange.all(), events);
+		int expRemoved = 0;
+		for(Iterator<Entry<Long, Map<String, Long>>> it = expMap.entrySet().iterator(); it.hasNext();) {
+			Entry<Long, Map<String, Long>> bucket = it.next();
+			for(Iterator<Long> values = bucket.getValue().values().iterator(); values.hasNext();) {
+				Long value = values.next();
+				if(bucket.getKey() % (base * 3) == 0 || value % 3 == 0) {
+					values.remove();
+					expRemoved++;
+				}
+			}
+			if(bucket.getValue().isEmpty())
+				it.remove();
+		}
+		int removed = map.parallelRemoveIf(new BiPredicate<TestKey, Long>() {
+			public boolean test(TestKey key, Long value) {
+				return key.timestamp % (base * 3) == 0 || value % 3 == 0;
+			}
+		});
+		assertEquals(expRemoved, removed);
+		assertEquals(expRemoved, events.size());
+		assertRangeEquals(expMap, map);
+		map.put(new TestKey((long) base, "Name"), 1L);
+		assertTrue(map.root.consistency());
+
+		map.parallelRemoveIf(new BiPredicate<TestKey, Long>() {
+			public boolean test(TestKey key, Long value) {
+				return true;
+			}
+		});
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void testParallelRemoveIfThrows() {
+		RedBlackHashTreeMap<TestKey, Long> map = new RedBlackHashTreeMap<TestKey, Long>();
+		int total = 0;
+		for(long ts=0; ts<2000; ts++) {
+			for(long v=0; v<4; v++) {
+				map.put(new TestKey(ts, "Name" + v), ts * 4 + v);
+				total++;
+			}
+		}
+		map.setMaxSize(total, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		Queue<RedBlackHashTreeEvent<TestKey, Long>> events = new LinkedList<RedBlackHashTreeEvent<TestKey, Long>>();
+		map.subscribe(RedBlackHashTreeRange.all(), events);
+		final IllegalStateException failure = new IllegalStateException();
+		try {
+			map.parallelRemoveIf(new BiPredicate<TestKey, Long>() {
+				public boolean test(TestKey key, Long value) {
+					if(key.timestamp == 1000)
+						throw failure;
+					// empties every other bucket and thins the rest
+					return key.timestamp % 2 == 0 || value % 2 == 0;
+				}
+			});
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		}
+		// what was removed before the failure stays removed and is settled
+		assertTrue(map.root.consistency());
+		int live = 0;
+		for(RedBlackHashTree<TestKey, Long> p = map.firstNode(); map.nodeIsValid(p); p = map.successor(p)) {
+			live += p.value().size();
+		}
+		assertTrue(live < total);
+		assertEquals(live, map.size());
+		assertEquals(total - live, events.size());
+		Long last = null;
+		for(RedBlackHashTreeEvent<TestKey, Long> event : events) {
+			assertEquals(RedBlackHashTreeEvent.Type.REMOVE, event.getType());
+			assertEquals(null, map.get(event.getKey()));
+			Long ts = (Long) event.getCompareObj();
+			assertTrue(last == null || last <= ts);
+			last = ts;
+		}
+		// the access order forgot the removed entries
+		map.setMaxSize(live / 2, RedBlackHashTreeMap.SizeEvictionPolicy.LRU);
+		assertEquals(live / 2, map.size());
+		assertTrue(map.root.consistency());
+	}
+
+	@Test
+	public void testStats() throws Exception {
+		RedBlackHashTreeStats stats = RedBlackHashTreeStats.enable();
+		try {
+			stats.reset();
+			stats.registerMBean();
+			int nodes = expMap.size();
+			int puts = 500;
+			for(int i=1; i<=puts; i++) {
+				Long ts = (long) -i * base;
+				Map<String, Long> nameMap = new HashMap<String, Long>();
+				nameMap.put("Stats", (long) i);
+				expMap.put(ts, nameMap);
+				map.put(new TestKey(ts, "Stats"), (long) i);
+			}
+			testRemove();
+			for(int i=0; i<20; i++) {
+				map.get(randomMyKey());
+			}
+			map.pollFirstNode();
+			assertTrue(stats.getRotateLeftCount() + stats.getRotateRightCount() > 0);
+			assertTrue(stats.getRedFixupCount() > 0);
+			assertEquals(puts, stats.getPutCount());
+			assertEquals(20, stats.getGetCount());
+			assertTrue(stats.getRemoveCount() > 0);
+			assertEquals(expMap.size() - 1 - nodes, stats.getNodesCreated() - stats.getNodesFreed());
+			assertTrue(stats.getDescentMax() >= 1);
+			assertTrue(stats.getBucketSizeMean() >= 1);
+
+			// probe lookups are timed like the key ones
+			long removes = stats.getRemoveCount();
+			TestKey key = map.firstNode().value().keySet().iterator().next();
+			NameProbe probe = new NameProbe();
+			probe.name = key.secondKey;
+			assertTrue(map.get(key.timestamp, probe) != null);
+			assertTrue(map.get(key.timestamp.longValue(), probe) != null);
+			assertTrue(map.remove(key.timestamp, probe) != null);
+			assertEquals(22, stats.getGetCount());
+			assertEquals(removes + 1, stats.getRemoveCount());
+		} finally {
+			RedBlackHashTreeStats.disable();
+			stats.unregisterMBean();
+		}
+	}
+
+	@Test
+	public void testFlightEvents() throws Exception {
+		Recording recording = new Recording();
+		recording.enable("cn.wensiqun.commons.structure.Operation").withThreshold(Duration.ZERO);
+		recording.enable("cn.wensiqun.commons.structure.Scan").withThreshold(Duration.ZERO);
+		recording.enable("cn.wensiqun.commons.structure.Eviction").withThreshold(Duration.ZERO);
+		recording.start();
+		map.put(new TestKey(0L, "jfr"), 1L);
+		int size = map.size();
+		Iterator<RedBlackHashTree<TestKey, Long>> iter = map.subIterator(expMap.firstKey(), true, expMap.lastKey(), true);
+		while(iter.hasNext()) {
+			iter.next();
+		}
+		map.pollFirstNode();
+		int trimmed = map.size() - 3;
+		map.setMaxSize(trimmed, RedBlackHashTreeMap.SizeEvictionPolicy.OLDEST_COMPARABLE);
+		recording.stop();
+		Path file = Files.createTempFile("rbht", ".jfr");
+		try {
+			recording.dump(file);
+			Map<String, RecordedEvent> events = new HashMap<String, RecordedEvent>();
+			List<RecordedEvent> evictions = new ArrayList<RecordedEvent>();
+			for(RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				events.put(event.getEventType().getName(), event);
+				if(event.getEventType().getName().equals("cn.wensiqun.commons.structure.Eviction")) {
+					evictions.add(event);
+				}
+			}
+			RecordedEvent put = events.get("cn.wensiqun.commons.structure.Operation");
+			assertEquals("put", put.getString("operation"));
+			assertEquals(size, put.getInt("treeSize"));
+			assertTrue(put.getInt("descent") >= 1);
+			RecordedEvent scan = events.get("cn.wensiqun.commons.structure.Scan");
+			assertEquals(expMap.size(), scan.getLong("nodes"));
+			assertEquals(size, scan.getLong("entries"));
+			assertEquals(2, evictions.size());
+			RecordedEvent eviction = evictions.get(0);
+			assertEquals("first", eviction.getString("end"));
+			assertEquals(expMap.firstEntry().getValue().size() + 1, eviction.getInt("entries"));
+			assertTrue(eviction.getInt("descent") >= 1);
+			RecordedEvent trim = evictions.get(1);
+			assertEquals("size", trim.getString("end"));
+			assertEquals(3, trim.getInt("entries"));
+			assertEquals(trimmed, trim.getInt("treeSize"));
+		} finally {
+			recording.close();
+			Files.delete(file);
+		}
+	}
+
 	public static class TestKey implements RedBlackHashTreeComparable<Long> {
 
 		private Long timestamp;
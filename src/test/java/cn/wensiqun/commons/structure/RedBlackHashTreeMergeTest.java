@@ -0,0 +1,76 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class RedBlackHashTreeMergeTest {
+
+	private Random random = new Random();
+
+	private RedBlackHashTreeMap<TestKey, Long> randomMap(int buckets, int bound, TreeSet<Long> compareObjs) {
+		RedBlackHashTreeMap<TestKey, Long> map = new RedBlackHashTreeMap<TestKey, Long>();
+		for(int i=0; i<buckets; i++) {
+			long ts = random.nextInt(bound);
+			map.put(new TestKey(ts, "Name" + (i % 3)), ts);
+			compareObjs.add(ts);
+		}
+		return map;
+	}
+
+	@Test
+	public void testJoin() {
+		TreeSet<Long> leftKeys = new TreeSet<Long>();
+		TreeSet<Long> rightKeys = new TreeSet<Long>();
+		RedBlackHashTreeMap<TestKey, Long> left = randomMap(500, 2000, leftKeys);
+		RedBlackHashTreeMap<TestKey, Long> right = randomMap(300, 4000, rightKeys);
+		RedBlackHashTreeRange range = new RedBlackHashTreeRange(100L, true, 1500L, true);
+		Iterator<RedBlackHashTreeMerge.JoinedBuckets<TestKey, Long, TestKey, Long>> join = RedBlackHashTreeMerge.join(left, right, range);
+		for(Long ts : leftKeys.subSet(100L, true, 1500L, true)) {
+			if(!rightKeys.contains(ts))
+				continue;
+			RedBlackHashTreeMerge.JoinedBuckets<TestKey, Long, TestKey, Long> pair = join.next();
+			assertEquals(ts, pair.getCompareObj());
+			assertEquals(left.getMap(ts), pair.getLeft().value());
+			assertEquals(right.getMap(ts), pair.getRight().value());
+		}
+		assertFalse(join.hasNext());
+		assertFalse(RedBlackHashTreeMerge.join(left, new RedBlackHashTreeMap<TestKey, Long>(), RedBlackHashTreeRange.all()).hasNext());
+	}
+
+	@Test
+	public void testMerge() {
+		List<RedBlackHashTreeMap<TestKey, Long>> maps = new ArrayList<RedBlackHashTreeMap<TestKey, Long>>();
+		List<TreeSet<Long>> keys = new ArrayList<TreeSet<Long>>();
+		for(int i=0; i<5; i++) {
+			keys.add(new TreeSet<Long>());
+			maps.add(randomMap(i * 100, 1000, keys.get(i)));
+		}
+		Iterator<RedBlackHashTreeMerge.SourcedBucket<TestKey, Long>> merged = RedBlackHashTreeMerge.merge(maps, RedBlackHashTreeRange.all());
+		long previous = -1;
+		int previousSource = -1;
+		int total = 0;
+		while(merged.hasNext()) {
+			RedBlackHashTreeMerge.SourcedBucket<TestKey, Long> bucket = merged.next();
+			long ts = (Long) bucket.getNode().getCompareObj();
+			assertEquals(true, ts > previous || (ts == previous && bucket.getSource() > previousSource));
+			assertEquals(true, keys.get(bucket.getSource()).contains(ts));
+			previous = ts;
+			previousSource = bucket.getSource();
+			total++;
+		}
+		int expected = 0;
+		for(TreeSet<Long> set : keys)
+			expected += set.size();
+		assertEquals(expected, total);
+	}
+}
@@ -0,0 +1,203 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class RedBlackHashTreePublisherTest {
+
+	private RedBlackHashTreeMap<TestKey, Long> map;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		map = new RedBlackHashTreeMap<TestKey, Long>();
+		for(int i=0; i<1000; i++) {
+			map.put(new TestKey((long) (i / 4), "Name" + (i % 4)), (long) i);
+		}
+		executor = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testEntryPublisher() throws InterruptedException {
+		CollectingSubscriber<Map.Entry<TestKey, Long>> subscriber = new CollectingSubscriber<Map.Entry<TestKey, Long>>(1, Long.MAX_VALUE);
+		map.entryPublisher(new RedBlackHashTreeRange(10L, true, 20L, false), executor).subscribe(subscriber);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(subscriber.completed);
+		assertEquals(40, subscriber.items.size());
+		long previous = -1;
+		for(Map.Entry<TestKey, Long> entry : subscriber.items) {
+			long ts = entry.getKey().getComparableObject();
+			assertTrue(ts >= 10 && ts < 20 && ts >= previous);
+			assertEquals(map.get(entry.getKey()), entry.getValue());
+			previous = ts;
+		}
+	}
+
+	@Test
+	public void testBucketPublisher() throws InterruptedException {
+		CollectingSubscriber<Map<TestKey, Long>> subscriber = new CollectingSubscriber<Map<TestKey, Long>>(3, Long.MAX_VALUE);
+		map.bucketPublisher(RedBlackHashTreeRange.all(), executor).subscribe(subscriber);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		assertTrue(subscriber.completed);
+		assertEquals(250, subscriber.items.size());
+		for(int i=0; i<250; i++) {
+			assertEquals(map.getMap((long) i), subscriber.items.get(i));
+		}
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		CollectingSubscriber<Map<TestKey, Long>> subscriber = new CollectingSubscriber<Map<TestKey, Long>>(1, 5);
+		map.bucketPublisher(RedBlackHashTreeRange.all(), executor).subscribe(subscriber);
+		assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(5, subscriber.items.size());
+		assertTrue(!subscriber.completed);
+	}
+
+	@Test
+	public void testInvalidRequestDuringDelivery() throws InterruptedException {
+		final List<Object> signals = new ArrayList<Object>();
+		final CountDownLatch finished = new CountDownLatch(1);
+		final AtomicBoolean delivering = new AtomicBoolean();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		map.bucketPublisher(RedBlackHashTreeRange.all(), executor).subscribe(new Flow.Subscriber<Map<TestKey, Long>>() {
+			private Flow.Subscription subscription;
+
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(2);
+			}
+
+			public void onNext(Map<TestKey, Long> item) {
+				delivering.set(true);
+				signals.add(item);
+				subscription.request(0);
+				delivering.set(false);
+			}
+
+			public void onError(Throwable throwable) {
+				// the error waits for the onNext in progress
+				overlapped.set(delivering.get());
+				signals.add(throwable);
+				finished.countDown();
+			}
+
+			public void onComplete() {
+				finished.countDown();
+			}
+		});
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertTrue(!overlapped.get());
+		assertEquals(2, signals.size());
+		assertTrue(signals.get(1) instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void testThrowingOnNextCancels() throws InterruptedException {
+		final AtomicInteger delivered = new AtomicInteger();
+		final AtomicBoolean terminated = new AtomicBoolean();
+		final Flow.Subscription[] subscription = new Flow.Subscription[1];
+		map.bucketPublisher(RedBlackHashTreeRange.all(), executor).subscribe(new Flow.Subscriber<Map<TestKey, Long>>() {
+			public void onSubscribe(Flow.Subscription s) {
+				subscription[0] = s;
+				s.request(10);
+			}
+
+			public void onNext(Map<TestKey, Long> item) {
+				delivered.incrementAndGet();
+				throw new IllegalStateException();
+			}
+
+			public void onError(Throwable throwable) {
+				terminated.set(true);
+			}
+
+			public void onComplete() {
+				terminated.set(true);
+			}
+		});
+		Thread.sleep(100);
+		subscription[0].request(10);
+		Thread.sleep(50);
+		assertEquals(1, delivered.get());
+		assertTrue(!terminated.get());
+	}
+
+	/**
+	 * Requests batch items at a time and cancels after limit items.
+	 */
+	private static class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+
+		private final int batch;
+
+		private final long limit;
+
+		private final List<T> items = new ArrayList<T>();
+
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		private Flow.Subscription subscription;
+
+		private int outstanding;
+
+		private volatile boolean completed;
+
+		CollectingSubscriber(int batch, long limit) {
+			this.batch = batch;
+			this.limit = limit;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			outstanding = batch;
+			subscription.request(batch);
+		}
+
+		public void onNext(T item) {
+			items.add(item);
+			if(items.size() == limit) {
+				subscription.cancel();
+				finished.countDown();
+				return;
+			}
+			if(--outstanding == 0) {
+				outstanding = batch;
+				subscription.request(batch);
+			}
+		}
+
+		public void onError(Throwable throwable) {
+			finished.countDown();
+		}
+
+		public void onComplete() {
+			completed = true;
+			finished.countDown();
+		}
+	}
+}
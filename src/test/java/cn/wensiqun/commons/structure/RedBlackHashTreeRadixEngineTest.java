@@ -0,0 +1,73 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class RedBlackHashTreeRadixEngineTest {
+
+	private Random random = new Random();
+
+	private long randomTimestamp() {
+		switch(random.nextInt(4)) {
+		case 0:
+			// anywhere, negatives included
+			return random.nextLong();
+		case 1:
+			// around zero
+			return random.nextInt(200) - 100;
+		case 2:
+			// at the ends of the range
+			return random.nextBoolean() ? Long.MIN_VALUE + random.nextInt(64) : Long.MAX_VALUE - random.nextInt(64);
+		default:
+			// a cluster sharing all but the lowest digits
+			return 1L << 40 | random.nextInt(1 << 14);
+		}
+	}
+
+	private Long randomProbe() {
+		return randomTimestamp() + random.nextInt(3) - 1;
+	}
+
+	@Test
+	public void testAgainstTreeMap() {
+		RedBlackHashTreeRadixEngine<TestKey, Long> engine = new RedBlackHashTreeRadixEngine<TestKey, Long>();
+		RedBlackHashTreeEngineOracle check = new RedBlackHashTreeEngineOracle(engine);
+		for(int round=0; round<50; round++) {
+			for(int i=0; i<200; i++) {
+				TestKey key = new TestKey(randomTimestamp(), "Name" + random.nextInt(3));
+				if(random.nextInt(4) == 0)
+					check.remove(key);
+				else
+					check.put(key, random.nextLong());
+			}
+			check.assertSame(randomProbe(), randomProbe(), Long.MIN_VALUE, Long.MAX_VALUE, 0L, -1L, randomProbe(), randomProbe());
+			check.pollFirstAndLast();
+			check.removeMap(randomTimestamp());
+			check.assertSame(Long.MAX_VALUE, Long.MIN_VALUE, randomProbe(), randomProbe());
+		}
+		check.clear();
+	}
+
+	@Test
+	public void testEnds() {
+		RedBlackHashTreeRadixEngine<TestKey, Long> engine = new RedBlackHashTreeRadixEngine<TestKey, Long>();
+		assertNull(engine.higherNode(Long.valueOf(0)));
+		engine.put(new TestKey(Long.MIN_VALUE, "Name"), 1L);
+		engine.put(new TestKey(Long.MAX_VALUE, "Name"), 2L);
+		assertNull(engine.lowerNode(Long.valueOf(Long.MIN_VALUE)));
+		assertNull(engine.higherNode(Long.valueOf(Long.MAX_VALUE)));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), engine.higherNode(Long.valueOf(Long.MIN_VALUE)).getCompareObj());
+		assertEquals(Long.valueOf(Long.MIN_VALUE), engine.lowerNode(Long.valueOf(Long.MAX_VALUE)).getCompareObj());
+		assertEquals(Long.valueOf(2), engine.remove(new TestKey(Long.MAX_VALUE, "Name")));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), engine.lastNode().getCompareObj());
+		engine.pollFirstNode();
+		assertEquals(0, engine.size());
+		assertNull(engine.firstNode());
+	}
+}
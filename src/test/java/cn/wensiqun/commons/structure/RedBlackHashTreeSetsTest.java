@@ -0,0 +1,205 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class RedBlackHashTreeSetsTest {
+
+	private static final BiFunction<Long, Long, Long> SUM = new BiFunction<Long, Long, Long>() {
+		public Long apply(Long a, Long b) {
+			return a + b;
+		}
+	};
+
+	private Random random = new Random();
+
+	private TreeMap<Long, Map<String, Long>> expA;
+
+	private TreeMap<Long, Map<String, Long>> expB;
+
+	private RedBlackHashTreeMap<TestKey, Long> a;
+
+	private RedBlackHashTreeMap<TestKey, Long> b;
+
+	private RedBlackHashTreeMap<TestKey, Long> fill(TreeMap<Long, Map<String, Long>> exp, int entries, int bound) {
+		RedBlackHashTreeMap<TestKey, Long> map = new RedBlackHashTreeMap<TestKey, Long>();
+		for(int i=0; i<entries; i++) {
+			long ts = random.nextInt(bound);
+			String name = "Name" + random.nextInt(4);
+			long value = random.nextInt(1000);
+			map.put(new TestKey(ts, name), value);
+			if(!exp.containsKey(ts))
+				exp.put(ts, new HashMap<String, Long>());
+			exp.get(ts).put(name, value);
+		}
+		return map;
+	}
+
+	private void setup(int entriesA, int entriesB) {
+		expA = new TreeMap<Long, Map<String, Long>>();
+		expB = new TreeMap<Long, Map<String, Long>>();
+		a = fill(expA, entriesA, 20000);
+		b = fill(expB, entriesB, 20000);
+	}
+
+	private void assertResult(TreeMap<Long, Map<String, Long>> exp, RedBlackHashTreeMap<TestKey, Long> act) {
+		int size = 0;
+		for(Iterator<Map<String, Long>> it = exp.values().iterator(); it.hasNext();) {
+			Map<String, Long> bucket = it.next();
+			if(bucket.isEmpty())
+				it.remove();
+			size += bucket.size();
+		}
+		assertEquals(size, act.size());
+		assertTrue(a.isEmpty());
+		assertTrue(b.isEmpty());
+		if(exp.isEmpty()) {
+			assertTrue(act.isEmpty());
+			return;
+		}
+		assertTrue(act.root.consistency());
+		int buckets = 0;
+		for(RedBlackHashTree<TestKey, Long> node = act.firstNode(); act.nodeIsValid(node); node = act.successor(node)) {
+			Map<String, Long> bucket = exp.get(node.getCompareObj());
+			assertEquals(bucket.size(), node.value().size());
+			for(Map.Entry<String, Long> entry : bucket.entrySet()) {
+				assertEquals(entry.getValue(), node.value().get(new TestKey((Long) node.getCompareObj(), entry.getKey())));
+			}
+			buckets++;
+		}
+		assertEquals(exp.size(), buckets);
+	}
+
+	@Test
+	public void testUnion() {
+		int[][] sizes = { { 20000, 20000 }, { 30000, 50 }, { 0, 100 }, { 100, 0 } };
+		for(int[] size : sizes) {
+			setup(size[0], size[1]);
+			TreeMap<Long, Map<String, Long>> exp = expA;
+			for(Map.Entry<Long, Map<String, Long>> bucket : expB.entrySet()) {
+				if(!exp.containsKey(bucket.getKey()))
+					exp.put(bucket.getKey(), new HashMap<String, Long>());
+				for(Map.Entry<String, Long> entry : bucket.getValue().entrySet()) {
+					Long mine = exp.get(bucket.getKey()).get(entry.getKey());
+					exp.get(bucket.getKey()).put(entry.getKey(), mine == null ? entry.getValue() : mine + entry.getValue());
+				}
+			}
+			assertResult(exp, RedBlackHashTreeSets.union(a, b, SUM));
+		}
+	}
+
+	@Test
+	public void testIntersection() {
+		setup(20000, 20000);
+		TreeMap<Long, Map<String, Long>> exp = new TreeMap<Long, Map<String, Long>>();
+		for(Map.Entry<Long, Map<String, Long>> bucket : expA.entrySet()) {
+			Map<String, Long> theirs = expB.get(bucket.getKey());
+			if(theirs == null)
+				continue;
+			Map<String, Long> kept = new HashMap<String, Long>();
+			for(Map.Entry<String, Long> entry : bucket.getValue().entrySet()) {
+				if(theirs.containsKey(entry.getKey()))
+					kept.put(entry.getKey(), entry.getValue() + theirs.get(entry.getKey()));
+			}
+			exp.put(bucket.getKey(), kept);
+		}
+		assertResult(exp, RedBlackHashTreeSets.intersection(a, b, SUM));
+
+		setup(20000, 5000);
+		exp = new TreeMap<Long, Map<String, Long>>();
+		for(Map.Entry<Long, Map<String, Long>> bucket : expA.entrySet()) {
+			if(expB.containsKey(bucket.getKey()))
+				exp.put(bucket.getKey(), bucket.getValue());
+		}
+		assertResult(exp, RedBlackHashTreeSets.intersectionBuckets(a, b));
+	}
+
+	@Test
+	public void testDifference() {
+		setup(20000, 20000);
+		TreeMap<Long, Map<String, Long>> exp = new TreeMap<Long, Map<String, Long>>();
+		for(Map.Entry<Long, Map<String, Long>> bucket : expA.entrySet()) {
+			Map<String, Long> kept = new HashMap<String, Long>(bucket.getValue());
+			if(expB.containsKey(bucket.getKey()))
+				kept.keySet().removeAll(expB.get(bucket.getKey()).keySet());
+			exp.put(bucket.getKey(), kept);
+		}
+		assertResult(exp, RedBlackHashTreeSets.difference(a, b));
+
+		setup(20000, 5000);
+		exp = new TreeMap<Long, Map<String, Long>>();
+		for(Map.Entry<Long, Map<String, Long>> bucket : expA.entrySet()) {
+			if(!expB.containsKey(bucket.getKey()))
+				exp.put(bucket.getKey(), bucket.getValue());
+		}
+		assertResult(exp, RedBlackHashTreeSets.differenceBuckets(a, b));
+	}
+
+	private static int entries(RedBlackHashTreeMap<TestKey, Long> map) {
+		assertTrue(map.isEmpty() || map.root.consistency());
+		int entries = 0;
+		for(RedBlackHashTree<TestKey, Long> node = map.firstNode(); map.nodeIsValid(node); node = map.successor(node))
+			entries += node.value().size();
+		assertEquals(entries, map.size());
+		return entries;
+	}
+
+	private static int entries(TreeMap<Long, Map<String, Long>> exp) {
+		int entries = 0;
+		for(Map<String, Long> bucket : exp.values())
+			entries += bucket.size();
+		return entries;
+	}
+
+	@Test
+	public void testMergeThrows() {
+		setup(20000, 20000);
+		final AtomicInteger merged = new AtomicInteger();
+		try {
+			RedBlackHashTreeSets.union(a, b, new BiFunction<Long, Long, Long>() {
+				public Long apply(Long x, Long y) {
+					if(merged.get() >= 500)
+						throw new IllegalStateException();
+					merged.incrementAndGet();
+					return x + y;
+				}
+			});
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		}
+		// every entry is in one of the maps, merged ones once
+		assertEquals(entries(expA) + entries(expB) - merged.get(), entries(a) + entries(b));
+		for(Map.Entry<Long, Map<String, Long>> bucket : expB.entrySet()) {
+			for(String name : bucket.getValue().keySet()) {
+				TestKey key = new TestKey(bucket.getKey(), name);
+				assertTrue(a.get(key) != null || b.get(key) != null);
+			}
+		}
+		// both maps stay usable
+		a.put(new TestKey(-1L, "Name"), 1L);
+		b.remove(b.firstNode().value().keySet().iterator().next());
+		entries(a);
+		entries(b);
+
+		setup(20000, 20000);
+		try {
+			RedBlackHashTreeSets.intersection(a, b, null);
+			assertTrue(false);
+		} catch (NullPointerException e) {
+		}
+		entries(a);
+		entries(b);
+	}
+}
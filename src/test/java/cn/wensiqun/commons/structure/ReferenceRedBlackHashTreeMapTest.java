@@ -0,0 +1,114 @@
+package cn.wensiqun.commons.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cn.wensiqun.commons.structure.RedBlackHashTreeMapTest.TestKey;
+
+public class ReferenceRedBlackHashTreeMapTest {
+
+	@Test
+	public void testStrongValuesSurvive() {
+		ReferenceRedBlackHashTreeMap<TestKey, Long> map = new ReferenceRedBlackHashTreeMap<TestKey, Long>(ReferenceRedBlackHashTreeMap.Strength.SOFT);
+		assertEquals(null, map.put(new TestKey(1L, "a"), 1L));
+		assertEquals(Long.valueOf(1L), map.put(new TestKey(1L, "a"), 2L));
+		map.put(new TestKey(1L, "b"), 3L);
+		assertEquals(2, map.size());
+		assertEquals(2, map.getMap(1L).size());
+		assertEquals(Long.valueOf(3L), map.remove(new TestKey(1L, "b")));
+		assertEquals(Long.valueOf(2L), map.get(new TestKey(1L, "a")));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void testClearedValuesArePurged() throws InterruptedException {
+		ReferenceRedBlackHashTreeMap<TestKey, byte[]> map = new ReferenceRedBlackHashTreeMap<TestKey, byte[]>(ReferenceRedBlackHashTreeMap.Strength.WEAK);
+		List<byte[]> kept = new ArrayList<byte[]>();
+		for(int i=0; i<1000; i++) {
+			byte[] value = new byte[64];
+			map.put(new TestKey((long) (i / 4), "Name" + (i % 4)), value);
+			if(i % 10 == 0)
+				kept.add(value);
+		}
+		for(int i=0; i<50 && map.size() > kept.size(); i++) {
+			System.gc();
+			Thread.sleep(10);
+			map.purge();
+		}
+		assertEquals(kept.size(), map.size());
+		for(int i=0; i<1000; i += 10) {
+			assertTrue(map.get(new TestKey((long) (i / 4), "Name" + (i % 4))) == kept.get(i / 10));
+		}
+		assertEquals(null, map.getMap(1L));
+		assertEquals(1, map.getMap(0L).size());
+	}
+
+	@Test
+	public void testNavigationSkipsClearedValues() throws InterruptedException {
+		ReferenceRedBlackHashTreeMap<TestKey, byte[]> map = new ReferenceRedBlackHashTreeMap<TestKey, byte[]>(ReferenceRedBlackHashTreeMap.Strength.WEAK);
+		List<byte[]> kept = new ArrayList<byte[]>();
+		for(long ts=0; ts<10; ts++) {
+			byte[] a = new byte[64];
+			map.put(new TestKey(ts, "a"), a);
+			map.put(new TestKey(ts, "b"), new byte[64]);
+			// only the even buckets keep a live entry
+			if(ts % 2 == 0)
+				kept.add(a);
+		}
+		// get and navigation do not purge, so the cleared entries stay
+		for(int i=0; i<50 && !allCleared(map); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(allCleared(map));
+		assertEquals(20, map.size());
+
+		assertEquals(0L, map.firstEntry().getKey());
+		assertEquals(8L, map.lastEntry().getKey());
+		assertEquals(2L, map.ceilingEntry(1L).getKey());
+		assertEquals(2L, map.ceilingEntry(2L).getKey());
+		assertEquals(4L, map.higherEntry(2L).getKey());
+		assertEquals(0L, map.floorEntry(1L).getKey());
+		assertEquals(0L, map.lowerEntry(2L).getKey());
+		assertEquals(null, map.ceilingEntry(9L));
+		assertEquals(null, map.lowerEntry(0L));
+		assertEquals(1, map.ceilingEntry(1L).getValue().size());
+		assertTrue(map.floorValue(new TestKey(2L, "a")) == kept.get(1));
+		// a key reads its own bucket, where a cleared value is null as in get
+		assertEquals(null, map.ceilingValue(new TestKey(1L, "a")));
+
+		assertEquals("[2, 4, 6]", keys(map.subIterator(1L, true, 7L, true)));
+		assertEquals("[6, 4, 2]", keys(map.subIterator(7L, true, 1L, true)));
+		assertEquals("[0, 2, 4]", keys(map.headIterator(5L, true)));
+		assertEquals("[6, 8]", keys(map.tailIterator(5L, true)));
+
+		assertEquals(0L, map.pollFirstEntry().getKey());
+		// the cleared bucket 9 goes with the poll of bucket 8
+		assertEquals(8L, map.pollLastEntry().getKey());
+		assertEquals(14, map.size());
+		assertEquals("[2, 4, 6]", keys(map.tailIterator(0L, true)));
+	}
+
+	private static boolean allCleared(ReferenceRedBlackHashTreeMap<TestKey, byte[]> map) {
+		for(long ts=0; ts<10; ts++) {
+			if(map.get(new TestKey(ts, "b")) != null || (ts % 2 == 1 && map.get(new TestKey(ts, "a")) != null))
+				return false;
+		}
+		return true;
+	}
+
+	private static String keys(Iterator<Map.Entry<Comparable, Map<TestKey, byte[]>>> iter) {
+		List<Comparable> keys = new ArrayList<Comparable>();
+		while(iter.hasNext()) {
+			keys.add(iter.next().getKey());
+		}
+		return keys.toString();
+	}
+}